@@ -0,0 +1,193 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * ASCII Mode Check Class
+ * Checks the conversions of the ASCII transfer type: mixed CR, LF, CRLF
+ * and CR CRLF line endings are received through AsciiModeDecoder, stored,
+ * and sent back through AsciiModeEncoder, the bytes of each step being
+ * compared with the expected ones
+ * 
+ * Usage:
+ * java AsciiModeCheck
+ * (exits with status 1 if any check fails)
+ * 
+ * Note:
+ * Each input is received split in every possible way in two buffers,
+ * then in random splits, so that a CR ending a buffer is checked
+ * against the first byte of the next one
+ */
+public class AsciiModeCheck {
+	// Constant values
+	private static final String[] INPUTS = {
+		"", "\r", "\n", "\r\n", "\r\r\n", "\n\r", "\r\r", "a\rb\nc\r\nd\r\r\ne",
+		"line 1\r\nline 2\nline 3\rline 4\r\r\nline 5\r",
+		"\r\n\r\n\n\n\r\r\r\n\r\n\r"
+	};
+	private static final int RANDOM_INPUTS = 1000;
+	private static final int MAX_RANDOM_LENGTH = 64;
+	
+	//
+	private static int checkCount = 0;
+	private static int failureCount = 0;
+	
+	
+	/*
+	 * Runs the checks
+	 * 
+	 * Arguments:
+	 * args		unused
+	 */
+	public static void main(String[] args) {
+		try {
+			for(String input : INPUTS)
+				checkInput(input.getBytes(StandardCharsets.US_ASCII));
+			
+			Random random = new Random(42);
+			byte[] alphabet = {'\r', '\n', 'a'};
+			for(int i = 0; i < RANDOM_INPUTS; i++) {
+				byte[] input = new byte[random.nextInt(MAX_RANDOM_LENGTH)];
+				for(int j = 0; j < input.length; j++)
+					input[j] = alphabet[random.nextInt(alphabet.length)];
+				checkInput(input);
+			}
+		}catch(IOException e) {
+			System.err.println("ASCII Mode Check: Could Not Run Checks: " + e);
+			System.exit(1);
+		}
+		
+		System.out.println(checkCount + " checks, " + failureCount + " failures");
+		if(failureCount > 0)
+			System.exit(1);
+	}
+	
+	
+	/*
+	 * Checks an input received in every possible two buffer split and in random splits
+	 * 
+	 * Arguments:
+	 * input		the bytes received in ASCII transfer type
+	 * 
+	 * Throws:
+	 * IOException		if the bytes can't be converted
+	 */
+	private static void checkInput(byte[] input) throws IOException {
+		byte[] stored = toStoredForm(input);
+		byte[] sent = toNetworkForm(stored);
+		
+		for(int split = 0; split <= input.length; split++)
+			checkRoundTrip(input, new int[] {split}, stored, sent);
+		
+		Random random = new Random(input.length);
+		for(int i = 0; i < 8; i++) {
+			int[] splits = new int[random.nextInt(4) + 1];
+			for(int j = 0; j < splits.length; j++)
+				splits[j] = random.nextInt(input.length + 1);
+			Arrays.sort(splits);
+			checkRoundTrip(input, splits, stored, sent);
+		}
+	}
+	
+	
+	/*
+	 * Decodes an input split in buffers, encodes the result,
+	 * and compares both with the expected bytes
+	 * 
+	 * Arguments:
+	 * input		the bytes received in ASCII transfer type
+	 * splits		the positions where the input is split in buffers (in order)
+	 * stored		the expected stored form
+	 * sent			the expected network form of the stored form
+	 * 
+	 * Throws:
+	 * IOException		if the bytes can't be converted
+	 */
+	private static void checkRoundTrip(byte[] input, int[] splits, byte[] stored, byte[] sent) throws IOException {
+		ContentWriter writer = new MemoryContentStore().newWriter();
+		AsciiModeDecoder decoder = new AsciiModeDecoder();
+		int start = 0;
+		for(int i = 0; i <= splits.length; i++) {
+			int end = (i < splits.length) ? splits[i] : input.length;
+			decoder.decode(ByteBuffer.wrap(Arrays.copyOfRange(input, start, end)), writer); // decoded in place
+			start = end;
+		}
+		decoder.finish(writer);
+		StoredContent content = writer.commit();
+		
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		content.transferTo(0, Long.MAX_VALUE, Channels.newChannel(decoded));
+		
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		AsciiModeEncoder encoder = new AsciiModeEncoder(Channels.newChannel(encoded), ByteBuffer.allocate(2));
+		content.transferTo(0, Long.MAX_VALUE, encoder); // the smallest buffer, flushed after every line ending
+		encoder.flush();
+		
+		check(input, splits, "stored", stored, decoded.toByteArray());
+		check(input, splits, "sent", sent, encoded.toByteArray());
+	}
+	
+	
+	/*
+	 * Compares converted bytes with the expected ones, and prints the failure if any
+	 * 
+	 * Arguments:
+	 * input		the bytes received in ASCII transfer type
+	 * splits		the positions where the input is split in buffers
+	 * step			the name of the conversion
+	 * expected		the expected bytes
+	 * actual		the converted bytes
+	 */
+	private static void check(byte[] input, int[] splits, String step, byte[] expected, byte[] actual) {
+		checkCount++;
+		if(Arrays.equals(expected, actual))
+			return;
+		
+		failureCount++;
+		System.out.println("FAILED " + step + ": input " + escape(input) + " split at " + Arrays.toString(splits)
+						   + ", expected " + escape(expected) + ", got " + escape(actual));
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * network		bytes in the network form
+	 * 
+	 * Return:
+	 * the stored form: each CRLF becomes LF, any other CR or LF is kept
+	 */
+	private static byte[] toStoredForm(byte[] network) {
+		String text = new String(network, StandardCharsets.US_ASCII);
+		return text.replace("\r\n", "\n").getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * stored		bytes in the stored form
+	 * 
+	 * Return:
+	 * the network form: each LF becomes CRLF, any CR is kept
+	 */
+	private static byte[] toNetworkForm(byte[] stored) {
+		String text = new String(stored, StandardCharsets.US_ASCII);
+		return text.replace("\n", "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * bytes		the bytes
+	 * 
+	 * Return:
+	 * the bytes as a readable string, with the CR and LF escaped
+	 */
+	private static String escape(byte[] bytes) {
+		String text = new String(bytes, StandardCharsets.US_ASCII);
+		return "\"" + text.replace("\r", "\\r").replace("\n", "\\n") + "\"";
+	}
+}
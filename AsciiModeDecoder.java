@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * ASCII Mode Decoder Class
+ * Converts the data received in ASCII transfer type from the 
+ * network form (lines ended by CRLF) to the stored form 
+ * (lines ended by LF, as on the UNIX system advertised by "SYST")
+ * 
+ * Note:
+ * The buffers are decoded in place in a single pass, and a CR 
+ * ending a buffer is held back until the first byte of the next 
+ * buffer tells whether it starts a CRLF, so that the decoding 
+ * takes linear time whatever the way the data is split in buffers
+ */
+public class AsciiModeDecoder {
+	// Constant values
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
+	//
+	private ByteBuffer carriageReturn = ByteBuffer.wrap(new byte[] {CR});
+	private boolean hasPendingCarriageReturn = false;
+	
+	
+	/*
+	 * Decodes a buffer and writes the result to a content writer
+	 * 
+	 * Arguments:
+	 * buffer		the buffer whose remaining bytes are decoded 
+	 * 				(its content is overwritten)
+	 * writer		the writer receiving the decoded bytes
+	 * 
+	 * Throws:
+	 * IOException		if the decoded bytes can't be written
+	 */
+	public void decode(ByteBuffer buffer, ContentWriter writer) throws IOException {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		
+		if(hasPendingCarriageReturn) {
+			hasPendingCarriageReturn = false;
+			if(start == limit)
+				hasPendingCarriageReturn = true;
+			else if(buffer.get(start) != LF) // lone CR, kept as is
+				writeCarriageReturn(writer);
+		}
+		
+		int end = start;
+		for(int i = start; i < limit; i++) {
+			byte b = buffer.get(i);
+			if(b == CR) {
+				if(i + 1 == limit) { // wait for the next buffer
+					hasPendingCarriageReturn = true;
+					continue;
+				}
+				if(buffer.get(i + 1) == LF) // CRLF becomes LF
+					continue;
+			}
+			buffer.put(end++, b);
+		}
+		
+		buffer.limit(end);
+		writer.write(buffer);
+	}
+	
+	
+	/*
+	 * Ends the decoding
+	 * 
+	 * Arguments:
+	 * writer		the writer receiving the decoded bytes
+	 * 
+	 * Throws:
+	 * IOException		if the last decoded byte can't be written
+	 */
+	public void finish(ContentWriter writer) throws IOException {
+		if(hasPendingCarriageReturn) {
+			hasPendingCarriageReturn = false;
+			writeCarriageReturn(writer);
+		}
+	}
+	
+	
+	/*
+	 * Writes a single CR
+	 * 
+	 * Arguments:
+	 * writer		the writer receiving the CR
+	 * 
+	 * Throws:
+	 * IOException		if the CR can't be written
+	 */
+	private void writeCarriageReturn(ContentWriter writer) throws IOException {
+		carriageReturn.rewind();
+		writer.write(carriageReturn);
+	}
+}
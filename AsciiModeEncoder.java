@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * ASCII Mode Encoder Class
+ * Converts the data sent in ASCII transfer type from the stored form 
+ * (lines ended by LF) to the network form (lines ended by CRLF)
+ * 
+ * Note:
+ * The encoder is a channel so that the stored content can be 
+ * transfered to it as it would be to the data channel; the encoded 
+ * bytes are gathered in a buffer written to the data channel when full
+ */
+public class AsciiModeEncoder implements WritableByteChannel {
+	// Constant values
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
+	//
+	private WritableByteChannel target;
+	private ByteBuffer output;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _target		the channel receiving the encoded bytes
+	 * _output		the buffer gathering the encoded bytes (at least 2 bytes long)
+	 */
+	public AsciiModeEncoder(WritableByteChannel _target, ByteBuffer _output) {
+		target = _target;
+		output = _output;
+		output.clear();
+	}
+	
+	
+	@Override
+	public int write(ByteBuffer source) throws IOException {
+		int count = source.remaining();
+		while(source.hasRemaining()) {
+			if(output.remaining() < 2) // room for a CRLF
+				flush();
+			
+			byte b = source.get();
+			if(b == LF)
+				output.put(CR);
+			output.put(b);
+		}
+		return count;
+	}
+	
+	
+	/*
+	 * Writes the encoded bytes gathered so far to the target channel
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	public void flush() throws IOException {
+		output.flip();
+		while(output.hasRemaining()) {
+			target.write(output);
+		}
+		output.clear();
+	}
+	
+	
+	@Override
+	public boolean isOpen() {
+		return target.isOpen();
+	}
+	
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+}
@@ -0,0 +1,194 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Bandwidth Scheduler Class
+ * Meters the data transfers through a hierarchy of token buckets:
+ * one for all the transfers, one per user and one per session,
+ * shared by all the sessions
+ * 
+ * Note:
+ * - A transfer is granted a quantum of bytes at a time, taken at once from the bucket 
+ *   of its session, of its user and from the global bucket: the quantum is granted
+ *   when the most indebted of them has repaid its debt
+ * - The buckets are all charged at the time of the reservation, so that a bucket 
+ *   never earns its tokens ahead of time for the sake of a slower one
+ * - The buckets grant the reservations in the order they are made (See TokenBucket), 
+ *   and a transfer only reserves its next quantum once the previous one is sent:
+ *   the active transfers take turns, so that a small download waits for one quantum
+ *   of each active transfer instead of the end of a large one
+ * - The rates can be changed at any time, a rate of 0 means no limit
+ * - The bucket of a user is shared by the sessions logged in as this user, 
+ *   and is dropped once the last of them has ended
+ */
+public class BandwidthScheduler implements BandwidthSchedulerMXBean {
+	// Constant values
+	public static final int QUANTUM = 0x10000; // 64 KiB, the bytes a transfer is granted at a time
+	private static final String DOMAIN = "FTPServer";
+	
+	//
+	private volatile long globalRate;
+	private volatile long userRate;
+	private volatile long sessionRate;
+	private TokenBucket globalBucket;
+	private ConcurrentHashMap<String, UserBucket> userBuckets;
+	private LongAdder throttledTime;
+	
+	
+	/*
+	 * Constructor
+	 * -> the rates are in bytes per second, 0 for no limit
+	 * 
+	 * Arguments:
+	 * _globalRate		the maximum rate of all the transfers together
+	 * _userRate		the maximum rate of the transfers of a user
+	 * _sessionRate		the maximum rate of the transfers of a session
+	 */
+	public BandwidthScheduler(long _globalRate, long _userRate, long _sessionRate) {
+		globalRate = Math.max(0, _globalRate);
+		userRate = Math.max(0, _userRate);
+		sessionRate = Math.max(0, _sessionRate);
+		globalBucket = new TokenBucket();
+		userBuckets = new ConcurrentHashMap<String, UserBucket>();
+		throttledTime = new LongAdder();
+	}
+	
+	
+	/*
+	 * Registers the scheduler to the platform MBean server
+	 * (eg: to change the rates with jconsole under the "FTPServer" domain)
+	 * 
+	 * Throws:
+	 * JMException		if the MBean can't be registered
+	 */
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(DOMAIN + ":type=BandwidthScheduler"));
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if any of the rates is limited, false otherwise
+	 */
+	public boolean isLimited() {
+		return globalRate > 0 || userRate > 0 || sessionRate > 0;
+	}
+	
+	
+	/*
+	 * Reserves bytes for a transfer
+	 * 
+	 * Arguments:
+	 * sessionBucket	the bucket of the session of the transfer
+	 * userBucket		the bucket of the user of the session (See joinUser), 
+	 * 					null if the session is not logged in
+	 * bytes			the number of bytes to transfer
+	 * 
+	 * Return:
+	 * the time (See System.nanoTime) from which the bytes can be transfered
+	 */
+	public long reserve(TokenBucket sessionBucket, TokenBucket userBucket, long bytes) {
+		long now = System.nanoTime(); // every bucket is charged now, none ahead of time
+		long time = sessionBucket.reserve(bytes, sessionRate, now);
+		if(userRate > 0 && userBucket != null)
+			time = Math.max(time, userBucket.reserve(bytes, userRate, now));
+		time = Math.max(time, globalBucket.reserve(bytes, globalRate, now));
+		
+		if(time > now)
+			throttledTime.add(time - now);
+		return time;
+	}
+	
+	
+	/*
+	 * Adds a session to the sessions of a user
+	 * 
+	 * Arguments:
+	 * user		the identity the session has logged in with
+	 * 
+	 * Return:
+	 * the bucket shared by the sessions of the user
+	 */
+	public TokenBucket joinUser(String user) {
+		return userBuckets.compute(user, (key, bucket) -> {
+			if(bucket == null)
+				bucket = new UserBucket();
+			bucket.sessionCount++;
+			return bucket;
+		});
+	}
+	
+	
+	/*
+	 * Removes a session from the sessions of a user,
+	 * the bucket of the user is dropped with its last session
+	 * 
+	 * Arguments:
+	 * user		the identity given to joinUser
+	 */
+	public void leaveUser(String user) {
+		userBuckets.computeIfPresent(user, (key, bucket) -> (--bucket.sessionCount > 0) ? bucket : null);
+	}
+
+	
+	
+	@Override
+	public long getGlobalRate() {
+		return globalRate;
+	}
+	
+	
+	@Override
+	public void setGlobalRate(long rate) {
+		globalRate = Math.max(0, rate);
+	}
+	
+	
+	@Override
+	public long getUserRate() {
+		return userRate;
+	}
+	
+	
+	@Override
+	public void setUserRate(long rate) {
+		userRate = Math.max(0, rate);
+	}
+	
+	
+	@Override
+	public long getSessionRate() {
+		return sessionRate;
+	}
+	
+	
+	@Override
+	public void setSessionRate(long rate) {
+		sessionRate = Math.max(0, rate);
+	}
+	
+	
+	@Override
+	public long getThrottledTime() {
+		return throttledTime.sum();
+	}
+	
+	
+	@Override
+	public int getUserBucketCount() {
+		return userBuckets.size();
+	}
+	
+	
+	/*
+	 * User Bucket Class
+	 * The bucket of a user, with the number of sessions sharing it
+	 * (only changed by the atomic updates of the map of the user buckets)
+	 */
+	private static class UserBucket extends TokenBucket {
+		private int sessionCount = 0;
+	}
+}
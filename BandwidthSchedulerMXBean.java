@@ -0,0 +1,63 @@
+/*
+ * Bandwidth Scheduler MXBean Interface
+ * Exposes the bandwidth limits of the data transfers through JMX,
+ * so that they can be changed while the server runs
+ * (all the rates are in bytes per second, 0 for no limit)
+ */
+public interface BandwidthSchedulerMXBean {
+	
+	/*
+	 * Return:
+	 * the maximum rate of all the transfers together
+	 */
+	public long getGlobalRate();
+	
+	
+	/*
+	 * Arguments:
+	 * rate		the maximum rate of all the transfers together
+	 */
+	public void setGlobalRate(long rate);
+	
+	
+	/*
+	 * Return:
+	 * the maximum rate of the transfers of a user, all its sessions together
+	 */
+	public long getUserRate();
+	
+	
+	/*
+	 * Arguments:
+	 * rate		the maximum rate of the transfers of a user, all its sessions together
+	 */
+	public void setUserRate(long rate);
+	
+	
+	/*
+	 * Return:
+	 * the maximum rate of the transfers of a session
+	 */
+	public long getSessionRate();
+	
+	
+	/*
+	 * Arguments:
+	 * rate		the maximum rate of the transfers of a session
+	 */
+	public void setSessionRate(long rate);
+	
+	
+	/*
+	 * Return:
+	 * the time the transfers have waited for bandwidth (in nanoseconds)
+	 */
+	public long getThrottledTime();
+	
+	
+	/*
+	 * Return:
+	 * the number of users having a bucket, i.e. with sessions logged in
+	 */
+	public int getUserBucketCount();
+}
@@ -0,0 +1,66 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Buffer Pool Class
+ * Keeps fixed-size transfer buffers so that they are reused 
+ * from one transfer to the next instead of being allocated each time
+ */
+public class BufferPool {
+	private int bufferSize;
+	private int maxPooledBuffers;
+	private Queue<ByteBuffer> buffers;
+	private AtomicInteger pooledBufferCount;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _bufferSize			the size (in bytes) of each buffer
+	 * _maxPooledBuffers	the maximum number of buffers kept for reuse
+	 */
+	public BufferPool(int _bufferSize, int _maxPooledBuffers) {
+		bufferSize = _bufferSize;
+		maxPooledBuffers = _maxPooledBuffers;
+		buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		pooledBufferCount = new AtomicInteger(0);
+	}
+	
+	
+	/*
+	 * Takes a buffer from the pool
+	 * 
+	 * Return:
+	 * a cleared buffer, newly allocated if the pool is empty
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if(buffer == null)
+			return ByteBuffer.allocate(bufferSize);
+		
+		pooledBufferCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+	
+	
+	/*
+	 * Gives a buffer back to the pool
+	 * 
+	 * Arguments:
+	 * buffer		a buffer previously taken from the pool
+	 * 				(it must not be used afterwards)
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || buffer.capacity() != bufferSize)
+			return;
+		
+		if(pooledBufferCount.incrementAndGet() <= maxPooledBuffers)
+			buffers.add(buffer);
+		else
+			pooledBufferCount.decrementAndGet(); // pool full, left to the garbage collector
+	}
+}
@@ -0,0 +1,12 @@
+/*
+ * Change Not Durable Exception Class
+ * Manages exception when a change of the virtual tree can't be made durable
+ * (the change is done in memory, but it would be lost by a restart)
+ */
+public class ChangeNotDurableException extends Exception {
+	private static final long serialVersionUID = 6126394417906253831L;
+
+	public ChangeNotDurableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Compressed Variant Cache Class
+ * Keeps the compressed form ("MODE Z") of the frequently downloaded files
+ * next to their content, so that a popular file is compressed once
+ * instead of once per download
+ * 
+ * Note:
+ * - The variants are attached to the virtual file they are built from:
+ *   as a file is modified by being replaced, the variants are deleted
+ *   together with the replaced file and never outlive its content
+ * - A variant is only built once the file has been downloaded compressed
+ *   MIN_DOWNLOADS times, by keeping a copy of the deflate stream sent to
+ *   the client: the file is still compressed once, while it is being sent
+ * - The size of the file, which bounds the size of its variant, is taken from 
+ *   the budget of the cache before the variant is built, and one download 
+ *   at a time builds a variant; a file bigger than the whole budget 
+ *   is remembered so that it is never tried again
+ */
+public class CompressedVariantCache {
+	// Constant values
+	private static final int MIN_DOWNLOADS = 2;
+	
+	//
+	private ContentStore store;
+	private long maxCachedBytes;
+	private AtomicLong cachedBytes; // The size of the variants, and of the variants being built
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _store				the store keeping the variants
+	 * _maxCachedBytes		the maximum size (in bytes) of all the variants
+	 */
+	public CompressedVariantCache(ContentStore _store, long _maxCachedBytes) {
+		store = _store;
+		maxCachedBytes = _maxCachedBytes;
+		cachedBytes = new AtomicLong(0);
+	}
+	
+	
+	/*
+	 * Gives the compressed form of a file
+	 * 
+	 * Arguments:
+	 * file				the file to download
+	 * isAsciiType		true for the ASCII transfer type (lines ended by CRLF),
+	 * 					false for the binary transfer type
+	 * 
+	 * Return:
+	 * the deflate stream of the whole file,
+	 * null if the file has to be compressed on the fly
+	 */
+	public StoredContent getVariant(VirtualFile<?> file, boolean isAsciiType) {
+		return file.getCompressedVariant(isAsciiType);
+	}
+	
+	
+	/*
+	 * Starts the building of the compressed form of a file from 
+	 * the deflate stream of a download, if the file is popular enough
+	 * 
+	 * Arguments:
+	 * file				the file being downloaded (as a whole)
+	 * isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+	 * target			the channel the deflate stream is sent to
+	 * 
+	 * Return:
+	 * a channel to send the deflate stream to instead of the target,
+	 * null if no variant has to be built
+	 */
+	public VariantBuilder startVariant(VirtualFile<?> file, boolean isAsciiType, WritableByteChannel target) {
+		if(file.isCompressedVariantRejected() || file.countCompressedDownload() < MIN_DOWNLOADS)
+			return null;
+		
+		long maxSize = file.getSize();
+		if(maxSize > maxCachedBytes) { // can't ever fit
+			file.rejectCompressedVariant();
+			return null;
+		}
+		if(!reserve(maxSize)) // the cache is full for now
+			return null;
+		if(!file.startCompressedVariant(isAsciiType)) { // already built or being built by another download
+			cachedBytes.addAndGet(-maxSize);
+			return null;
+		}
+		
+		try {
+			return new VariantBuilder(file, isAsciiType, store.newWriter(), target, maxSize);
+		}catch(IOException e) {
+			System.err.println("Compressed Variant Cache: Could Not Compress " + file.getFilename() + ": " + e);
+			cachedBytes.addAndGet(-maxSize);
+			file.endCompressedVariant(isAsciiType);
+			return null;
+		}
+	}
+	
+	
+	/*
+	 * Return:
+	 * the size (in bytes) of all the variants
+	 */
+	public long getCachedBytes() {
+		return cachedBytes.get();
+	}
+	
+	
+	/*
+	 * Takes bytes from the budget of the cache
+	 * 
+	 * Arguments:
+	 * bytes		the number of bytes
+	 * 
+	 * Return:
+	 * true if the bytes have been taken, false if they would exceed the budget
+	 */
+	private boolean reserve(long bytes) {
+		long current;
+		do {
+			current = cachedBytes.get();
+			if(current + bytes > maxCachedBytes)
+				return false;
+		}while(!cachedBytes.compareAndSet(current, current + bytes));
+		return true;
+	}
+	
+	
+	/*
+	 * Variant Builder Class
+	 * Sends the deflate stream of a download to the client
+	 * and keeps a copy of it as the compressed form of the file
+	 * 
+	 * Note:
+	 * The download never fails because of the variant: if the copy can't be 
+	 * stored, the variant is given up and the stream is still sent
+	 */
+	public class VariantBuilder implements WritableByteChannel {
+		private VirtualFile<?> file;
+		private boolean isAsciiType;
+		private ContentWriter writer; // Null once the variant is committed or given up
+		private WritableByteChannel target;
+		private long reservedBytes;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _file			the file being downloaded
+		 * _isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+		 * _writer			the writer of the variant
+		 * _target			the channel the deflate stream is sent to
+		 * _reservedBytes	the bytes taken from the budget of the cache for the variant
+		 */
+		private VariantBuilder(VirtualFile<?> _file, boolean _isAsciiType, ContentWriter _writer, 
+				WritableByteChannel _target, long _reservedBytes) {
+			file = _file;
+			isAsciiType = _isAsciiType;
+			writer = _writer;
+			target = _target;
+			reservedBytes = _reservedBytes;
+		}
+		
+		
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			ByteBuffer copy = source.duplicate();
+			int count = target.write(source);
+			if(writer != null && count > 0) {
+				copy.limit(copy.position() + count); // only the bytes actually sent
+				try {
+					writer.write(copy);
+				}catch(IOException e) {
+					System.err.println("Compressed Variant Cache: Could Not Keep " + file.getFilename() + ": " + e);
+					close();
+				}
+			}
+			return count;
+		}
+		
+		
+		/*
+		 * Attaches the variant to the file, once the whole deflate stream has been sent
+		 */
+		public void commit() {
+			if(writer == null)
+				return;
+			
+			ContentWriter _writer = writer;
+			writer = null;
+			try {
+				StoredContent variant = new CachedVariant(_writer.commit());
+				cachedBytes.addAndGet(variant.getSize() - reservedBytes); // the actual size replaces the bound
+				reservedBytes = 0;
+				
+				if(variant.getSize() > maxCachedBytes) // the bound may be exceeded by the CRLF of the ASCII type
+					file.rejectCompressedVariant();
+				if(cachedBytes.get() > maxCachedBytes || !file.setCompressedVariant(isAsciiType, variant))
+					variant.delete(); // over the budget or the file is deleted
+			}catch(IOException e) {
+				System.err.println("Compressed Variant Cache: Could Not Keep " + file.getFilename() + ": " + e);
+				cachedBytes.addAndGet(-reservedBytes);
+				reservedBytes = 0;
+			}finally {
+				file.endCompressedVariant(isAsciiType);
+			}
+		}
+		
+		
+		@Override
+		public boolean isOpen() {
+			return target.isOpen();
+		}
+		
+		
+		/*
+		 * Gives up the variant if it has not been committed
+		 * (the target channel is left open)
+		 */
+		@Override
+		public void close() {
+			if(writer == null)
+				return;
+			
+			writer.abort();
+			writer = null;
+			cachedBytes.addAndGet(-reservedBytes);
+			reservedBytes = 0;
+			file.endCompressedVariant(isAsciiType);
+		}
+	}
+	
+	
+	/*
+	 * Cached Variant Class
+	 * A compressed variant, accounted in the size of the cache until it is deleted
+	 */
+	private class CachedVariant implements StoredContent {
+		private StoredContent content;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _content		the compressed content
+		 */
+		public CachedVariant(StoredContent _content) {
+			content = _content;
+		}
+		
+		
+		@Override
+		public long getSize() {
+			return content.getSize();
+		}
+		
+		
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return content.transferTo(position, count, target);
+		}
+		
+		
+		@Override
+		public ContentReader open() throws IOException {
+			return content.open();
+		}
+		
+		
+		@Override
+		public String getLocator() {
+			return null; // the variants are built again after a restart
+		}
+		
+		
+		@Override
+		public void delete() {
+			cachedBytes.addAndGet(-content.getSize());
+			content.delete();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Content Reader Interface
+ * Reads stored content for the whole length of a transfer
+ * 
+ * Note:
+ * A content deleted while it is being read (eg: a file removed or replaced 
+ * during its download) stays readable until its last reader is closed
+ */
+public interface ContentReader extends AutoCloseable {
+	
+	/*
+	 * Transfers a part of the content to a channel
+	 * 
+	 * Arguments:
+	 * position		the position of the first byte to transfer
+	 * count		the number of bytes to transfer
+	 * target		the channel receiving the bytes
+	 * 
+	 * Return:
+	 * the number of bytes transfered
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read or the channel can't be written
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+	
+	
+	/*
+	 * Ends the reading
+	 */
+	@Override
+	public void close();
+}
@@ -0,0 +1,47 @@
+import java.io.IOException;
+import java.util.Set;
+
+/*
+ * Content Store Interface
+ * Storage backend keeping the bodies of the virtual files
+ */
+public interface ContentStore {
+	
+	/*
+	 * Starts storing new content
+	 * 
+	 * Return:
+	 * a writer receiving the bytes of the content
+	 * 
+	 * Throws:
+	 * IOException		if new content can't be stored
+	 */
+	public ContentWriter newWriter() throws IOException;
+	
+	
+	/*
+	 * Gives back content stored before a restart
+	 * 
+	 * Arguments:
+	 * locator		the location of the content, given by StoredContent.getLocator()
+	 * size			the size (in bytes) of the content
+	 * 
+	 * Return:
+	 * the content
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be found
+	 */
+	public StoredContent restore(String locator, long size) throws IOException;
+	
+	
+	/*
+	 * Deletes the contents stored before the store was opened that none 
+	 * of the given locators reference (left by an interrupted upload,
+	 * a compressed variant or a file removed before a crash)
+	 * 
+	 * Arguments:
+	 * locators		the locators of all the contents still referenced
+	 */
+	public void deleteUnreferenced(Set<String> locators);
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Content Writer Interface
+ * Writes new content into a content store piece by piece, 
+ * so that a file never has to be held in memory as a whole
+ * before being stored
+ */
+public interface ContentWriter {
+	
+	/*
+	 * Appends bytes to the content
+	 * 
+	 * Arguments:
+	 * buffer	the buffer whose remaining bytes are appended
+	 * 			(its position is moved to its limit)
+	 * 
+	 * Throws:
+	 * IOException		if the bytes can't be stored
+	 */
+	public void write(ByteBuffer buffer) throws IOException;
+	
+	
+	/*
+	 * Appends the first bytes of stored content
+	 * (eg: the bytes kept before the restart position of an upload)
+	 * 
+	 * Arguments:
+	 * content		the stored content
+	 * count		the number of bytes to append, at most the size of the content
+	 * 
+	 * Throws:
+	 * IOException		if the bytes can't be read or stored
+	 */
+	public void append(StoredContent content, long count) throws IOException;
+	
+	
+	/*
+	 * Return:
+	 * the number of bytes written so far
+	 */
+	public long getSize();
+	
+	
+	/*
+	 * Ends the writing
+	 * 
+	 * Return:
+	 * the stored content
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be stored
+	 */
+	public StoredContent commit() throws IOException;
+	
+	
+	/*
+	 * Ends the writing and discards the bytes written so far
+	 */
+	public void abort();
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Content Writer Channel Class
+ * Channel appending the bytes written to it to new content,
+ * so that stored content can be transfered into a content store
+ * as it would be to the data channel
+ */
+public class ContentWriterChannel implements WritableByteChannel {
+	private ContentWriter writer;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _writer		the writer of the new content
+	 */
+	public ContentWriterChannel(ContentWriter _writer) {
+		writer = _writer;
+	}
+	
+	
+	@Override
+	public int write(ByteBuffer source) throws IOException {
+		int count = source.remaining();
+		writer.write(source);
+		return count;
+	}
+	
+	
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+	
+	
+	/*
+	 * Does nothing: the writer is committed or aborted by its owner
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Control Channel Event Loop Class
+ * Multiplexes the control connections of many clients
+ * on a single thread with a selector
+ * 
+ * Note:
+ * The event loop only reads and writes control channel bytes,
+ * the requests themselves are executed by the command executor
+ * so that a blocking data transfer never stalls the other sessions
+ */
+public class ControlChannelEventLoop implements Runnable {
+	// Constant values
+	private static final int SELECT_TIMEOUT = 1000;
+	
+	//
+	private Selector selector;
+	private VirtualDirectory rootDirectory;
+	private ExecutorService commandExecutor;
+	private int timeout;
+	private Queue<SocketChannel> pendingChannels;
+	private Queue<ControlChannelSession> pendingInterestUpdates;
+	private ConcurrentHashMap<ControlChannelSession, Boolean> sessions;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _rootDirectory		the server virtual root directory
+	 * _commandExecutor		the executor running the client requests
+	 * _timeout				the time (in milliseconds) after which an idle session is closed
+	 * 
+	 * Throws:
+	 * IOException		if the selector can't be opened
+	 */
+	public ControlChannelEventLoop(VirtualDirectory _rootDirectory, ExecutorService _commandExecutor,
+			int _timeout) throws IOException {
+		selector = Selector.open();
+		rootDirectory = _rootDirectory;
+		commandExecutor = _commandExecutor;
+		timeout = _timeout;
+		pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		pendingInterestUpdates = new ConcurrentLinkedQueue<ControlChannelSession>();
+		sessions = new ConcurrentHashMap<ControlChannelSession, Boolean>();
+	}
+	
+	
+	/*
+	 * Hands a new control connection over to the event loop
+	 * 
+	 * Arguments:
+	 * channel		the client control channel
+	 */
+	public void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+	
+	
+	/*
+	 * Asks the event loop to recompute the interest set of a session
+	 * 
+	 * Arguments:
+	 * session		the session whose interest set has changed
+	 */
+	public void updateInterest(ControlChannelSession session) {
+		pendingInterestUpdates.add(session);
+		selector.wakeup();
+	}
+	
+	
+	/*
+	 * Gives the command executor
+	 * 
+	 * Return:
+	 * the executor running the client requests
+	 */
+	public ExecutorService getCommandExecutor() {
+		return commandExecutor;
+	}
+	
+	
+	/*
+	 * Gives the number of sessions handled by the event loop
+	 * 
+	 * Return:
+	 * the number of open sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+	
+	
+	/*
+	 * Runs the event loop until the thread is interrupted
+	 */
+	@Override
+	public void run() {
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				selector.select(SELECT_TIMEOUT);
+				registerPendingChannels();
+				applyInterestUpdates();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ControlChannelSession session = (ControlChannelSession) key.attachment();
+					
+					try {
+						if(key.isValid() && key.isWritable())
+							session.write();
+						if(key.isValid() && key.isReadable())
+							session.read();
+					}catch(IOException | CancelledKeyException e) {
+						session.close();
+					}
+				}
+				
+				closeIdleSessions();
+			}
+		}catch(IOException e) {
+			System.err.println("Control Channel Event Loop Died: " + e);
+		}finally {
+			for(ControlChannelSession session : sessions.keySet())
+				session.close();
+			try {
+				selector.close();
+			}catch(IOException e) {
+				System.err.println("Control Channel Event Loop: Could Not Close Selector");
+			}
+		}
+	}
+	
+	
+	/*
+	 * Registers the channels handed over by the acceptor
+	 */
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				ControlChannelSession session = new ControlChannelSession(channel, this, rootDirectory);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+				session.setSelectionKey(key);
+				sessions.put(session, Boolean.TRUE);
+				session.open();
+			}catch(IOException e) {
+				System.err.println("Control Channel Event Loop: Could Not Register Client: " + e);
+				try {
+					channel.close();
+				}catch(IOException e2) {
+					System.err.println("Control Channel Event Loop: Could Not Close Client Channel");
+				}
+			}
+		}
+	}
+	
+	
+	/*
+	 * Applies the interest set changes asked by the sessions
+	 */
+	private void applyInterestUpdates() {
+		ControlChannelSession session;
+		while((session = pendingInterestUpdates.poll()) != null) {
+			session.applyInterest();
+		}
+	}
+	
+	
+	/*
+	 * Closes the sessions that have been idle for longer than the timeout
+	 */
+	private void closeIdleSessions() {
+		long now = System.currentTimeMillis();
+		for(ControlChannelSession session : sessions.keySet()) {
+			if(session.isIdleSince(now - timeout)) {
+				System.err.println("FTP Server Session Died: Client Response Times Out");
+				session.close();
+			}
+		}
+	}
+	
+	
+	/*
+	 * Forgets a closed session
+	 * 
+	 * Arguments:
+	 * session		the closed session
+	 */
+	public void unregister(ControlChannelSession session) {
+		sessions.remove(session);
+	}
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Control Channel Output Stream Class
+ * Lets the request handler reply on a non-blocking control channel
+ */
+public class ControlChannelOutputStream extends OutputStream {
+	private ControlChannelSession session;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _session		the session whose control channel receives the replies
+	 */
+	public ControlChannelOutputStream(ControlChannelSession _session) {
+		session = _session;
+	}
+	
+	
+	@Override
+	public void write(int b) throws IOException {
+		session.sendBytes(new byte[] {(byte) b});
+	}
+	
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		session.sendBytes(Arrays.copyOfRange(b, off, off + len));
+	}
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Control Channel Reader Class
+ * Splits the bytes received on a blocking control connection into requests,
+ * and tells whether complete requests are already waiting in its buffer
+ * so that pipelined requests can be handled back to back
+ * 
+ * Note:
+ * Each read drains as many bytes as the connection has, the requests
+ * are then taken from the buffer without any further system call
+ */
+public class ControlChannelReader {
+	// Constant values
+	private static final int MAX_REQUEST_LENGTH = 4096;
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
+	//
+	private InputStream input;
+	private byte[] buffer;
+	private int start; // The position of the first byte not yet read as a request
+	private int end; // The position following the last received byte
+	private int scanned; // The position up to which no <LF> has been found since start
+	private boolean isDiscarding = false; // Whether the rest of a too long request is being skipped
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _input		the stream of the control connection
+	 */
+	public ControlChannelReader(InputStream _input) {
+		input = _input;
+		buffer = new byte[MAX_REQUEST_LENGTH];
+		start = 0;
+		end = 0;
+		scanned = 0;
+	}
+	
+	
+	/*
+	 * Reads the next request, waiting for it if it hasn't been received yet
+	 * 
+	 * Return:
+	 * the request without its line ending, null if the connection has been closed
+	 * 
+	 * Throws:
+	 * RequestTooLongException		if the request doesn't fit in the buffer
+	 * 								(the request is skipped, the next one can be read)
+	 * IOException					if the connection can't be read
+	 */
+	public String readRequest() throws IOException {
+		while(true) {
+			int lineEnd = findLineEnd();
+			if(lineEnd >= 0) {
+				int requestEnd = (lineEnd > start && buffer[lineEnd - 1] == CR) ? lineEnd - 1 : lineEnd;
+				requestEnd = TelnetCommandFilter.filter(buffer, start, requestEnd); // eg: the signals sent before "ABOR"
+				String request = new String(buffer, start, requestEnd - start, StandardCharsets.UTF_8);
+				start = lineEnd + 1;
+				scanned = start;
+				return request;
+			}
+			
+			if(start > 0) { // makes room for the rest of the request
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scanned -= start;
+				start = 0;
+			}
+			
+			if(end == buffer.length) { // no room is left for the end of the request
+				start = 0;
+				end = 0;
+				scanned = 0;
+				isDiscarding = true;
+				throw new RequestTooLongException("Request Longer Than " + MAX_REQUEST_LENGTH + " Bytes");
+			}
+			
+			int readLength = input.read(buffer, end, buffer.length - end);
+			if(readLength < 0)
+				return null;
+			end += readLength;
+		}
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if a complete request is already in the buffer, false otherwise
+	 */
+	public boolean hasBufferedRequest() {
+		return findLineEnd() >= 0;
+	}
+	
+	
+	/*
+	 * Looks for the end of the first request of the buffer
+	 * (skipping the end of a too long request first)
+	 * 
+	 * Return:
+	 * the position of the <LF> ending the request, -1 if it hasn't been received yet
+	 */
+	private int findLineEnd() {
+		for(; scanned < end; scanned++) {
+			if(buffer[scanned] != LF)
+				continue;
+			
+			if(!isDiscarding)
+				return scanned;
+			
+			isDiscarding = false;
+			start = scanned + 1;
+		}
+		
+		if(isDiscarding) // nothing before the end of the too long request is kept
+			start = end;
+		return -1;
+	}
+}
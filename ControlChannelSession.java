@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/*
+ * Control Channel Session Class
+ * Manages the non-blocking control connection of a client:
+ * parses the requests from the received bytes and hands them,
+ * one at a time and in order, to the request handler
+ */
+public class ControlChannelSession {
+	// Constant values
+	private static final int MAX_REQUEST_LENGTH = 4096;
+	private static final int MAX_PENDING_REQUESTS = 64;
+	private static final String REQUEST_TOO_LONG = new String("500 Request Too Long"); // Queued in place of a too long request
+	
+	//
+	private SocketChannel channel;
+	private SelectionKey selectionKey;
+	private ControlChannelEventLoop eventLoop;
+	private FTPServerThread requestHandler;
+	private ByteBuffer readBuffer;
+	private Queue<String> pendingRequests;
+	private Queue<ByteBuffer> pendingReplies;
+	private volatile long lastActivityTime;
+	
+	// Boolean state variables
+	private boolean isExecuting = false;
+	private boolean isDiscarding = false; // Whether the rest of a too long request is being skipped
+	private volatile boolean isOpen = false;
+	private volatile boolean isReadingPaused = false;
+	private volatile boolean isInputClosed = false;
+	private volatile boolean isClosed = false;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _channel				the client control channel (in non-blocking mode)
+	 * _eventLoop			the event loop the channel is registered to
+	 * _rootDirectory		the server virtual root directory
+	 * 
+	 * Throws:
+	 * IOException		if the request handler can't be created
+	 */
+	public ControlChannelSession(SocketChannel _channel, ControlChannelEventLoop _eventLoop,
+			VirtualDirectory _rootDirectory) throws IOException {
+		channel = _channel;
+		eventLoop = _eventLoop;
+		readBuffer = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+		pendingRequests = new ArrayDeque<String>();
+		pendingReplies = new ArrayDeque<ByteBuffer>();
+		lastActivityTime = System.currentTimeMillis();
+		requestHandler = new FTPServerThread(new ControlChannelOutputStream(this),
+				_channel.socket().getInetAddress(), _rootDirectory);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * key		the selection key of the channel
+	 */
+	public void setSelectionKey(SelectionKey key) {
+		selectionKey = key;
+	}
+	
+	
+	/*
+	 * Greets the client once the session is registered
+	 */
+	public void open() {
+		isOpen = true;
+		FTPServerThread.getMetrics().openSession();
+		requestHandler.sendWelcome();
+	}
+	
+	
+	/*
+	 * Reads the available bytes of the control channel
+	 * and schedules every complete request
+	 * (Called by the event loop when the channel is readable)
+	 * 
+	 * Throws:
+	 * IOException		if the channel can't be read
+	 */
+	public void read() throws IOException {
+		int readLength = channel.read(readBuffer);
+		if(readLength < 0) {
+			isInputClosed = true;
+			applyInterest();
+			if(!isBusy())
+				close();
+			return;
+		}
+		
+		lastActivityTime = System.currentTimeMillis();
+		readBuffer.flip();
+		int pendingCount = extractRequests();
+		readBuffer.compact();
+		
+		if(!readBuffer.hasRemaining()) // a request can't be longer than the buffer
+			pendingCount = rejectRequest();
+		
+		if(pendingCount >= MAX_PENDING_REQUESTS) { // lets the client wait before reading more
+			isReadingPaused = true;
+			applyInterest();
+		}
+		
+		scheduleRequests();
+	}
+	
+	
+	/*
+	 * Extracts the complete lines of the read buffer
+	 * 
+	 * Return:
+	 * the number of requests waiting to be executed
+	 */
+	private synchronized int extractRequests() {
+		int start = readBuffer.position();
+		for(int i = start; i < readBuffer.limit(); i++) {
+			if(readBuffer.get(i) == '\n' && isDiscarding) { // the end of a too long request
+				isDiscarding = false;
+				start = i + 1;
+			}else if(readBuffer.get(i) == '\n') {
+				int end = i;
+				if(end > start && readBuffer.get(end - 1) == '\r')
+					end--;
+				int offset = readBuffer.arrayOffset(); // eg: the signals sent before "ABOR" are removed
+				end = TelnetCommandFilter.filter(readBuffer.array(), offset + start, offset + end) - offset;
+				
+				if(end > start) // decoded straight from the read buffer
+					pendingRequests.add(new String(readBuffer.array(), readBuffer.arrayOffset() + start, 
+							end - start, StandardCharsets.UTF_8));
+				start = i + 1;
+			}
+		}
+		readBuffer.position(isDiscarding ? readBuffer.limit() : start);
+		return pendingRequests.size();
+	}
+	
+	
+	/*
+	 * Drops the too long request filling the read buffer, its reply is 
+	 * queued with the requests so that the replies stay in order
+	 * 
+	 * Return:
+	 * the number of requests waiting to be executed
+	 */
+	private synchronized int rejectRequest() {
+		readBuffer.clear();
+		isDiscarding = true;
+		pendingRequests.add(REQUEST_TOO_LONG);
+		return pendingRequests.size();
+	}
+	
+	
+	/*
+	 * Hands the pending requests to the command executor
+	 * if they are not already being executed
+	 */
+	private synchronized void scheduleRequests() {
+		if(!isExecuting && !pendingRequests.isEmpty()) {
+			isExecuting = true;
+			eventLoop.getCommandExecutor().execute(this::executeRequests);
+		}
+	}
+	
+	
+	/*
+	 * Executes the pending requests in order
+	 * (Runs on the command executor)
+	 */
+	private void executeRequests() {
+		String request;
+		while((request = nextRequest()) != null) {
+			if(request == REQUEST_TOO_LONG) // by reference: a received request is never this instance
+				requestHandler.sendReply(REQUEST_TOO_LONG);
+			else
+				requestHandler.handleRequest(request);
+			lastActivityTime = System.currentTimeMillis();
+			requestHandler.finishRequest(hasPendingRequests());
+		}
+		
+		if(isInputClosed)
+			close();
+		else if(isReadingPaused) {
+			isReadingPaused = false;
+			eventLoop.updateInterest(this);
+		}
+	}
+	
+	
+	/*
+	 * Return:
+	 * the next request to execute, null if there is none
+	 * (in which case the session stops executing)
+	 */
+	private synchronized String nextRequest() {
+		String request = pendingRequests.poll();
+		if(request == null)
+			isExecuting = false;
+		return request;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if requests are waiting to be executed, false otherwise
+	 */
+	private synchronized boolean hasPendingRequests() {
+		return !pendingRequests.isEmpty();
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if requests are being executed, false otherwise
+	 */
+	private synchronized boolean isBusy() {
+		return isExecuting;
+	}
+	
+	
+	/*
+	 * Sends bytes on the control channel, the bytes that can't be
+	 * written right away are written by the event loop later on
+	 * 
+	 * Arguments:
+	 * data		the bytes to send
+	 * 
+	 * Throws:
+	 * IOException		if the channel can't be written
+	 */
+	public void sendBytes(byte[] data) throws IOException {
+		lastActivityTime = System.currentTimeMillis(); // the end of a long transfer counts as activity
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		synchronized(pendingReplies) {
+			if(pendingReplies.isEmpty()) {
+				channel.write(buffer);
+				if(!buffer.hasRemaining())
+					return;
+			}
+			pendingReplies.add(buffer);
+		}
+		eventLoop.updateInterest(this);
+	}
+	
+	
+	/*
+	 * Writes the pending replies
+	 * (Called by the event loop when the channel is writable)
+	 * 
+	 * Throws:
+	 * IOException		if the channel can't be written
+	 */
+	public void write() throws IOException {
+		synchronized(pendingReplies) {
+			ByteBuffer buffer;
+			while((buffer = pendingReplies.peek()) != null) {
+				channel.write(buffer);
+				if(buffer.hasRemaining())
+					return;
+				pendingReplies.poll();
+			}
+		}
+		applyInterest();
+	}
+	
+	
+	/*
+	 * Updates the interest set of the channel from the session state
+	 * (Must be called by the event loop thread)
+	 */
+	public void applyInterest() {
+		if(selectionKey == null || !selectionKey.isValid())
+			return;
+		
+		int interestOps = 0;
+		if(!isReadingPaused && !isInputClosed)
+			interestOps |= SelectionKey.OP_READ;
+		synchronized(pendingReplies) {
+			if(!pendingReplies.isEmpty())
+				interestOps |= SelectionKey.OP_WRITE;
+		}
+		
+		try {
+			selectionKey.interestOps(interestOps);
+		}catch(CancelledKeyException e) {
+			// the session has been closed in the meantime
+		}
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * time		a time in milliseconds since 1st January 1970
+	 * 
+	 * Return:
+	 * true if the session has been inactive since the given time, false otherwise
+	 * (a session with a running data transfer is never inactive)
+	 */
+	public boolean isIdleSince(long time) {
+		return lastActivityTime < time && !isBusy() && !requestHandler.isTransferActive();
+	}
+	
+	
+	/*
+	 * Closes the control connection
+	 */
+	public synchronized void close() {
+		if(isClosed)
+			return;
+		
+		isClosed = true;
+		if(isOpen)
+			FTPServerThread.getMetrics().closeSession();
+		eventLoop.unregister(this);
+		requestHandler.abortTransfer(); // nobody is left to receive the data
+		requestHandler.leaveBandwidthUser();
+		if(selectionKey != null)
+			selectionKey.cancel();
+		try {
+			channel.close();
+		}catch(IOException e) {
+			System.err.println("FTP Server Session: Could Not Close Control Connection");
+		}
+	}
+}
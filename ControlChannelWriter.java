@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Control Channel Writer Class
+ * Encodes the replies of a session into a reusable buffer,
+ * so that the replies to pipelined requests are sent together
+ * in one write instead of one small write each
+ * 
+ * Note:
+ * - The replies are encoded in UTF-8, character by character,
+ *   without creating any intermediate String or byte array
+ * - Nothing is sent until the buffer fills or flush() is called:
+ *   the session must flush before waiting for the client
+ */
+public class ControlChannelWriter {
+	// Constant values
+	private static final int BUFFER_SIZE = 0x1000; // 4 KiB
+	private static final int MAX_CHARACTER_LENGTH = 4; // The longest UTF-8 encoding of a code point
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	
+	//
+	private OutputStream output;
+	private byte[] buffer;
+	private int length;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _output		the stream of the control channel
+	 */
+	public ControlChannelWriter(OutputStream _output) {
+		output = _output;
+		buffer = new byte[BUFFER_SIZE];
+		length = 0;
+	}
+	
+	
+	/*
+	 * Adds a reply line to the buffer
+	 * 
+	 * Arguments:
+	 * reply		the reply, without its line ending (<CRLF> is added)
+	 * 
+	 * Throws:
+	 * IOException		if the buffer is full and can't be written to the control channel
+	 */
+	public synchronized void writeReply(CharSequence reply) throws IOException {
+		int replyLength = reply.length();
+		for(int i = 0; i < replyLength; i++) {
+			if(length + MAX_CHARACTER_LENGTH > buffer.length)
+				writeBuffer();
+			
+			char c = reply.charAt(i);
+			if(c < 0x80)
+				buffer[length++] = (byte) c;
+			else if(c < 0x800) {
+				buffer[length++] = (byte) (0xC0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}else if(Character.isHighSurrogate(c) && i + 1 < replyLength
+					&& Character.isLowSurrogate(reply.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, reply.charAt(++i));
+				buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			}else if(Character.isSurrogate(c))
+				buffer[length++] = '?'; // a lone surrogate can't be encoded
+			else {
+				buffer[length++] = (byte) (0xE0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		
+		if(length + 2 > buffer.length)
+			writeBuffer();
+		buffer[length++] = CR;
+		buffer[length++] = LF;
+	}
+	
+	
+	/*
+	 * Adds an already encoded reply to the buffer
+	 * (eg: a constant multi-line reply)
+	 * 
+	 * Arguments:
+	 * reply		the encoded reply, with its line endings
+	 * 
+	 * Throws:
+	 * IOException		if the buffer is full and can't be written to the control channel
+	 */
+	public synchronized void writeReply(byte[] reply) throws IOException {
+		if(length + reply.length > buffer.length)
+			writeBuffer();
+		
+		if(reply.length > buffer.length) // too large to be buffered
+			output.write(reply);
+		else {
+			System.arraycopy(reply, 0, buffer, length, reply.length);
+			length += reply.length;
+		}
+	}
+	
+	
+	/*
+	 * Sends the buffered replies to the client
+	 * 
+	 * Throws:
+	 * IOException		if the replies can't be written to the control channel
+	 */
+	public synchronized void flush() throws IOException {
+		if(length > 0) {
+			writeBuffer();
+			output.flush();
+		}
+	}
+	
+	
+	/*
+	 * Writes the buffered bytes to the control channel
+	 * 
+	 * Throws:
+	 * IOException		if the control channel can't be written
+	 */
+	private void writeBuffer() throws IOException {
+		try {
+			output.write(buffer, 0, length);
+		}finally {
+			length = 0; // a reply that can't be sent is dropped
+		}
+	}
+}
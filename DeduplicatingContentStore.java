@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Deduplicating Content Store Class
+ * Content-addressed store keeping identical bodies only once:
+ * each body is identified by its SHA-256 hash and its size, and is
+ * shared, with a reference count, by all the files having this body
+ * 
+ * Note:
+ * The bodies are kept by another store (in memory or on the local disk).
+ * The hash of an upload is only known once all of it has been received,
+ * so a duplicate is first written like any new body and then discarded
+ * in favour of the body already stored.
+ * A body stored before a restart is not deleted when its last restored
+ * reference is dropped: the directories of the tree are restored lazily,
+ * so files not restored yet may still reference it; it is deleted by the
+ * sweep of the next restart once the snapshot does not reference it anymore
+ */
+public class DeduplicatingContentStore implements ContentStore {
+	// Constant values
+	private static final String HASH_ALGORITHM = "SHA-256";
+	
+	//
+	private ContentStore backingStore;
+	private ConcurrentMap<String, Blob> blobs;
+	private AtomicLong referenceCount;
+	private AtomicLong referencedBytes; // The size of all the references, as if nothing was shared
+	private AtomicLong storedBytes; // The size of the bodies actually stored
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _backingStore		the store keeping the bodies
+	 */
+	public DeduplicatingContentStore(ContentStore _backingStore) {
+		backingStore = _backingStore;
+		blobs = new ConcurrentHashMap<String, Blob>();
+		referenceCount = new AtomicLong(0);
+		referencedBytes = new AtomicLong(0);
+		storedBytes = new AtomicLong(0);
+	}
+	
+	
+	@Override
+	public ContentWriter newWriter() throws IOException {
+		try {
+			return new DeduplicatingContentWriter(backingStore.newWriter(), MessageDigest.getInstance(HASH_ALGORITHM));
+		}catch(NoSuchAlgorithmException e) {
+			throw new IOException("Hash Algorithm " + HASH_ALGORITHM + " Not Available", e);
+		}
+	}
+	
+	
+	/*
+	 * Gives back a reference to a body stored before a restart
+	 * 
+	 * Arguments:
+	 * locator		the location of the reference: the key of the body 
+	 * 				followed by the location of the body in the backing store
+	 * size			the size (in bytes) of the body
+	 * 
+	 * Return:
+	 * a new reference to the body
+	 * 
+	 * Throws:
+	 * IOException		if the body can't be found
+	 */
+	@Override
+	public StoredContent restore(String locator, long size) throws IOException {
+		int separator = locator.indexOf(' ');
+		if(separator < 0)
+			throw new IOException("Invalid Content Locator " + locator);
+		
+		String key = locator.substring(0, separator);
+		Blob blob = blobs.get(key);
+		if(blob != null)
+			return addReference(key, blob.content, false);
+		
+		return addReference(key, backingStore.restore(locator.substring(separator + 1), size), true);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * locators		the locators of the references still used
+	 * 				(the key of a body followed by its location in the backing store)
+	 */
+	@Override
+	public void deleteUnreferenced(Set<String> locators) {
+		Set<String> backingLocators = new HashSet<String>();
+		for(String locator : locators) {
+			int separator = locator.indexOf(' ');
+			if(separator >= 0)
+				backingLocators.add(locator.substring(separator + 1));
+		}
+		backingStore.deleteUnreferenced(backingLocators);
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of distinct bodies stored
+	 */
+	public long getBlobCount() {
+		return blobs.size();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of files referencing a stored body
+	 */
+	public long getReferenceCount() {
+		return referenceCount.get();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the size (in bytes) of the bodies actually stored
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the size (in bytes) of the bodies of all the files,
+	 * as if every file had its own copy
+	 */
+	public long getReferencedBytes() {
+		return referencedBytes.get();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of bytes saved by sharing identical bodies
+	 */
+	public long getSavedBytes() {
+		return Math.max(0, referencedBytes.get() - storedBytes.get());
+	}
+	
+	
+	/*
+	 * Return:
+	 * the deduplication ratio, i.e. the referenced bytes
+	 * over the stored bytes (1 if nothing is shared)
+	 */
+	public double getDeduplicationRatio() {
+		long stored = storedBytes.get();
+		return (stored > 0) ? (double) referencedBytes.get() / stored : 1.0;
+	}
+	
+	
+	/*
+	 * Adds a reference to a body, storing the body if it is not already stored
+	 * 
+	 * Arguments:
+	 * key			the key of the body (its hash and its size)
+	 * content		the body just written in the backing store
+	 * isRestored	true if the body was stored before the restart, false otherwise
+	 * 
+	 * Return:
+	 * a new reference to the stored body
+	 */
+	private StoredContent addReference(String key, StoredContent content, boolean isRestored) {
+		boolean isNew[] = new boolean[1];
+		Blob blob = blobs.compute(key, (k, existing) -> {
+			if(existing == null) {
+				isNew[0] = true;
+				return new Blob(content, isRestored);
+			}
+			existing.references++;
+			return existing;
+		});
+		
+		if(isNew[0])
+			storedBytes.addAndGet(content.getSize());
+		else if(content != blob.content)
+			content.delete(); // the duplicate is dropped in favour of the stored body
+		
+		referenceCount.incrementAndGet();
+		referencedBytes.addAndGet(blob.content.getSize());
+		return new ContentReference(key, blob.content);
+	}
+	
+	
+	/*
+	 * Drops a reference to a body, the body is deleted
+	 * once no file references it anymore
+	 * 
+	 * Arguments:
+	 * key		the key of the body
+	 */
+	private void dropReference(String key) {
+		Blob removed[] = new Blob[1];
+		blobs.computeIfPresent(key, (k, blob) -> {
+			blob.references--;
+			if(blob.references > 0)
+				return blob;
+			removed[0] = blob;
+			return null;
+		});
+		
+		if(removed[0] != null) {
+			storedBytes.addAndGet(-removed[0].content.getSize());
+			if(!removed[0].isRestored) // files of directories not restored yet may reference it
+				removed[0].content.delete();
+		}
+	}
+	
+	
+	/*
+	 * Blob Class
+	 * A stored body and the number of files referencing it
+	 * (the count is only changed inside the atomic map operations)
+	 */
+	private static class Blob {
+		private final StoredContent content;
+		private final boolean isRestored; // Stored before the restart
+		private int references = 1;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _content		the stored body
+		 * _isRestored	true if the body was stored before the restart, false otherwise
+		 */
+		public Blob(StoredContent _content, boolean _isRestored) {
+			content = _content;
+			isRestored = _isRestored;
+		}
+	}
+	
+	
+	/*
+	 * Content Reference Class
+	 * The body of a file, shared with the other files having the same body
+	 */
+	private class ContentReference implements StoredContent {
+		private String key;
+		private StoredContent content;
+		private AtomicBoolean isDeleted;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _key			the key of the body
+		 * _content		the stored body
+		 */
+		public ContentReference(String _key, StoredContent _content) {
+			key = _key;
+			content = _content;
+			isDeleted = new AtomicBoolean(false);
+		}
+		
+		
+		@Override
+		public long getSize() {
+			return content.getSize();
+		}
+		
+		
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return content.transferTo(position, count, target);
+		}
+		
+		
+		@Override
+		public ContentReader open() throws IOException {
+			return content.open();
+		}
+		
+		
+		@Override
+		public String getLocator() {
+			String locator = content.getLocator();
+			return (locator != null) ? key + " " + locator : null;
+		}
+		
+		
+		@Override
+		public void delete() {
+			if(isDeleted.compareAndSet(false, true)) { // a reference is only dropped once
+				referenceCount.decrementAndGet();
+				referencedBytes.addAndGet(-content.getSize());
+				dropReference(key);
+			}
+		}
+	}
+	
+	
+	/*
+	 * Deduplicating Content Writer Class
+	 * Hashes the bytes of a new body while they are written to the backing store
+	 */
+	private class DeduplicatingContentWriter implements ContentWriter {
+		private ContentWriter writer;
+		private MessageDigest digest;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _writer		the writer of the backing store
+		 * _digest		the hash function
+		 */
+		public DeduplicatingContentWriter(ContentWriter _writer, MessageDigest _digest) {
+			writer = _writer;
+			digest = _digest;
+		}
+		
+		
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			digest.update(buffer.duplicate()); // the duplicate leaves the position of the buffer unchanged
+			writer.write(buffer);
+		}
+		
+		
+		/*
+		 * Note:
+		 * The appended bytes go through the hash function like the written ones
+		 */
+		@Override
+		public void append(StoredContent content, long count) throws IOException {
+			content.transferTo(0, count, new ContentWriterChannel(this));
+		}
+		
+		
+		@Override
+		public long getSize() {
+			return writer.getSize();
+		}
+		
+		
+		@Override
+		public StoredContent commit() throws IOException {
+			String key = HexFormat.of().formatHex(digest.digest()) + ":" + writer.getSize();
+			return addReference(key, writer.commit(), false);
+		}
+		
+		
+		@Override
+		public void abort() {
+			writer.abort();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/*
+ * Deduplication Check Class
+ * Checks the savings reported for the deduplication: two identical uploads
+ * and a distinct one are stored, first straight into a deduplicating store,
+ * then through "STOR" and read back from "SITE STATS", after the compressed
+ * variant of a file has been built by "MODE Z" downloads
+ * 
+ * Usage:
+ * java DeduplicationCheck
+ * (exits with status 1 if any check fails)
+ * 
+ * Note:
+ * The server thread uses the content store of the configuration,
+ * so the deduplication and the memory storage are set before it is loaded
+ */
+public class DeduplicationCheck {
+	// Constant values
+	private static final int SHARED_SIZE = 300000; // the size of the two identical uploads
+	private static final int DISTINCT_SIZE = 100000;
+	private static final long SAVED_BYTES = SHARED_SIZE;
+	private static final double RATIO = (2.0 * SHARED_SIZE + DISTINCT_SIZE) / (SHARED_SIZE + DISTINCT_SIZE);
+	private static final int COMPRESSED_DOWNLOADS = 3; // more than the downloads building a variant
+	private static final int READ_BUFFER_SIZE = 0x10000;
+	private static final String USERNAME = "Sam";
+	private static final String PASSWORD = "123456";
+	
+	//
+	private static int checkCount = 0;
+	private static int failureCount = 0;
+	
+	
+	/*
+	 * Runs the checks
+	 * 
+	 * Arguments:
+	 * args		unused
+	 */
+	public static void main(String[] args) {
+		System.setProperty("ftp.storage", "memory");
+		System.setProperty("ftp.deduplication", "true");
+		
+		try {
+			Random random = new Random(42);
+			byte[] shared = new byte[SHARED_SIZE];
+			random.nextBytes(shared);
+			byte[] distinct = new byte[DISTINCT_SIZE];
+			random.nextBytes(distinct);
+			
+			checkStore(shared, distinct);
+			checkServer(shared, distinct);
+		}catch(Exception e) {
+			System.err.println("Deduplication Check: Could Not Run Checks: " + e);
+			System.exit(1);
+		}
+		
+		System.out.println(checkCount + " checks, " + failureCount + " failures");
+		if(failureCount > 0)
+			System.exit(1);
+	}
+	
+	
+	/*
+	 * Stores the uploads in a deduplicating store, then deletes one of the identical ones
+	 * 
+	 * Arguments:
+	 * shared		the bytes of the identical uploads
+	 * distinct		the bytes of the distinct upload
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be stored
+	 */
+	private static void checkStore(byte[] shared, byte[] distinct) throws IOException {
+		DeduplicatingContentStore store = new DeduplicatingContentStore(new MemoryContentStore());
+		StoredContent first = store(store, shared);
+		store(store, shared);
+		store(store, distinct);
+		
+		check("store: 2 bodies for 3 files", store.getBlobCount() == 2 && store.getReferenceCount() == 3);
+		check("store: saved bytes", store.getSavedBytes() == SAVED_BYTES);
+		check("store: ratio", Math.abs(store.getDeduplicationRatio() - RATIO) < 0.001);
+		
+		first.delete();
+		check("store: nothing saved once a copy is deleted", store.getSavedBytes() == 0
+			  && store.getBlobCount() == 2 && store.getReferenceCount() == 2);
+	}
+	
+	
+	/*
+	 * Uploads the files with "STOR", downloads one of them compressed
+	 * until its variant is built, and reads the savings from "SITE STATS"
+	 * 
+	 * Arguments:
+	 * shared		the bytes of the identical uploads
+	 * distinct		the bytes of the distinct upload
+	 * 
+	 * Throws:
+	 * Exception		if the session can't be set up
+	 */
+	private static void checkServer(byte[] shared, byte[] distinct) throws Exception {
+		VirtualDirectory root = new VirtualDirectory("/", null, null, null, false);
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		FTPServerThread thread = new FTPServerThread(replies, null, root);
+		thread.handleRequest("USER " + USERNAME);
+		thread.handleRequest("PASS " + PASSWORD);
+		thread.handleRequest("TYPE I");
+		
+		transfer(thread, "STOR a.bin", shared);
+		transfer(thread, "STOR b.bin", shared);
+		transfer(thread, "STOR c.bin", distinct);
+		check("server: saved bytes and ratio after the uploads", getStatistics(thread, replies)
+			  .equals(String.format("%d bytes saved, %.2f ratio", SAVED_BYTES, RATIO)));
+		
+		thread.handleRequest("MODE Z");
+		for(int i = 0; i < COMPRESSED_DOWNLOADS; i++)
+			transfer(thread, "RETR a.bin", null);
+		thread.handleRequest("MODE S");
+		check("server: compressed variant built", root.downloadFile("a.bin").getCompressedVariant(false) != null);
+		check("server: variant not counted in the savings", getStatistics(thread, replies)
+			  .equals(String.format("%d bytes saved, %.2f ratio", SAVED_BYTES, RATIO)));
+	}
+	
+	
+	/*
+	 * Runs a transfer over an active data connection, and waits for its end
+	 * 
+	 * Arguments:
+	 * thread		the server thread
+	 * request		the request starting the transfer
+	 * upload		the bytes to send, null to receive (and drop) the bytes instead
+	 * 
+	 * Throws:
+	 * Exception		if the data connection can't be set up
+	 */
+	private static void transfer(FTPServerThread thread, String request, byte[] upload) throws Exception {
+		try(ServerSocket peer = new ServerSocket()) {
+			peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread transferring = new Thread(() -> {
+				try(Socket socket = peer.accept()) {
+					if(upload != null) {
+						socket.getOutputStream().write(upload);
+						return;
+					}
+					
+					InputStream in = socket.getInputStream();
+					byte[] buffer = new byte[READ_BUFFER_SIZE];
+					while(in.read(buffer) != -1)
+						continue;
+				}catch(IOException e) {
+					System.out.println("Transfer failed: " + e);
+				}
+			}, "check-data-peer");
+			transferring.start();
+			
+			thread.handleRequest("PORT " + getPortArguments(peer));
+			thread.handleRequest(request);
+			transferring.join();
+			thread.handleRequest("PWD"); // waits for the end of the transfer
+		}
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * thread		the server thread
+	 * replies		the stream receiving the replies of the thread
+	 * 
+	 * Return:
+	 * the deduplication line of the "SITE STATS" reply, without its label
+	 */
+	private static String getStatistics(FTPServerThread thread, ByteArrayOutputStream replies) {
+		replies.reset();
+		thread.handleRequest("SITE STATS");
+		thread.flushReplies();
+		String reply = replies.toString(StandardCharsets.US_ASCII);
+		int start = reply.indexOf("Deduplication: ");
+		if(start < 0)
+			return "";
+		
+		start += "Deduplication: ".length();
+		return reply.substring(start, reply.indexOf('\r', start));
+	}
+	
+	
+	/*
+	 * Stores content
+	 * 
+	 * Arguments:
+	 * store		the store
+	 * data			the bytes of the content
+	 * 
+	 * Return:
+	 * the stored content
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be stored
+	 */
+	private static StoredContent store(ContentStore store, byte[] data) throws IOException {
+		ContentWriter writer = store.newWriter();
+		writer.write(ByteBuffer.wrap(data));
+		return writer.commit();
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * peer		the socket listening for the data connection
+	 * 
+	 * Return:
+	 * the arguments of a "PORT" request to the socket
+	 */
+	private static String getPortArguments(ServerSocket peer) {
+		byte[] address = peer.getInetAddress().getAddress();
+		int port = peer.getLocalPort();
+		return (address[0] & 0xFF) + "," + (address[1] & 0xFF) + "," + (address[2] & 0xFF) + ","
+				+ (address[3] & 0xFF) + "," + (port / 256) + "," + (port % 256);
+	}
+	
+	
+	/*
+	 * Records the result of a check, and prints the failure if any
+	 * 
+	 * Arguments:
+	 * name			the name of the check
+	 * isPassed		whether the check has passed
+	 */
+	private static void check(String name, boolean isPassed) {
+		checkCount++;
+		if(isPassed)
+			return;
+		
+		failureCount++;
+		System.out.println("FAILED " + name);
+	}
+}
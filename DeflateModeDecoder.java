@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Deflate Mode Decoder Class
+ * Decompresses the deflate (zlib) stream received
+ * in the compressed transfer mode ("MODE Z")
+ * 
+ * Note:
+ * The received bytes are given with setInput(), then inflate() is called
+ * until it has nothing more to give; the input buffer must not be reused
+ * before then
+ */
+public class DeflateModeDecoder {
+	private Inflater inflater;
+	
+	
+	/*
+	 * Constructor
+	 */
+	public DeflateModeDecoder() {
+		inflater = new Inflater();
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * input		the buffer whose remaining bytes are the next compressed bytes
+	 */
+	public void setInput(ByteBuffer input) {
+		if(!inflater.finished()) // the bytes following the end of the stream are ignored
+			inflater.setInput(input);
+	}
+	
+	
+	/*
+	 * Decompresses the pending input
+	 * 
+	 * Arguments:
+	 * output		the buffer receiving the decompressed bytes
+	 * 				(cleared first, then flipped to be read)
+	 * 
+	 * Return:
+	 * true if decompressed bytes have been put in the output buffer,
+	 * false if all the pending input has been decompressed
+	 * 
+	 * Throws:
+	 * IOException		if the received bytes are not a valid deflate stream
+	 */
+	public boolean inflate(ByteBuffer output) throws IOException {
+		output.clear();
+		try {
+			while(output.hasRemaining() && !inflater.finished() && !inflater.needsInput()) {
+				if(inflater.inflate(output) == 0 && inflater.needsDictionary())
+					throw new IOException("Deflate Stream With Preset Dictionary Not Supported");
+			}
+		}catch(DataFormatException e) {
+			throw new IOException("Invalid Deflate Stream: " + e.getMessage());
+		}
+		output.flip();
+		return output.hasRemaining();
+	}
+	
+	
+	/*
+	 * Checks that the whole stream has been received
+	 * 
+	 * Throws:
+	 * IOException		if the stream is incomplete
+	 */
+	public void finish() throws IOException {
+		if(!inflater.finished() && inflater.getBytesRead() > 0)
+			throw new IOException("Truncated Deflate Stream");
+	}
+	
+	
+	/*
+	 * Frees the decompressor
+	 */
+	public void end() {
+		inflater.end();
+	}
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/*
+ * Deflate Mode Encoder Class
+ * Compresses the data sent in the compressed transfer mode ("MODE Z")
+ * into a deflate (zlib) stream
+ * 
+ * Note:
+ * As the ASCII mode encoder, the encoder is a channel so that the stored
+ * content can be transfered to it as it would be to the data channel;
+ * the compressed bytes are gathered in a buffer written to the data channel when full
+ */
+public class DeflateModeEncoder implements WritableByteChannel {
+	// Constant values
+	private static final byte[] NO_INPUT = new byte[0];
+	
+	//
+	private WritableByteChannel target;
+	private ByteBuffer output;
+	private Deflater deflater;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _target		the channel receiving the compressed bytes
+	 * _output		the buffer gathering the compressed bytes
+	 */
+	public DeflateModeEncoder(WritableByteChannel _target, ByteBuffer _output) {
+		target = _target;
+		output = _output;
+		output.clear();
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	
+	@Override
+	public int write(ByteBuffer source) throws IOException {
+		int count = source.remaining();
+		deflater.setInput(source);
+		while(!deflater.needsInput()) {
+			deflate();
+		}
+		deflater.setInput(NO_INPUT); // the deflater must not keep the source, it is reused by the caller
+		return count;
+	}
+	
+	
+	/*
+	 * Ends the deflate stream and writes the remaining compressed bytes
+	 * to the target channel
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	public void finish() throws IOException {
+		deflater.finish();
+		while(!deflater.finished()) {
+			deflate();
+		}
+		flush();
+	}
+	
+	
+	/*
+	 * Compresses the pending input into the output buffer,
+	 * the output buffer is written to the target channel when full
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	private void deflate() throws IOException {
+		if(!output.hasRemaining())
+			flush();
+		deflater.deflate(output);
+	}
+	
+	
+	/*
+	 * Writes the compressed bytes gathered so far to the target channel
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	private void flush() throws IOException {
+		output.flip();
+		while(output.hasRemaining()) {
+			target.write(output);
+		}
+		output.clear();
+	}
+	
+	
+	@Override
+	public boolean isOpen() {
+		return target.isOpen();
+	}
+	
+	
+	/*
+	 * Frees the compressor
+	 * (the stream must have been finished beforehand to be complete)
+	 */
+	@Override
+	public void close() {
+		deflater.end();
+	}
+}
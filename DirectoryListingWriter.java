@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+
+/*
+ * Directory Listing Writer Class
+ * Encodes the entries of a directory listing, in the /bin/ls format, 
+ * straight into a fixed-size buffer that is written to a channel 
+ * each time it is full
+ * 
+ * Note:
+ * The memory used to list a directory thus only depends on the size 
+ * of the buffer, not on the number of entries of the directory
+ */
+public class DirectoryListingWriter {
+	// Constant values
+	private static final int SIZE_WIDTH = 12; // the size is right aligned on 12 characters
+	private static final long MINUTE = 60000;
+	
+	//
+	private WritableByteChannel target;
+	private ByteBuffer buffer;
+	private SimpleDateFormat dateFormat;
+	private long lastDateMinute = -1; // the entries of a directory often share the same date
+	private String lastDate;
+	private byte[] digits = new byte[20];
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _target		the channel receiving the listing
+	 * _buffer		the buffer gathering the encoded entries
+	 */
+	public DirectoryListingWriter(WritableByteChannel _target, ByteBuffer _buffer) {
+		target = _target;
+		buffer = _buffer;
+		buffer.clear();
+		dateFormat = new SimpleDateFormat("MMM dd HH:mm");
+	}
+	
+	
+	/*
+	 * Writes an entry of the listing:
+	 * "AccessRights Owner         size modificationDate name\r\n"
+	 * 
+	 * Arguments:
+	 * accessRights			the access rights of the file or directory
+	 * owner				the owner of the file or directory
+	 * size					the size of the file or directory
+	 * modificationTime		the last time the file or directory was modified
+	 * name					the name of the file or directory
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	public void writeEntry(String accessRights, String owner, long size, long modificationTime, String name) 
+			throws IOException {
+		putString(accessRights);
+		putByte((byte) ' ');
+		putString(owner);
+		putByte((byte) ' ');
+		putSize(size);
+		putByte((byte) ' ');
+		putString(formatDate(modificationTime));
+		putByte((byte) ' ');
+		putString(name);
+		putByte((byte) '\r');
+		putByte((byte) '\n');
+	}
+	
+	
+	/*
+	 * Writes the entries encoded so far to the target channel
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * time		a time in milliseconds since 1st January 1970
+	 * 
+	 * Return:
+	 * the time in the "MMM dd HH:mm" format
+	 */
+	private String formatDate(long time) {
+		long minute = Math.floorDiv(time, MINUTE);
+		if(minute != lastDateMinute) {
+			lastDate = dateFormat.format(time);
+			lastDateMinute = minute;
+		}
+		return lastDate;
+	}
+	
+	
+	/*
+	 * Encodes a size, right aligned on SIZE_WIDTH characters
+	 * 
+	 * Arguments:
+	 * size		the size to encode
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	private void putSize(long size) throws IOException {
+		int length = 0;
+		long value = Math.max(0, size);
+		do {
+			digits[length++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}while(value > 0);
+		
+		for(int i = length; i < SIZE_WIDTH; i++) {
+			putByte((byte) ' ');
+		}
+		while(length > 0) {
+			putByte(digits[--length]);
+		}
+	}
+	
+	
+	/*
+	 * Encodes an ASCII string
+	 * 
+	 * Arguments:
+	 * string		the string to encode
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	private void putString(String string) throws IOException {
+		for(int i = 0; i < string.length(); i++) {
+			putByte((byte) string.charAt(i));
+		}
+	}
+	
+	
+	/*
+	 * Encodes a byte, writing the buffer to the target channel first if it is full
+	 * 
+	 * Arguments:
+	 * b		the byte to encode
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 */
+	private void putByte(byte b) throws IOException {
+		if(!buffer.hasRemaining())
+			flush();
+		buffer.put(b);
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Disk Content Class
+ * Content of a virtual file kept in a file on the local disk
+ * 
+ * Note:
+ * - The content is sent with FileChannel.transferTo so that, when the 
+ *   target is a socket channel, the bytes go from the page cache to 
+ *   the socket (sendfile) without ever being copied into the Java heap
+ * - A reader keeps the file open for the whole transfer, and the file of a
+ *   deleted content is only removed once its last reader is closed, so that
+ *   the download of a file removed or replaced meanwhile still completes
+ */
+public class DiskContent implements StoredContent {
+	private Path path;
+	private long size;
+	private int readerCount = 0; // guarded by this content
+	private boolean isDeleted = false; // guarded by this content
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _path		the file holding the content
+	 * _size		the size (in bytes) of the content
+	 */
+	public DiskContent(Path _path, long _size) {
+		path = _path;
+		size = _size;
+	}
+	
+	
+	@Override
+	public long getSize() {
+		return size;
+	}
+	
+	
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		try(ContentReader reader = open()) {
+			return reader.transferTo(position, count, target);
+		}
+	}
+	
+	
+	@Override
+	public synchronized ContentReader open() throws IOException {
+		if(isDeleted)
+			throw new IOException("Content " + getLocator() + " Has Been Deleted");
+		
+		FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+		readerCount++;
+		return new DiskContentReader(fileChannel);
+	}
+	
+	
+	@Override
+	public String getLocator() {
+		return path.getFileName().toString();
+	}
+	
+	
+	/*
+	 * Note:
+	 * The file is only removed once the running readers are closed
+	 */
+	@Override
+	public void delete() {
+		synchronized(this) {
+			if(isDeleted)
+				return;
+			isDeleted = true;
+			if(readerCount > 0)
+				return;
+		}
+		removeFile();
+	}
+	
+	
+	/*
+	 * Ends a reading, removing the file if the content 
+	 * has been deleted and this was its last reader
+	 */
+	private void closeReader() {
+		synchronized(this) {
+			readerCount--;
+			if(!isDeleted || readerCount > 0)
+				return;
+		}
+		removeFile();
+	}
+	
+	
+	/*
+	 * Removes the file holding the content
+	 */
+	private void removeFile() {
+		try {
+			Files.deleteIfExists(path);
+		}catch(IOException e) {
+			System.err.println("Disk Content: Could Not Delete " + path);
+		}
+	}
+	
+	
+	/*
+	 * Disk Content Reader Class
+	 * Reads the content through a file channel opened once for the whole transfer
+	 */
+	private class DiskContentReader implements ContentReader {
+		private FileChannel fileChannel;
+		private boolean isClosed = false;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _fileChannel		the channel of the file holding the content
+		 */
+		public DiskContentReader(FileChannel _fileChannel) {
+			fileChannel = _fileChannel;
+		}
+		
+		
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			long end = position + Math.max(0, Math.min(count, size - position)); // count may be Long.MAX_VALUE
+			long transfered = 0;
+			while(position + transfered < end) {
+				// transferTo may transfer less bytes than requested
+				transfered += fileChannel.transferTo(position + transfered, end - position - transfered, target);
+			}
+			return transfered;
+		}
+		
+		
+		@Override
+		public void close() {
+			if(isClosed) // a reader is only counted out once
+				return;
+			isClosed = true;
+			
+			try {
+				fileChannel.close();
+			}catch(IOException e) {
+				System.err.println("Disk Content: Could Not Close " + path);
+			}
+			closeReader();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/*
+ * Disk Content Check Class
+ * Checks that a file of the disk store removed while it is being downloaded
+ * is still sent whole: the content is deleted while a reader is open, then a
+ * file is removed by "DELE" from a second session during its "RETR"
+ * 
+ * Usage:
+ * java DiskContentCheck
+ * (exits with status 1 if any check fails)
+ */
+public class DiskContentCheck {
+	// Constant values
+	private static final int DOWNLOADED_FILE_SIZE = 40 * 0x100000; // 40 MiB, many transfer chunks
+	private static final int READ_BUFFER_SIZE = 0x10000;
+	private static final String USERNAME = "Sam";
+	private static final String PASSWORD = "123456";
+	
+	//
+	private static int checkCount = 0;
+	private static int failureCount = 0;
+	
+	
+	/*
+	 * Runs the checks
+	 * 
+	 * Arguments:
+	 * args		unused
+	 */
+	public static void main(String[] args) {
+		Path directory = null;
+		try {
+			directory = Files.createTempDirectory("disk-content-check");
+			DiskContentStore store = new DiskContentStore(directory);
+			byte[] data = new byte[DOWNLOADED_FILE_SIZE];
+			new Random(42).nextBytes(data);
+			
+			checkDeleteWhileReading(store, directory, data);
+			checkDeleteDuringDownload(store, directory, data);
+		}catch(Exception e) {
+			System.err.println("Disk Content Check: Could Not Run Checks: " + e);
+			System.exit(1);
+		}finally {
+			deleteDirectory(directory);
+		}
+		
+		System.out.println(checkCount + " checks, " + failureCount + " failures");
+		if(failureCount > 0)
+			System.exit(1);
+	}
+	
+	
+	/*
+	 * Deletes a content while a reader is open, and reads it afterwards
+	 * 
+	 * Arguments:
+	 * store		the disk store
+	 * directory	the directory of the store
+	 * data			the bytes of the content
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be stored
+	 */
+	private static void checkDeleteWhileReading(DiskContentStore store, Path directory, byte[] data) throws IOException {
+		StoredContent content = store(store, data);
+		Path path = directory.resolve(content.getLocator());
+		
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		try(ContentReader reader = content.open()) {
+			reader.transferTo(0, data.length / 2, Channels.newChannel(read));
+			content.delete();
+			check("file kept while a reader is open", Files.exists(path));
+			reader.transferTo(data.length / 2, Long.MAX_VALUE, Channels.newChannel(read));
+		}
+		check("content read whole after its deletion", Arrays.equals(data, read.toByteArray()));
+		check("file removed once its last reader is closed", !Files.exists(path));
+		
+		try(ContentReader reader = content.open()) {
+			check("deleted content can't be opened", false);
+		}catch(IOException e) {
+			check("deleted content can't be opened", true);
+		}
+	}
+	
+	
+	/*
+	 * Removes a file with "DELE" from a second session while the first one downloads it
+	 * 
+	 * Arguments:
+	 * store		the disk store
+	 * directory	the directory of the store
+	 * data			the bytes of the file
+	 * 
+	 * Throws:
+	 * Exception		if the sessions can't be set up
+	 */
+	private static void checkDeleteDuringDownload(DiskContentStore store, Path directory, byte[] data) throws Exception {
+		StoredContent content = store(store, data);
+		Path path = directory.resolve(content.getLocator());
+		VirtualDirectory root = new VirtualDirectory("/", null, null, null, false);
+		root.uploadFile(new VirtualFile<StoredContent>("big.bin", content, content.getSize()));
+		
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		FTPServerThread downloader = newLoggedInThread(root, replies);
+		FTPServerThread remover = newLoggedInThread(root, OutputStream.nullOutputStream());
+		
+		try(ServerSocket peer = new ServerSocket()) {
+			peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			CountDownLatch isDownloading = new CountDownLatch(1);
+			ByteArrayOutputStream downloaded = new ByteArrayOutputStream(data.length);
+			Thread reading = new Thread(() -> {
+				try(Socket socket = peer.accept()) {
+					InputStream in = socket.getInputStream();
+					byte[] buffer = new byte[READ_BUFFER_SIZE];
+					int length;
+					while((length = in.read(buffer)) != -1) {
+						downloaded.write(buffer, 0, length);
+						isDownloading.countDown();
+					}
+				}catch(IOException e) {
+					System.out.println("Download failed: " + e);
+				}finally {
+					isDownloading.countDown();
+				}
+			}, "check-data-peer");
+			reading.start();
+			
+			downloader.handleRequest("TYPE I");
+			downloader.handleRequest("PORT " + getPortArguments(peer));
+			downloader.handleRequest("RETR big.bin");
+			isDownloading.await();
+			remover.handleRequest("DELE big.bin");
+			check("file removed from the directory", root.downloadFile("big.bin") == null);
+			
+			reading.join();
+			downloader.handleRequest("PWD"); // waits for the end of the transfer
+			check("file downloaded whole despite its removal", Arrays.equals(data, downloaded.toByteArray()));
+			check("download completed", replies.toString(StandardCharsets.US_ASCII).contains("226 "));
+			check("file removed once downloaded", !Files.exists(path));
+		}
+	}
+	
+	
+	/*
+	 * Stores content
+	 * 
+	 * Arguments:
+	 * store		the store
+	 * data			the bytes of the content
+	 * 
+	 * Return:
+	 * the stored content
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be stored
+	 */
+	private static StoredContent store(ContentStore store, byte[] data) throws IOException {
+		ContentWriter writer = store.newWriter();
+		writer.write(ByteBuffer.wrap(data));
+		return writer.commit();
+	}
+	
+	
+	/*
+	 * Creates a server thread whose client is logged in
+	 * 
+	 * Arguments:
+	 * root		the root directory of the server
+	 * out		the stream receiving the replies
+	 * 
+	 * Return:
+	 * the server thread
+	 * 
+	 * Throws:
+	 * IOException		if the server thread can't be created
+	 */
+	private static FTPServerThread newLoggedInThread(VirtualDirectory root, OutputStream out) throws IOException {
+		FTPServerThread thread = new FTPServerThread(out, null, root);
+		thread.handleRequest("USER " + USERNAME);
+		thread.handleRequest("PASS " + PASSWORD);
+		return thread;
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * peer		the socket listening for the data connection
+	 * 
+	 * Return:
+	 * the arguments of a "PORT" request to the socket
+	 */
+	private static String getPortArguments(ServerSocket peer) {
+		byte[] address = peer.getInetAddress().getAddress();
+		int port = peer.getLocalPort();
+		return (address[0] & 0xFF) + "," + (address[1] & 0xFF) + "," + (address[2] & 0xFF) + ","
+				+ (address[3] & 0xFF) + "," + (port / 256) + "," + (port % 256);
+	}
+	
+	
+	/*
+	 * Records the result of a check, and prints the failure if any
+	 * 
+	 * Arguments:
+	 * name			the name of the check
+	 * isPassed		whether the check has passed
+	 */
+	private static void check(String name, boolean isPassed) {
+		checkCount++;
+		if(isPassed)
+			return;
+		
+		failureCount++;
+		System.out.println("FAILED " + name);
+	}
+	
+	
+	/*
+	 * Deletes the directory of the store and the files left in it
+	 * 
+	 * Arguments:
+	 * directory		the directory, null if it hasn't been created
+	 */
+	private static void deleteDirectory(Path directory) {
+		if(directory == null)
+			return;
+		
+		try(Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}catch(IOException e) {
+			System.err.println("Disk Content Check: Could Not Delete " + directory);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/*
+ * Disk Content Store Class
+ * Keeps the bodies of the virtual files in files of a directory of the local disk
+ */
+public class DiskContentStore implements ContentStore {
+	// Constant values
+	private static final String PREFIX = "content-";
+	private static final String SUFFIX = ".dat";
+	private static final long TIMESTAMP_GRANULARITY = 2000; // ms, the coarsest file timestamps
+	
+	//
+	private Path directory;
+	private long openingTime; // The files modified since then have been written by this store
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _directory		the directory holding the files
+	 * 
+	 * Throws:
+	 * IOException		if the directory can't be created
+	 */
+	public DiskContentStore(Path _directory) throws IOException {
+		directory = Files.createDirectories(_directory);
+		openingTime = System.currentTimeMillis();
+	}
+	
+	
+	@Override
+	public ContentWriter newWriter() throws IOException {
+		return new DiskContentWriter(Files.createTempFile(directory, PREFIX, SUFFIX));
+	}
+	
+	
+	@Override
+	public StoredContent restore(String locator, long size) throws IOException {
+		Path path = directory.resolve(locator).normalize();
+		if(!directory.equals(path.getParent()) || !Files.isRegularFile(path) || Files.size(path) != size)
+			throw new IOException("Content " + locator + " Can't Be Found");
+		
+		return new DiskContent(path, size);
+	}
+	
+	
+	/*
+	 * Note:
+	 * The files written since the store was opened are kept: they belong to
+	 * the uploads and the compressed variants of the running server
+	 */
+	@Override
+	public void deleteUnreferenced(Set<String> locators) {
+		long limit = openingTime - TIMESTAMP_GRANULARITY;
+		try(DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for(Path path : paths) {
+				if(!locators.contains(path.getFileName().toString()) 
+						&& Files.getLastModifiedTime(path).toMillis() < limit)
+					Files.deleteIfExists(path);
+			}
+		}catch(IOException e) {
+			System.err.println("Disk Content Store: Could Not Delete Unused Contents: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Syncs a directory, so that the files created in it survive a crash
+	 * 
+	 * Arguments:
+	 * directory		the directory
+	 * 
+	 * Throws:
+	 * IOException		if the directory can't be synced
+	 */
+	private static void syncDirectory(Path directory) throws IOException {
+		try(FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		}
+	}
+	
+	
+	/*
+	 * Disk Content Writer Class
+	 * Appends the bytes of a new disk content to its file
+	 */
+	private static class DiskContentWriter implements ContentWriter {
+		private Path path;
+		private FileChannel fileChannel;
+		private long size = 0;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _path		the (empty) file receiving the content
+		 * 
+		 * Throws:
+		 * IOException		if the file can't be opened
+		 */
+		public DiskContentWriter(Path _path) throws IOException {
+			path = _path;
+			fileChannel = FileChannel.open(path, StandardOpenOption.WRITE);
+		}
+		
+		
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			size += buffer.remaining();
+			while(buffer.hasRemaining()) {
+				fileChannel.write(buffer);
+			}
+		}
+		
+		
+		/*
+		 * Note:
+		 * The bytes of disk content are copied from file to file by the kernel, 
+		 * without going through the Java heap
+		 */
+		@Override
+		public void append(StoredContent content, long count) throws IOException {
+			size += content.transferTo(0, count, fileChannel);
+		}
+		
+		
+		@Override
+		public long getSize() {
+			return size;
+		}
+		
+		
+		/*
+		 * Note:
+		 * The content and its directory entry are synced before the content 
+		 * is returned, so that a logged upload never names a file lost by a crash
+		 */
+		@Override
+		public StoredContent commit() throws IOException {
+			fileChannel.force(true);
+			fileChannel.close();
+			syncDirectory(path.getParent());
+			return new DiskContent(path, size);
+		}
+		
+		
+		@Override
+		public void abort() {
+			try {
+				fileChannel.close();
+				Files.deleteIfExists(path);
+			}catch(IOException e) {
+				System.err.println("Disk Content Store: Could Not Delete " + path);
+			}
+		}
+	}
+}
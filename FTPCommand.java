@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/*
+ * FTP Command Enumeration
+ * The commands handled by the server,
+ * looked up straight from the characters of a request
+ * 
+ * Note:
+ * - Each command is packed into an int (one byte per character, upper-cased),
+ *   the packed codes are sorted once so that a command is found by a binary search
+ *   without creating any String
+ * - The commands are case-insensitive (See RFC959)
+ * - Only "ABOR", "STAT" and "NOOP" are handled while a data transfer runs,
+ *   the other commands wait for the end of the transfer
+ */
+public enum FTPCommand {
+	USER(true),
+	PASS(true),
+	SYST(false),
+	PORT(true),
+	PASV(false),
+	TYPE(true),
+	MODE(true),
+	CDUP(false),
+	CWD(true),
+	LIST(false),
+	PWD(false),
+	FEAT(false),
+	RETR(true),
+	STOR(true),
+	DELE(true),
+	RNFR(true),
+	RNTO(true),
+	MDTM(true),
+	SIZE(true),
+	REST(true),
+	RANG(true),
+	SITE(true),
+	ABOR(false, true),
+	STAT(false, true),
+	NOOP(false, true);
+	
+	// Constant values
+	private static final int MAX_COMMAND_LENGTH = 4;
+	private static final int[] SORTED_CODES = new int[values().length];
+	private static final FTPCommand[] COMMANDS_BY_CODE = new FTPCommand[values().length];
+	
+	static {
+		FTPCommand[] commands = values();
+		int[] codes = new int[commands.length];
+		for(int i = 0; i < commands.length; i++) {
+			codes[i] = pack(commands[i].name(), commands[i].name().length());
+		}
+		
+		System.arraycopy(codes, 0, SORTED_CODES, 0, codes.length);
+		Arrays.sort(SORTED_CODES);
+		for(int i = 0; i < commands.length; i++) {
+			COMMANDS_BY_CODE[Arrays.binarySearch(SORTED_CODES, codes[i])] = commands[i];
+		}
+	}
+	
+	//
+	private boolean isArgumentRequired;
+	private boolean isServedDuringTransfer;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _isArgumentRequired		true if the command can't be handled without argument
+	 */
+	private FTPCommand(boolean _isArgumentRequired) {
+		this(_isArgumentRequired, false);
+	}
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _isArgumentRequired			true if the command can't be handled without argument
+	 * _isServedDuringTransfer		true if the command is handled while a data transfer runs
+	 */
+	private FTPCommand(boolean _isArgumentRequired, boolean _isServedDuringTransfer) {
+		isArgumentRequired = _isArgumentRequired;
+		isServedDuringTransfer = _isServedDuringTransfer;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if the command can't be handled without argument, false otherwise
+	 */
+	public boolean isArgumentRequired() {
+		return isArgumentRequired;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if the command is handled while a data transfer runs,
+	 * false if it must wait for the end of the transfer
+	 */
+	public boolean isServedDuringTransfer() {
+		return isServedDuringTransfer;
+	}
+	
+	
+	/*
+	 * Finds the command a request starts with
+	 * 
+	 * Arguments:
+	 * request		the request
+	 * end			the position following the last character of the command in the request
+	 * 
+	 * Return:
+	 * the command, null if it is not handled by the server
+	 */
+	public static FTPCommand lookup(CharSequence request, int end) {
+		int code = pack(request, end);
+		if(code == 0)
+			return null;
+		
+		int index = Arrays.binarySearch(SORTED_CODES, code);
+		return (index >= 0) ? COMMANDS_BY_CODE[index] : null;
+	}
+	
+	
+	/*
+	 * Packs the first characters of a string into an int
+	 * 
+	 * Arguments:
+	 * characters		the string
+	 * length			the number of characters to pack
+	 * 
+	 * Return:
+	 * the upper-cased characters, one per byte,
+	 * 0 if there are more than 4 of them or if one of them is not a letter
+	 */
+	private static int pack(CharSequence characters, int length) {
+		if(length > MAX_COMMAND_LENGTH)
+			return 0;
+		
+		int code = 0;
+		for(int i = 0; i < length; i++) {
+			char c = characters.charAt(i);
+			if(c >= 'a' && c <= 'z')
+				c -= 'a' - 'A';
+			else if(c < 'A' || c > 'Z')
+				return 0;
+			code = (code << 8) | c;
+		}
+		return code;
+	}
+}
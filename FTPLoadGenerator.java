@@ -0,0 +1,648 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * FTP Load Generator Class
+ * Drives concurrent FTP sessions against a running server, each running
+ * a scripted mix of operations, and reports the throughput and the latency
+ * percentiles (p50, p99, p99.9) of each command and each transfer
+ * 
+ * Usage:
+ * java FTPLoadGenerator [name=value...]
+ * 
+ * where the options are - host (localhost), port (2151): the address of the server
+ * 						 - user (Sam), password (123456): the account the sessions log in with
+ * 						 - sessions (16): the number of concurrent sessions
+ * 						 - duration (30), warmup (5): the measured and the warm-up times, in seconds
+ * 						 - mix (RETR:50,LIST:20,STOR:10,RENAME:10,DELE:10): the operations of the
+ * 						   sessions with their weights, among LIST, RETR, STOR, RENAME (RNFR/RNTO),
+ * 						   DELE and LOGIN (a new session: connection, USER and PASS)
+ * 						 - size (65536): the size (in bytes) of the uploaded and downloaded files
+ * 						 - operations (0): the number of operations after which a session
+ * 						   reconnects, 0 to keep the sessions connected
+ * 
+ * Note:
+ * - Every command is timed from its sending to its final reply; every transfer
+ *   (PASV excluded) from the sending of its command to the "226" reply
+ * - The sessions upload their own files ("load-<session>-<n>.bin"), rename and delete
+ *   them, and all download a seed file uploaded before the run
+ * - The data connections are passive ones, made to the host of the control connection
+ *   whatever the address the server advertises
+ */
+public class FTPLoadGenerator {
+	// Constant values
+	private static final String SEED_FILE = "load-seed.bin";
+	private static final String[] OPERATIONS = {"LIST", "RETR", "STOR", "RENAME", "DELE", "LOGIN"};
+	private static final int TIMEOUT = 60000;
+	private static final long GRACE_TIME = 5000000000L; // ns, for the last operations to end
+	
+	//
+	private String host;
+	private int port;
+	private String user;
+	private String password;
+	private int sessionCount;
+	private long duration; // ns
+	private long warmup; // ns
+	private int fileSize;
+	private int operationsPerSession;
+	private int[] weights; // The weight of each operation, in the order of OPERATIONS
+	private Map<String, Statistics> statistics; // The statistics of each command and transfer
+	private volatile long measureStart; // The time (System.nanoTime) from which the operations are measured
+	private volatile long measureEnd;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * options		the options, by name
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if an option is invalid
+	 */
+	private FTPLoadGenerator(Map<String, String> options) {
+		host = options.getOrDefault("host", "localhost");
+		port = Integer.parseInt(options.getOrDefault("port", "2151"));
+		user = options.getOrDefault("user", "Sam");
+		password = options.getOrDefault("password", "123456");
+		sessionCount = Integer.parseInt(options.getOrDefault("sessions", "16"));
+		duration = Long.parseLong(options.getOrDefault("duration", "30")) * 1000000000L;
+		warmup = Long.parseLong(options.getOrDefault("warmup", "5")) * 1000000000L;
+		fileSize = Integer.parseInt(options.getOrDefault("size", "65536"));
+		operationsPerSession = Integer.parseInt(options.getOrDefault("operations", "0"));
+		weights = parseMix(options.getOrDefault("mix", "RETR:50,LIST:20,STOR:10,RENAME:10,DELE:10"));
+		if(sessionCount < 1 || duration <= 0 || warmup < 0 || fileSize < 0 || operationsPerSession < 0)
+			throw new IllegalArgumentException("Negative Or Zero Option");
+		
+		statistics = new LinkedHashMap<String, Statistics>();
+		for(String name : new String[] {"CONNECT", "USER", "PASS", "PASV", "RNFR", "RNTO", "DELE",
+				"LIST (transfer)", "RETR (transfer)", "STOR (transfer)"})
+			statistics.put(name, new Statistics());
+	}
+	
+	
+	/*
+	 * Runs the load
+	 * 
+	 * Arguments:
+	 * args		the options, as "name=value"
+	 */
+	public static void main(String[] args) {
+		try {
+			Map<String, String> options = new LinkedHashMap<String, String>();
+			for(String arg : args) {
+				int separator = arg.indexOf('=');
+				if(separator <= 0)
+					throw new IllegalArgumentException("Option " + arg + " Is Not name=value");
+				options.put(arg.substring(0, separator), arg.substring(separator + 1));
+			}
+			new FTPLoadGenerator(options).run();
+			
+		}catch(IllegalArgumentException e) {
+			System.err.println("FTP Load Generator Died: Invalid Option; " + e.getMessage());
+		}catch(Exception e) {
+			System.err.println("FTP Load Generator Died: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Uploads the seed file, runs the sessions for the warm-up and
+	 * the measured times, then prints the report
+	 * 
+	 * Throws:
+	 * Exception		if the seed file can't be uploaded
+	 */
+	private void run() throws Exception {
+		Session seeder = new Session(-1);
+		seeder.connect();
+		seeder.store(SEED_FILE, true);
+		seeder.close();
+		
+		long start = System.nanoTime();
+		measureStart = start + warmup;
+		measureEnd = measureStart + duration;
+		
+		CountDownLatch finished = new CountDownLatch(sessionCount);
+		List<Session> sessions = new ArrayList<Session>();
+		for(int i = 0; i < sessionCount; i++) {
+			Session session = new Session(i);
+			sessions.add(session);
+			Thread thread = new Thread(() -> {
+				try {
+					session.run();
+				}finally {
+					finished.countDown();
+				}
+			}, "load-session-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		System.out.println("Running " + sessionCount + " sessions against " + host + ":" + port
+				+ " (" + warmup / 1000000000L + " s warm-up, " + duration / 1000000000L + " s measured)");
+		
+		long waitingSessions = 0; // the sessions not served by the server (eg: all its threads are busy)
+		long remainingTime = measureEnd - System.nanoTime();
+		if(!finished.await(remainingTime, TimeUnit.NANOSECONDS)) {
+			for(Session session : sessions) {
+				if(session.isWaitingForGreeting)
+					waitingSessions++;
+			}
+		}
+		
+		// the sessions still blocked at the end are cut off
+		long stuckSessions = 0;
+		if(!finished.await(GRACE_TIME, TimeUnit.NANOSECONDS)) {
+			stuckSessions = finished.getCount();
+			for(Session session : sessions)
+				session.close();
+			finished.await();
+		}
+		printReport();
+		if(waitingSessions > 0)
+			System.out.println(waitingSessions + " Session(s) Waiting For The Greeting Of The Server At The End Of The Run");
+		if(stuckSessions > 0)
+			System.out.println(stuckSessions + " Session(s) Still Blocked At The End Of The Run");
+	}
+	
+	
+	/*
+	 * Prints the throughput and the latencies of each command and transfer
+	 */
+	private void printReport() {
+		double seconds = duration / 1e9;
+		long totalCount = 0;
+		long totalBytes = 0;
+		
+		System.out.println(String.format("%-16s %9s %9s %9s %10s %9s %9s %9s %9s %7s", "Operation", "count",
+				"ops/s", "MB/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+		for(Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+			Statistics operation = entry.getValue();
+			LatencyHistogram latencies = operation.latencies;
+			if(latencies.getCount() == 0 && operation.errors.get() == 0)
+				continue;
+			
+			totalCount += latencies.getCount();
+			totalBytes += operation.bytes.get();
+			System.out.println(String.format("%-16s %9d %9.1f %9s %10.3f %9.3f %9.3f %9.3f %9.3f %7d", entry.getKey(),
+					latencies.getCount(), latencies.getCount() / seconds,
+					(operation.bytes.get() > 0) ? String.format("%.1f", operation.bytes.get() / seconds / 1e6) : "-",
+					latencies.getMean() / 1e6, latencies.getPercentile(50) / 1e6, latencies.getPercentile(99) / 1e6,
+					latencies.getPercentile(99.9) / 1e6, latencies.getMax() / 1e6, operation.errors.get()));
+		}
+		System.out.println(String.format("Total: %.1f commands/s, %.1f MB/s", totalCount / seconds,
+				totalBytes / seconds / 1e6));
+	}
+	
+	
+	/*
+	 * Parses the mix of operations
+	 * 
+	 * Arguments:
+	 * mix		the operations and their weights, as "NAME:weight,NAME:weight..."
+	 * 
+	 * Return:
+	 * the weight of each operation, in the order of OPERATIONS
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the mix is invalid
+	 */
+	private static int[] parseMix(String mix) {
+		int[] mixWeights = new int[OPERATIONS.length];
+		int total = 0;
+		for(String item : mix.split(",")) {
+			String[] pieces = item.trim().split(":");
+			int operation = List.of(OPERATIONS).indexOf(pieces[0].toUpperCase());
+			if(operation < 0 || pieces.length != 2)
+				throw new IllegalArgumentException("Unknown Operation " + item + " In Mix");
+			mixWeights[operation] = Integer.parseInt(pieces[1]);
+			if(mixWeights[operation] < 0)
+				throw new IllegalArgumentException("Negative Weight In Mix");
+			total += mixWeights[operation];
+		}
+		if(total == 0)
+			throw new IllegalArgumentException("Empty Mix");
+		return mixWeights;
+	}
+	
+	
+	/*
+	 * Statistics Class
+	 * Latencies, bytes and errors of a command or a transfer
+	 */
+	private static class Statistics {
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final AtomicLong bytes = new AtomicLong(0);
+		private final AtomicLong errors = new AtomicLong(0);
+	}
+	
+	
+	/*
+	 * Reply Exception Class
+	 * Unexpected reply of the server
+	 */
+	private static class ReplyException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * command		the command
+		 * reply		the reply of the server
+		 */
+		public ReplyException(String command, String reply) {
+			super(command + ": " + reply);
+		}
+	}
+	
+	
+	/*
+	 * Session Class
+	 * A client session running operations drawn from the mix until the end of the run
+	 */
+	private class Session {
+		private int id;
+		private Random random;
+		private byte[] data;
+		private volatile Socket controlSocket; // Closed by the main thread if still blocked at the end
+		private volatile boolean isWaitingForGreeting = false;
+		private BufferedReader in;
+		private OutputStream out;
+		private List<String> files = new ArrayList<String>(); // The files uploaded by the session
+		private int fileCounter = 0;
+		private int operationCount = 0; // The operations since the session has logged in
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _id		the number of the session
+		 */
+		public Session(int _id) {
+			id = _id;
+			random = new Random(_id);
+			data = new byte[fileSize];
+			random.nextBytes(data);
+		}
+		
+		
+		/*
+		 * Runs operations until the end of the run, reconnecting after a failure
+		 */
+		public void run() {
+			while(System.nanoTime() < measureEnd) {
+				try {
+					if(controlSocket == null)
+						connect();
+					runOperation(drawOperation());
+				}catch(IOException e) {
+					close(); // the session starts again with a new connection
+				}
+			}
+			close();
+		}
+		
+		
+		/*
+		 * Return:
+		 * an operation drawn from the mix, according to the weights
+		 */
+		private String drawOperation() {
+			int total = 0;
+			for(int weight : weights)
+				total += weight;
+			
+			int draw = random.nextInt(total);
+			for(int i = 0; i < weights.length; i++) {
+				draw -= weights[i];
+				if(draw < 0)
+					return OPERATIONS[i];
+			}
+			return OPERATIONS[0];
+		}
+		
+		
+		/*
+		 * Runs an operation
+		 * 
+		 * Arguments:
+		 * operation		the name of the operation
+		 * 
+		 * Throws:
+		 * IOException		if the connection fails
+		 */
+		private void runOperation(String operation) throws IOException {
+			if(operationsPerSession > 0 && operationCount >= operationsPerSession) {
+				close();
+				connect();
+			}
+			operationCount++;
+			
+			switch(operation) {
+				case "LIST": retrieve("LIST", null);
+					break;
+				case "RETR": retrieve("RETR", SEED_FILE);
+					break;
+				case "STOR": store(newFilename(), false);
+					break;
+				case "RENAME":
+					if(files.isEmpty())
+						store(newFilename(), false);
+					else {
+						String oldFilename = files.remove(random.nextInt(files.size()));
+						String newFilename = newFilename();
+						if(command("RNFR", oldFilename, "350") && command("RNTO", newFilename, "250"))
+							files.add(newFilename);
+					}
+					break;
+				case "DELE":
+					if(files.isEmpty())
+						store(newFilename(), false);
+					else
+						command("DELE", files.remove(random.nextInt(files.size())), "250");
+					break;
+				case "LOGIN":
+					close();
+					connect();
+					break;
+			}
+		}
+		
+		
+		/*
+		 * Connects and logs in
+		 * 
+		 * Throws:
+		 * IOException		if the connection or the login fails
+		 */
+		public void connect() throws IOException {
+			long start = System.nanoTime();
+			Socket socket = new Socket();
+			controlSocket = socket;
+			try {
+				socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+			}catch(IOException e) {
+				record("CONNECT", start, 0, false);
+				throw e;
+			}
+			socket.setSoTimeout(TIMEOUT);
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+			out = socket.getOutputStream();
+			isWaitingForGreeting = true;
+			String greeting;
+			try {
+				greeting = readReply();
+			}finally {
+				isWaitingForGreeting = false;
+			}
+			record("CONNECT", start, 0, greeting.startsWith("220"));
+			if(!greeting.startsWith("220"))
+				throw new ReplyException("CONNECT", greeting);
+			
+			operationCount = 0;
+			if(!command("USER", user, "331") || !command("PASS", password, "230"))
+				throw new IOException("Login Failed");
+			sendCommand("TYPE", "I");
+			readReply();
+		}
+		
+		
+		/*
+		 * Sends a command and checks its reply
+		 * 
+		 * Arguments:
+		 * command			the command
+		 * argument			the argument of the command
+		 * expectedCode		the code of the expected reply
+		 * 
+		 * Return:
+		 * true if the reply is the expected one, false otherwise
+		 * 
+		 * Throws:
+		 * IOException		if the connection fails
+		 */
+		private boolean command(String command, String argument, String expectedCode) throws IOException {
+			long start = System.nanoTime();
+			sendCommand(command, argument);
+			boolean isExpected = readReply().startsWith(expectedCode);
+			record(command, start, 0, isExpected);
+			return isExpected;
+		}
+		
+		
+		/*
+		 * Downloads a file or a listing through a passive data connection
+		 * 
+		 * Arguments:
+		 * command		"RETR" or "LIST"
+		 * argument		the argument of the command, null if none
+		 * 
+		 * Throws:
+		 * IOException		if the connection fails
+		 */
+		private void retrieve(String command, String argument) throws IOException {
+			try(Socket dataSocket = openDataConnection()) {
+				long start = System.nanoTime();
+				sendCommand(command, argument);
+				String reply = readReply();
+				if(!reply.startsWith("150")) {
+					record(command + " (transfer)", start, 0, false);
+					return;
+				}
+				
+				InputStream data = dataSocket.getInputStream();
+				byte[] buffer = new byte[0x10000];
+				long count = 0;
+				int length;
+				while((length = data.read(buffer)) != -1)
+					count += length;
+				record(command + " (transfer)", start, count, readReply().startsWith("226"));
+			}
+		}
+		
+		
+		/*
+		 * Uploads a file through a passive data connection
+		 * 
+		 * Arguments:
+		 * filename		the name of the file
+		 * isSeed		true if the file is the seed file, false if it is a file of the session
+		 * 
+		 * Throws:
+		 * IOException		if the connection fails
+		 */
+		public void store(String filename, boolean isSeed) throws IOException {
+			try(Socket dataSocket = openDataConnection()) {
+				long start = System.nanoTime();
+				sendCommand("STOR", filename);
+				String reply = readReply();
+				if(!reply.startsWith("150")) {
+					record("STOR (transfer)", start, 0, false);
+					if(isSeed)
+						throw new ReplyException("STOR", reply);
+					return;
+				}
+				
+				dataSocket.getOutputStream().write(data);
+				dataSocket.shutdownOutput();
+				reply = readReply();
+				boolean isStored = reply.startsWith("226");
+				record("STOR (transfer)", start, data.length, isStored);
+				if(isStored && !isSeed)
+					files.add(filename);
+				if(!isStored && isSeed)
+					throw new ReplyException("STOR", reply);
+			}
+		}
+		
+		
+		/*
+		 * Opens a passive data connection
+		 * 
+		 * Return:
+		 * the data socket
+		 * 
+		 * Throws:
+		 * IOException		if the data connection can't be opened
+		 */
+		private Socket openDataConnection() throws IOException {
+			long start = System.nanoTime();
+			sendCommand("PASV", null);
+			String reply = readReply();
+			int open = reply.indexOf('(');
+			int close = reply.indexOf(')', open + 1);
+			if(!reply.startsWith("227") || open < 0 || close < 0) {
+				record("PASV", start, 0, false);
+				throw new ReplyException("PASV", reply);
+			}
+			
+			String[] numbers = reply.substring(open + 1, close).split(",");
+			int dataPort = Integer.parseInt(numbers[4].trim()) * 256 + Integer.parseInt(numbers[5].trim());
+			Socket socket = controlSocket;
+			if(socket == null)
+				throw new IOException("Session Closed");
+			
+			Socket dataSocket = new Socket();
+			try {
+				dataSocket.connect(new InetSocketAddress(socket.getInetAddress(), dataPort), TIMEOUT);
+				dataSocket.setSoTimeout(TIMEOUT);
+			}catch(IOException e) {
+				dataSocket.close();
+				record("PASV", start, 0, false);
+				throw e;
+			}
+			record("PASV", start, 0, true);
+			return dataSocket;
+		}
+		
+		
+		/*
+		 * Arguments:
+		 * command		the command
+		 * argument		the argument of the command, null if none
+		 * 
+		 * Throws:
+		 * IOException		if the command can't be sent
+		 */
+		private void sendCommand(String command, String argument) throws IOException {
+			String line = (argument != null) ? command + " " + argument + "\r\n" : command + "\r\n";
+			out.write(line.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+		
+		
+		/*
+		 * Reads a reply, skipping the lines of a multi-line reply
+		 * 
+		 * Return:
+		 * the last line of the reply
+		 * 
+		 * Throws:
+		 * IOException		if the connection is closed or times out
+		 */
+		private String readReply() throws IOException {
+			String line = in.readLine();
+			if(line == null)
+				throw new IOException("Connection Closed By The Server");
+			
+			if(line.length() > 3 && line.charAt(3) == '-') { // multi-line reply: "123-..." up to "123 ..."
+				String end = line.substring(0, 3) + " ";
+				while(!line.startsWith(end)) {
+					line = in.readLine();
+					if(line == null)
+						throw new IOException("Connection Closed By The Server");
+				}
+			}
+			return line;
+		}
+		
+		
+		/*
+		 * Records a command or a transfer, if it ended during the measured time
+		 * 
+		 * Arguments:
+		 * name			the name of the command or transfer
+		 * start		the time (System.nanoTime) the command was sent
+		 * bytes		the number of bytes transfered
+		 * isSuccess	true if the expected reply was received, false otherwise
+		 */
+		private void record(String name, long start, long bytes, boolean isSuccess) {
+			long end = System.nanoTime();
+			if(end < measureStart || end > measureEnd)
+				return;
+			
+			Statistics operation = statistics.get(name);
+			if(!isSuccess) {
+				operation.errors.incrementAndGet();
+				return;
+			}
+			operation.latencies.record(end - start);
+			operation.bytes.addAndGet(bytes);
+		}
+		
+		
+		/*
+		 * Return:
+		 * a new name for a file of the session
+		 */
+		private String newFilename() {
+			return "load-" + id + "-" + (fileCounter++) + ".bin";
+		}
+		
+		
+		/*
+		 * Closes the control connection, if open
+		 */
+		public void close() {
+			Socket socket = controlSocket;
+			if(socket == null)
+				return;
+			try {
+				socket.close();
+			}catch(IOException e) {
+				System.err.println("FTP Load Generator: Could Not Close Session " + id);
+			}
+			controlSocket = null;
+		}
+	}
+}
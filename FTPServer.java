@@ -1,43 +1,60 @@
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.management.JMException;
 
 /*
  * FTP Server Class
  * 
- * Accepts incoming FTP control connections 
+ * Accepts incoming FTP control connections
  * with multiple clients
+ * 
+ * Usage:
+ * java FTPServer maxThreads [mode]
+ * 
+ * where mode is either - "pool" (default): each session runs on a thread of the pool
+ * 						- "virtual": each session runs on its own virtual thread
+ * 						  (Java 21 or later, maxThreads is then ignored)
+ * 						- "nio": the sessions are multiplexed on one control channel
+ * 						  event loop per core, the pool threads only execute the requests
+ * (See compare-modes.sh for a throughput comparison of the modes)
  */
 public class FTPServer {
 	//Constant values
 	private static final int TIMEOUT = 60000;
 	private static final int CONTROL_SERVER_PORT = 2151;
+	private static final String POOL_MODE = "pool";
+	private static final String VIRTUAL_MODE = "virtual";
+	private static final String NIO_MODE = "nio";
 	
 	public static void main(String[] args) {
 		try {
-			VirtualDirectory rootDirectory = new VirtualDirectory();
+			VirtualDirectory rootDirectory = FTPServerThread.openRootDirectory();
+			registerMetrics();
 			int maxThreads = Integer.parseInt(args[0]);
-			ServerSocket serverSocket = new ServerSocket(CONTROL_SERVER_PORT);
-			serverSocket.setSoTimeout(TIMEOUT);
-			ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
+			String mode = (args.length > 1) ? args[1] : POOL_MODE;
 			
-			try {
-				while(true) {
-					Socket clientSocket = serverSocket.accept();
-					clientSocket.setSoTimeout(TIMEOUT);
-					clientSocket.setTcpNoDelay(true);
-					FTPServerThread serverThread = new FTPServerThread(clientSocket, rootDirectory);
-					threadPool.execute(serverThread); // if a thread is available in the thread pool, 
-												      // assign to this thread the work of serverThread
-				}
-			}finally {
-				threadPool.shutdown();
-				serverSocket.close();
-			}
+			if(POOL_MODE.contentEquals(mode))
+				runSessions(rootDirectory, Executors.newFixedThreadPool(maxThreads), 
+							FTPServerThread.newTransferExecutor(maxThreads));
+			else if(VIRTUAL_MODE.contentEquals(mode)) {
+				ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+				runSessions(rootDirectory, virtualThreads, virtualThreads); // the transfers also run on virtual threads
+			}else if(NIO_MODE.contentEquals(mode))
+				runEventLoops(rootDirectory, maxThreads);
+			else
+				throw new IllegalArgumentException("Unknown Mode " + mode);
 		}
 		catch(IllegalArgumentException e) {
 			System.err.println("FTP Server Died: Invalid Command Line Argument; "
-							   + "The server needs to know the maximum number of threads");
+							   + "The server needs to know the maximum number of threads "
+							   + "and optionally the mode (\"" + POOL_MODE + "\", \"" + VIRTUAL_MODE 
+							   + "\" or \"" + NIO_MODE + "\")");
+		}catch(UnsupportedOperationException e) {
+			System.err.println("FTP Server Died: " + e.getMessage());
 		}catch(SocketTimeoutException e) {
 			System.err.println("FTP Server Died: Time Out");
 			
@@ -48,5 +65,134 @@ public class FTPServer {
 			System.err.println("FTP Server Died:\n" + e);
 		}
 	}
-
+	
+	
+	/*
+	 * Runs each session on its own thread of the given executor
+	 * (a fixed thread pool or a virtual thread per session)
+	 * 
+	 * Arguments:
+	 * rootDirectory		the server virtual root directory
+	 * threadPool			the executor running the sessions
+	 * transferExecutor		the executor running the data transfers
+	 * 
+	 * Throws:
+	 * Exception		if the server can't accept any more connection
+	 */
+	private static void runSessions(VirtualDirectory rootDirectory, ExecutorService threadPool, 
+									ExecutorService transferExecutor) throws Exception {
+		ServerSocket serverSocket = new ServerSocket(CONTROL_SERVER_PORT);
+		serverSocket.setSoTimeout(TIMEOUT);
+		FTPServerThread.setTransferExecutor(transferExecutor);
+		if(threadPool instanceof ThreadPoolExecutor) // the sessions waiting for a thread
+			FTPServerThread.getMetrics().setTaskQueue(((ThreadPoolExecutor) threadPool).getQueue());
+		
+		try {
+			while(true) {
+				Socket clientSocket = serverSocket.accept();
+				clientSocket.setSoTimeout(TIMEOUT);
+				clientSocket.setTcpNoDelay(true);
+				clientSocket.setOOBInline(true); // "ABOR" may be sent as urgent data
+				FTPServerThread serverThread = new FTPServerThread(clientSocket, rootDirectory);
+				threadPool.execute(serverThread); // if a thread is available in the thread pool,
+											      // assign to this thread the work of serverThread
+			}
+		}finally {
+			threadPool.shutdown();
+			transferExecutor.shutdown();
+			serverSocket.close();
+		}
+	}
+	
+	
+	/*
+	 * Multiplexes the control connections on one event loop per core,
+	 * the requests themselves are executed by a fixed thread pool
+	 * so that idle sessions do not hold any thread
+	 * 
+	 * Arguments:
+	 * rootDirectory	the server virtual root directory
+	 * maxThreads		the maximum number of requests executed at the same time,
+	 * 					and of data transfers running at the same time
+	 * 
+	 * Throws:
+	 * Exception		if the server can't accept any more connection
+	 */
+	private static void runEventLoops(VirtualDirectory rootDirectory, int maxThreads) throws Exception {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(CONTROL_SERVER_PORT));
+		ServerSocket serverSocket = serverChannel.socket();
+		serverSocket.setSoTimeout(TIMEOUT);
+		ExecutorService commandExecutor = Executors.newFixedThreadPool(maxThreads);
+		ExecutorService transferExecutor = FTPServerThread.newTransferExecutor(maxThreads);
+		FTPServerThread.setTransferExecutor(transferExecutor);
+		if(commandExecutor instanceof ThreadPoolExecutor) // the requests waiting for a thread
+			FTPServerThread.getMetrics().setTaskQueue(((ThreadPoolExecutor) commandExecutor).getQueue());
+		
+		int eventLoopCount = Runtime.getRuntime().availableProcessors();
+		ControlChannelEventLoop[] eventLoops = new ControlChannelEventLoop[eventLoopCount];
+		Thread[] eventLoopThreads = new Thread[eventLoopCount];
+		for(int i = 0; i < eventLoopCount; i++) {
+			eventLoops[i] = new ControlChannelEventLoop(rootDirectory, commandExecutor, TIMEOUT);
+			eventLoopThreads[i] = new Thread(eventLoops[i], "control-event-loop-" + i);
+			eventLoopThreads[i].start();
+		}
+		
+		try {
+			int next = 0;
+			while(true) {
+				Socket clientSocket = serverSocket.accept(); // blocking accept, times out as in the pool mode
+				clientSocket.setTcpNoDelay(true);
+				clientSocket.setOOBInline(true); // "ABOR" may be sent as urgent data
+				eventLoops[next].register(clientSocket.getChannel());
+				next = (next + 1) % eventLoopCount; // round robin between the event loops
+			}
+		}finally {
+			for(int i = 0; i < eventLoopCount; i++)
+				eventLoopThreads[i].interrupt();
+			commandExecutor.shutdown();
+			transferExecutor.shutdown();
+			serverChannel.close();
+		}
+	}
+	
+	
+	/*
+	 * Exposes the server metrics and the bandwidth limits through JMX,
+	 * the server still runs without them if they can't be registered
+	 */
+	private static void registerMetrics() {
+		try {
+			FTPServerThread.getMetrics().register();
+			FTPServerThread.getBandwidthScheduler().register();
+		}catch(JMException e) {
+			System.err.println("FTP Server: Could Not Register Metrics MBeans: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Creates an executor starting a new virtual thread for each task,
+	 * the blocking data transfers of a session then park its virtual thread
+	 * instead of holding a platform thread
+	 * 
+	 * Return:
+	 * the virtual thread per task executor
+	 * 
+	 * Throws:
+	 * UnsupportedOperationException	if the running Java version has no virtual threads
+	 * 
+	 * Note:
+	 * Looked up by reflection so that the server still compiles and runs 
+	 * in the other modes on Java versions older than 21
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}catch(ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual Threads Require Java 21 Or Later");
+		}
+	}
+	
 }
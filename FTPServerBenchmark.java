@@ -0,0 +1,672 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * FTP Server Benchmark Class
+ * Measures the hot paths of the server, as a baseline to compare changes against:
+ * the parsing and dispatch of the requests, the rendering of directory listings,
+ * the resolution of deep pathnames, the creation of virtual files and the
+ * transfers of files over loopback sockets, in both transfer types, and the
+ * scaling of the lookups and downloads of a shared directory with the number of threads
+ * (See AsciiModeCheck for the correctness of the ASCII transfer type)
+ * 
+ * Usage:
+ * java FTPServerBenchmark [name prefix...]
+ * (only the benchmarks whose name starts with one of the prefixes are run,
+ * all of them if none is given)
+ * 
+ * Note:
+ * Each benchmark runs for a few warm-up iterations, so that the hot paths are
+ * compiled, then for the measured iterations; the mean time per operation is
+ * printed with the standard deviation between the measured iterations.
+ * The results of the operations are consumed so that they can't be optimized away
+ */
+public class FTPServerBenchmark {
+	// Constant values
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 10;
+	private static final long ITERATION_TIME = 200000000L; // ns
+	private static final int TRANSFERED_FILE_SIZE = 0x100000; // 1 MiB
+	private static final int LARGE_UPLOAD_SIZE = 0x1000000; // 16 MiB
+	private static final int SHARED_DIRECTORY_SIZE = 1000; // files of the directory shared by the concurrent benchmarks
+	private static final int SHARED_FILE_SIZE = 0x4000; // 16 KiB, the file downloaded by the concurrent sessions
+	private static final int MAX_CONCURRENT_THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+	private static final String USERNAME = "Sam";
+	private static final String PASSWORD = "123456";
+	
+	//
+	private static volatile Object sink; // Receives the results of the operations
+	private static String[] prefixes;
+	
+	
+	/*
+	 * Runs the benchmarks
+	 * 
+	 * Arguments:
+	 * args		the prefixes of the names of the benchmarks to run
+	 */
+	public static void main(String[] args) {
+		prefixes = args;
+		System.out.println(String.format("%-36s %14s %12s %12s", "Benchmark", "ns/op", "+/-", "MB/s"));
+		
+		try {
+			benchmarkRequests();
+			benchmarkListings();
+			benchmarkPathnames();
+			benchmarkVirtualFiles();
+			benchmarkTransfers();
+			benchmarkConcurrency();
+		}catch(Exception e) {
+			System.err.println("FTP Server Benchmark: Could Not Run Benchmarks: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Measures the parsing and dispatch of requests by FTPServerThread.handleRequest
+	 * (the replies are written to a stream discarding them)
+	 * 
+	 * Throws:
+	 * IOException		if the server thread can't be created
+	 */
+	private static void benchmarkRequests() throws IOException {
+		FTPServerThread thread = newLoggedInThread(new VirtualDirectory(), OutputStream.nullOutputStream());
+		
+		measure("request.PWD", 0, () -> thread.handleRequest("PWD"));
+		measure("request.TYPE", 0, () -> thread.handleRequest("TYPE I"));
+		measure("request.SYST", 0, () -> thread.handleRequest("SYST"));
+		measure("request.MDTM", 0, () -> thread.handleRequest("MDTM mytext.txt"));
+		measure("request.CWD+CDUP", 0, () -> {
+			thread.handleRequest("CWD private");
+			thread.handleRequest("CDUP");
+		});
+		measure("request.unknown", 0, () -> thread.handleRequest("XYZW argument"));
+	}
+	
+	
+	/*
+	 * Measures the rendering of directory listings of various sizes,
+	 * uncached (printDirectoryContent) and cached (getDirectoryListing)
+	 * 
+	 * Throws:
+	 * Exception		if the directories can't be built
+	 */
+	private static void benchmarkListings() throws Exception {
+		for(int fileCount : new int[] {10, 1000, 100000}) {
+			if(!isSelected("listing.print." + fileCount) && !isSelected("listing.cached." + fileCount))
+				continue;
+			
+			VirtualDirectory directory = newDirectory(fileCount);
+			measure("listing.print." + fileCount, 0, () -> sink = directory.printDirectoryContent(true));
+			measure("listing.cached." + fileCount, 0, () -> sink = directory.getDirectoryListing(true));
+		}
+	}
+	
+	
+	/*
+	 * Measures the resolution of deep pathnames by VirtualDirectory.getDirectory
+	 * 
+	 * Throws:
+	 * Exception		if the directories can't be built
+	 */
+	private static void benchmarkPathnames() throws Exception {
+		for(int depth : new int[] {4, 32}) {
+			VirtualDirectory root = new VirtualDirectory("/", null, null, null, false);
+			VirtualDirectory directory = root;
+			StringBuilder pathname = new StringBuilder();
+			for(int i = 0; i < depth; i++) {
+				for(int j = 0; j < 16; j++) // siblings, so that each lookup searches a directory
+					directory.addSubDirectory("sibling" + j, false);
+				directory = directory.addSubDirectory("level" + i, false);
+				pathname.append("/level").append(i);
+			}
+			
+			String absolute = pathname.toString();
+			String relative = "../../level" + (depth - 2) + "/level" + (depth - 1);
+			VirtualDirectory deepest = directory;
+			measure("pathname.absolute." + depth, 0, () -> sink = root.getDirectory(absolute, true));
+			measure("pathname.relative." + depth, 0, () -> sink = deepest.getDirectory(relative, true));
+			measure("pathname.afterChange." + depth, 0, () -> { // the change of the tree empties the cache
+				root.addSubDirectory("changed", false);
+				root.removeSubDirectory("changed");
+				sink = root.getDirectory(absolute, true);
+			});
+		}
+	}
+	
+	
+	/*
+	 * Measures the creation of virtual files, including the check of their filename
+	 */
+	private static void benchmarkVirtualFiles() {
+		byte[] content = new byte[16];
+		String[] filenames = new String[1024];
+		for(int i = 0; i < filenames.length; i++)
+			filenames[i] = "file-" + i + ".txt";
+		
+		int[] index = new int[1];
+		measure("virtualFile.new", 0, () ->
+			sink = new VirtualFile<byte[]>(filenames[index[0]++ & (filenames.length - 1)], content, content.length));
+	}
+	
+	
+	/*
+	 * Measures the transfers of files over loopback sockets ("RETR" and "STOR"),
+	 * in binary and ASCII transfer types, and a large upload in ASCII transfer type
+	 * whose lines end with CRLF as sent by the clients; the data connections are
+	 * active ("PORT") ones to a peer draining or sending the data
+	 * 
+	 * Throws:
+	 * Exception		if the transfers can't be set up
+	 */
+	private static void benchmarkTransfers() throws Exception {
+		if(!isSelected("transfer."))
+			return;
+		
+		byte[] binary = new byte[TRANSFERED_FILE_SIZE];
+		new Random(42).nextBytes(binary);
+		byte[] text = newText(TRANSFERED_FILE_SIZE);
+		
+		VirtualDirectory root = new VirtualDirectory("/", null, null, null, false);
+		root.uploadFile(new VirtualFile<byte[]>("binary.bin", binary, binary.length));
+		root.uploadFile(new VirtualFile<byte[]>("text.txt", text, text.length));
+		
+		try(DataPeer peer = new DataPeer()) {
+			FTPServerThread thread = newLoggedInThread(root, OutputStream.nullOutputStream());
+			String port = peer.getPortArguments();
+			
+			for(String type : new String[] {"I", "A"}) {
+				String typeName = type.equals("I") ? "binary" : "ascii";
+				byte[] data = type.equals("I") ? binary : text;
+				String filename = type.equals("I") ? "binary.bin" : "text.txt";
+				thread.handleRequest("TYPE " + type);
+				
+				measure("transfer.RETR." + typeName, data.length, () -> {
+					peer.expectDownload();
+					thread.handleRequest("PORT " + port);
+					thread.handleRequest("RETR " + filename);
+					peer.await();
+				});
+				measure("transfer.STOR." + typeName, data.length, () -> {
+					peer.expectUpload(data);
+					thread.handleRequest("PORT " + port);
+					thread.handleRequest("STOR upload");
+					peer.await();
+				});
+			}
+			
+			byte[] networkText = newNetworkText(LARGE_UPLOAD_SIZE);
+			thread.handleRequest("TYPE A");
+			measure("transfer.STOR.ascii.16M", networkText.length, () -> {
+				peer.expectUpload(networkText);
+				thread.handleRequest("PORT " + port);
+				thread.handleRequest("STOR upload");
+				peer.await();
+			});
+		}
+	}
+	
+	
+	/*
+	 * Measures the lookups (downloadFile) and the downloads ("RETR") of the files 
+	 * of one shared directory by 1, 2, 4... threads, each download thread running 
+	 * its own session and data peer; the time per operation is the elapsed time 
+	 * divided by the operations of all the threads, so it drops as the threads scale
+	 * 
+	 * Throws:
+	 * Exception		if the directory or the sessions can't be set up
+	 */
+	private static void benchmarkConcurrency() throws Exception {
+		if(!isSelected("concurrent."))
+			return;
+		
+		VirtualDirectory root = newDirectory(SHARED_DIRECTORY_SIZE);
+		byte[] content = new byte[SHARED_FILE_SIZE];
+		root.uploadFile(new VirtualFile<byte[]>("shared.bin", content, content.length));
+		String[] filenames = new String[SHARED_DIRECTORY_SIZE];
+		for(int i = 0; i < filenames.length; i++)
+			filenames[i] = "file-" + i + ".dat";
+		
+		for(int threads = 1; threads <= MAX_CONCURRENT_THREADS; threads *= 2) {
+			measureConcurrent("concurrent.downloadFile." + threads, threads, 0, thread -> {
+				int[] index = {thread};
+				return () -> {
+					index[0] = (index[0] + 7) % filenames.length;
+					sink = root.downloadFile(filenames[index[0]]);
+				};
+			});
+		}
+		
+		for(int threads = 1; threads <= MAX_CONCURRENT_THREADS; threads *= 2) {
+			List<DataPeer> peers = new ArrayList<DataPeer>();
+			try {
+				for(int i = 0; i < threads; i++)
+					peers.add(new DataPeer());
+				
+				measureConcurrent("concurrent.RETR." + threads, threads, SHARED_FILE_SIZE, thread -> {
+					DataPeer peer = peers.get(thread);
+					String port = peer.getPortArguments();
+					FTPServerThread session = newLoggedInThread(root, OutputStream.nullOutputStream());
+					session.handleRequest("TYPE I");
+					return () -> {
+						peer.expectDownload();
+						session.handleRequest("PORT " + port);
+						session.handleRequest("RETR shared.bin");
+						peer.await();
+					};
+				});
+			}finally {
+				for(DataPeer peer : peers)
+					peer.close();
+			}
+		}
+	}
+	
+	
+	/*
+	 * Runs a benchmark, if selected, and prints its results
+	 * 
+	 * Arguments:
+	 * name				the name of the benchmark
+	 * bytesPerOperation	the number of bytes processed by an operation, 0 if none
+	 * operation		the measured operation
+	 */
+	private static void measure(String name, long bytesPerOperation, Operation operation) {
+		measureIterations(name, bytesPerOperation, () -> runIteration(operation));
+	}
+	
+	
+	/*
+	 * Runs a benchmark on several threads at once, if selected, and prints its results
+	 * (the time per operation is the elapsed time divided by the operations of all the threads)
+	 * 
+	 * Arguments:
+	 * name				the name of the benchmark
+	 * threadCount		the number of threads
+	 * bytesPerOperation	the number of bytes processed by an operation, 0 if none
+	 * operations		the factory of the operation run by each thread
+	 */
+	private static void measureConcurrent(String name, int threadCount, long bytesPerOperation, 
+										  OperationFactory operations) {
+		if(!isSelected(name))
+			return;
+		
+		try {
+			Operation[] threadOperations = new Operation[threadCount];
+			for(int i = 0; i < threadCount; i++)
+				threadOperations[i] = operations.newOperation(i);
+			measureIterations(name, bytesPerOperation, () -> runConcurrentIteration(threadOperations));
+		}catch(Exception e) {
+			System.out.println(String.format("%-36s failed: %s", name, e));
+		}
+	}
+	
+	
+	/*
+	 * Runs the iterations of a benchmark, if selected, and prints its results
+	 * 
+	 * Arguments:
+	 * name				the name of the benchmark
+	 * bytesPerOperation	the number of bytes processed by an operation, 0 if none
+	 * iteration		the iteration, giving the mean time (in ns) of an operation
+	 */
+	private static void measureIterations(String name, long bytesPerOperation, Iteration iteration) {
+		if(!isSelected(name))
+			return;
+		
+		try {
+			for(int i = 0; i < WARMUP_ITERATIONS; i++)
+				iteration.run();
+			
+			double[] times = new double[MEASURED_ITERATIONS];
+			double mean = 0;
+			for(int i = 0; i < MEASURED_ITERATIONS; i++) {
+				times[i] = iteration.run();
+				mean += times[i] / MEASURED_ITERATIONS;
+			}
+			
+			double variance = 0;
+			for(double time : times)
+				variance += (time - mean) * (time - mean) / Math.max(1, MEASURED_ITERATIONS - 1);
+			
+			String throughput = (bytesPerOperation > 0)
+					? String.format("%12.1f", bytesPerOperation * 1000.0 / mean) : String.format("%12s", "-");
+			System.out.println(String.format("%-36s %14.1f %12.1f %s", name, mean, Math.sqrt(variance), throughput));
+		}catch(Exception e) {
+			System.out.println(String.format("%-36s failed: %s", name, e));
+		}
+	}
+	
+	
+	/*
+	 * Runs an operation again and again for an iteration time
+	 * 
+	 * Arguments:
+	 * operation		the operation
+	 * 
+	 * Return:
+	 * the mean time (in ns) of an operation
+	 * 
+	 * Throws:
+	 * Exception		if the operation fails
+	 */
+	private static double runIteration(Operation operation) throws Exception {
+		long operations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for(int i = 0; i < 16; i++) // the clock is only read every few operations
+				operation.run();
+			operations += 16;
+			elapsed = System.nanoTime() - start;
+		}while(elapsed < ITERATION_TIME);
+		return (double) elapsed / operations;
+	}
+	
+	
+	/*
+	 * Runs operations on their own threads again and again for an iteration time
+	 * 
+	 * Arguments:
+	 * threadOperations		the operation of each thread
+	 * 
+	 * Return:
+	 * the elapsed time (in ns) divided by the number of operations of all the threads
+	 * 
+	 * Throws:
+	 * Exception		if an operation fails
+	 */
+	private static double runConcurrentIteration(Operation[] threadOperations) throws Exception {
+		AtomicLong operations = new AtomicLong();
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		CyclicBarrier start = new CyclicBarrier(threadOperations.length + 1);
+		Thread[] threads = new Thread[threadOperations.length];
+		for(int i = 0; i < threads.length; i++) {
+			Operation operation = threadOperations[i];
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+					long count = 0;
+					long end = System.nanoTime() + ITERATION_TIME;
+					do {
+						for(int j = 0; j < 16; j++) // the clock is only read every few operations
+							operation.run();
+						count += 16;
+					}while(System.nanoTime() < end);
+					operations.addAndGet(count);
+				}catch(Exception e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "benchmark-" + i);
+			threads[i].start();
+		}
+		
+		start.await();
+		long startTime = System.nanoTime();
+		for(Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - startTime;
+		
+		if(failure.get() != null)
+			throw failure.get();
+		return (double) elapsed / operations.get();
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * name		the name of a benchmark
+	 * 
+	 * Return:
+	 * true if the benchmark must be run, false otherwise
+	 */
+	private static boolean isSelected(String name) {
+		if(prefixes.length == 0)
+			return true;
+		
+		for(String prefix : prefixes) {
+			if(name.startsWith(prefix) || prefix.startsWith(name))
+				return true;
+		}
+		return false;
+	}
+	
+	
+	/*
+	 * Creates a server thread whose client is logged in
+	 * 
+	 * Arguments:
+	 * root		the root directory of the server
+	 * out		the stream receiving the replies
+	 * 
+	 * Return:
+	 * the server thread
+	 * 
+	 * Throws:
+	 * IOException		if the server thread can't be created
+	 */
+	private static FTPServerThread newLoggedInThread(VirtualDirectory root, OutputStream out) throws IOException {
+		FTPServerThread thread = new FTPServerThread(out, null, root);
+		thread.handleRequest("USER " + USERNAME);
+		thread.handleRequest("PASS " + PASSWORD);
+		return thread;
+	}
+	
+	
+	/*
+	 * Creates a directory filled with files
+	 * 
+	 * Arguments:
+	 * fileCount		the number of files
+	 * 
+	 * Return:
+	 * the directory
+	 * 
+	 * Throws:
+	 * Exception		if the files can't be created
+	 */
+	private static VirtualDirectory newDirectory(int fileCount) throws Exception {
+		VirtualDirectory directory = new VirtualDirectory("/", null, null, null, false);
+		byte[] content = new byte[128];
+		for(int i = 0; i < fileCount; i++)
+			directory.uploadFile(new VirtualFile<byte[]>("file-" + i + ".dat", content, content.length));
+		return directory;
+	}
+	
+	
+	/*
+	 * Creates a text of short lines ending with LF
+	 * 
+	 * Arguments:
+	 * size		the size (in bytes) of the text
+	 * 
+	 * Return:
+	 * the text
+	 */
+	private static byte[] newText(int size) {
+		byte[] line = "The quick brown fox jumps over the lazy dog 0123456789\n".getBytes(StandardCharsets.US_ASCII);
+		byte[] text = new byte[size];
+		for(int i = 0; i < size; i++)
+			text[i] = line[i % line.length];
+		return text;
+	}
+	
+	
+	/*
+	 * Creates a text of short lines ending with CRLF, as sent in ASCII transfer type
+	 * 
+	 * Arguments:
+	 * size		the size (in bytes) of the text
+	 * 
+	 * Return:
+	 * the text
+	 */
+	private static byte[] newNetworkText(int size) {
+		byte[] line = "The quick brown fox jumps over the lazy dog 0123456789\r\n".getBytes(StandardCharsets.US_ASCII);
+		byte[] text = new byte[size];
+		for(int i = 0; i < size; i++)
+			text[i] = line[i % line.length];
+		return text;
+	}
+	
+	
+	/*
+	 * Operation Interface
+	 * An operation measured by a benchmark
+	 */
+	private interface Operation {
+		public void run() throws Exception;
+	}
+	
+	
+	/*
+	 * Operation Factory Interface
+	 * Creates the operation run by each thread of a concurrent benchmark
+	 */
+	private interface OperationFactory {
+		public Operation newOperation(int thread) throws Exception;
+	}
+	
+	
+	/*
+	 * Iteration Interface
+	 * An iteration of a benchmark, giving the mean time (in ns) of an operation
+	 */
+	private interface Iteration {
+		public double run() throws Exception;
+	}
+	
+	
+	/*
+	 * Data Peer Class
+	 * Client side of the data connections of the transfer benchmarks:
+	 * accepts the connections opened by the server in active mode and
+	 * either drains the downloaded data or sends the uploaded data
+	 */
+	private static class DataPeer implements AutoCloseable {
+		private ServerSocket serverSocket;
+		private Thread acceptingThread;
+		private volatile byte[] upload; // The data to send on the next connection, null to drain it
+		private List<Exception> failures = new ArrayList<Exception>();
+		private int pendingTransfers = 0; // guarded by this peer
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Throws:
+		 * IOException		if the peer can't listen on the loopback interface
+		 */
+		public DataPeer() throws IOException {
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			acceptingThread = new Thread(this::acceptConnections, "benchmark-data-peer");
+			acceptingThread.setDaemon(true);
+			acceptingThread.start();
+		}
+		
+		
+		/*
+		 * Return:
+		 * the arguments of a "PORT" request to this peer
+		 */
+		public String getPortArguments() {
+			byte[] address = serverSocket.getInetAddress().getAddress();
+			int port = serverSocket.getLocalPort();
+			return (address[0] & 0xFF) + "," + (address[1] & 0xFF) + "," + (address[2] & 0xFF) + ","
+					+ (address[3] & 0xFF) + "," + (port / 256) + "," + (port % 256);
+		}
+		
+		
+		/*
+		 * Drains the data sent on the next connection
+		 */
+		public synchronized void expectDownload() {
+			upload = null;
+			pendingTransfers++;
+		}
+		
+		
+		/*
+		 * Sends data on the next connection
+		 * 
+		 * Arguments:
+		 * data		the data to send
+		 */
+		public synchronized void expectUpload(byte[] data) {
+			upload = data;
+			pendingTransfers++;
+		}
+		
+		
+		/*
+		 * Waits for the pending transfers to end
+		 * 
+		 * Throws:
+		 * Exception		if a transfer has failed
+		 */
+		public synchronized void await() throws Exception {
+			while(pendingTransfers > 0)
+				wait();
+			if(!failures.isEmpty())
+				throw failures.remove(0);
+		}
+		
+		
+		/*
+		 * Handles the data connections one after the other
+		 */
+		private void acceptConnections() {
+			byte[] buffer = new byte[0x10000];
+			while(!serverSocket.isClosed()) {
+				try(Socket socket = serverSocket.accept()) {
+					byte[] data = upload;
+					try {
+						if(data != null) {
+							OutputStream out = socket.getOutputStream();
+							out.write(data);
+							out.flush();
+						}else {
+							InputStream in = socket.getInputStream();
+							long count = 0;
+							int length;
+							while((length = in.read(buffer)) != -1)
+								count += length;
+							sink = count;
+						}
+					}catch(IOException e) {
+						synchronized(this) {
+							failures.add(e);
+						}
+					}
+				}catch(IOException e) {
+					if(serverSocket.isClosed())
+						return;
+				}
+				
+				synchronized(this) {
+					pendingTransfers--;
+					notifyAll();
+				}
+			}
+		}
+		
+		
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
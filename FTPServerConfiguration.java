@@ -0,0 +1,270 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+ * FTP Server Configuration Class
+ * Gives the server settings, read from the Java system properties
+ * (eg: java -Dftp.passivePorts=50000-50099 FTPServer 8)
+ * with a default value for each of them
+ */
+public class FTPServerConfiguration {
+	// Property names
+	public static final String PASSIVE_PORTS = "ftp.passivePorts";
+	public static final String STORAGE = "ftp.storage";
+	public static final String STORAGE_DIRECTORY = "ftp.storageDirectory";
+	public static final String MAX_FILE_SIZE = "ftp.maxFileSize";
+	public static final String DEDUPLICATION = "ftp.deduplication";
+	public static final String COMPRESSED_CACHE_SIZE = "ftp.compressedCacheSize";
+	public static final String JOURNAL_DIRECTORY = "ftp.journalDirectory";
+	public static final String SNAPSHOT_INTERVAL = "ftp.snapshotInterval";
+	public static final String PIPELINING = "ftp.pipelining";
+	public static final String GLOBAL_RATE = "ftp.globalRate";
+	public static final String USER_RATE = "ftp.userRate";
+	public static final String SESSION_RATE = "ftp.sessionRate";
+	
+	// Storage backends
+	public static final String MEMORY_STORAGE = "memory";
+	public static final String DISK_STORAGE = "disk";
+	
+	// Default values
+	private static final String DEFAULT_PASSIVE_PORTS = "2051-2100";
+	private static final String DEFAULT_STORAGE = MEMORY_STORAGE;
+	private static final String DEFAULT_STORAGE_DIRECTORY = "ftp-server-store";
+	private static final String DEFAULT_MAX_FILE_SIZE = "16G";
+	private static final String DEFAULT_DEDUPLICATION = "true";
+	private static final String DEFAULT_COMPRESSED_CACHE_SIZE = "256M";
+	private static final String DEFAULT_SNAPSHOT_INTERVAL = "10000";
+	private static final String DEFAULT_PIPELINING = "true";
+	private static final String DEFAULT_RATE = "0"; // No limit
+	
+	
+	/*
+	 * Gives the range of ports that can be used for passive data connections
+	 * 
+	 * Return:
+	 * an array containing the first and the last port of the range (both included)
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is not of the form "first-last"
+	 * 								with 0 < first <= last <= 65535
+	 */
+	public static int[] getPassivePortRange() {
+		String range = System.getProperty(PASSIVE_PORTS, DEFAULT_PASSIVE_PORTS);
+		String bounds[] = range.trim().split("-", 2);
+		int first = Integer.parseInt(bounds[0].trim());
+		int last = (bounds.length > 1) ? Integer.parseInt(bounds[1].trim()) : first;
+		
+		if(first <= 0 || last > 0xFFFF || first > last)
+			throw new IllegalArgumentException("Invalid Passive Port Range " + range);
+		
+		return new int[] {first, last};
+	}
+	
+	
+	/*
+	 * Gives the backend keeping the content of the uploaded files
+	 * 
+	 * Return:
+	 * either MEMORY_STORAGE (the heap) or DISK_STORAGE (files of the storage directory)
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is neither of them
+	 */
+	public static String getStorage() {
+		String storage = System.getProperty(STORAGE, DEFAULT_STORAGE).trim();
+		if(!MEMORY_STORAGE.contentEquals(storage) && !DISK_STORAGE.contentEquals(storage))
+			throw new IllegalArgumentException("Invalid Storage " + storage);
+		
+		return storage;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the directory of the local disk holding the content 
+	 * of the uploaded files when the disk storage is used
+	 */
+	public static Path getStorageDirectory() {
+		String directory = System.getProperty(STORAGE_DIRECTORY);
+		if(directory == null)
+			return Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_STORAGE_DIRECTORY);
+		
+		return Paths.get(directory);
+	}
+	
+	
+	/*
+	 * Gives the maximum size of a file
+	 * 
+	 * Return:
+	 * the maximum size (in bytes) of an uploaded file
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is not a positive number of bytes, 
+	 * 								optionally followed by the unit 'K', 'M' or 'G'
+	 */
+	public static long getMaxFileSize() {
+		return parseSize(System.getProperty(MAX_FILE_SIZE, DEFAULT_MAX_FILE_SIZE));
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if the identical bodies of the uploaded files 
+	 * are stored only once, false otherwise
+	 */
+	public static boolean isDeduplicationEnabled() {
+		return Boolean.parseBoolean(System.getProperty(DEDUPLICATION, DEFAULT_DEDUPLICATION).trim());
+	}
+	
+	
+	/*
+	 * Gives the maximum size of the compressed forms kept for the popular files
+	 * 
+	 * Return:
+	 * the maximum size (in bytes) of all the compressed forms
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is not a positive number of bytes, 
+	 * 								optionally followed by the unit 'K', 'M' or 'G'
+	 */
+	public static long getCompressedCacheSize() {
+		return parseSize(System.getProperty(COMPRESSED_CACHE_SIZE, DEFAULT_COMPRESSED_CACHE_SIZE));
+	}
+	
+	
+	/*
+	 * Gives the directory keeping the virtual tree across restarts
+	 * (only used with the disk storage, the only one whose content survives a restart)
+	 * 
+	 * Return:
+	 * the directory holding the snapshot and the log of the virtual tree, 
+	 * null if the virtual tree is not kept
+	 */
+	public static Path getJournalDirectory() {
+		String directory = System.getProperty(JOURNAL_DIRECTORY);
+		if(directory == null || directory.trim().isEmpty())
+			return null;
+		
+		return Paths.get(directory.trim());
+	}
+	
+	
+	/*
+	 * Gives the number of changes after which the log of the virtual tree 
+	 * is compacted into a new snapshot
+	 * 
+	 * Return:
+	 * the number of log records between two snapshots
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is not a positive number
+	 */
+	public static long getSnapshotInterval() {
+		long interval = Long.parseLong(System.getProperty(SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL).trim());
+		if(interval <= 0)
+			throw new IllegalArgumentException("Invalid Snapshot Interval " + interval);
+		
+		return interval;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if the replies to the requests received together 
+	 * are sent together, false if each reply is sent on its own
+	 */
+	public static boolean isPipeliningEnabled() {
+		return Boolean.parseBoolean(System.getProperty(PIPELINING, DEFAULT_PIPELINING).trim());
+	}
+	
+	
+	/*
+	 * Gives the maximum rate of all the data transfers together
+	 * 
+	 * Return:
+	 * the rate (in bytes per second), 0 if it is not limited
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the property is not 0 or a positive number of bytes, 
+	 * 								optionally followed by the unit 'K', 'M' or 'G'
+	 */
+	public static long getGlobalRate() {
+		return parseRate(System.getProperty(GLOBAL_RATE, DEFAULT_RATE));
+	}
+	
+	
+	/*
+	 * Gives the maximum rate of the data transfers of a user, all its sessions together
+	 * 
+	 * Return:
+	 * See getGlobalRate()
+	 */
+	public static long getUserRate() {
+		return parseRate(System.getProperty(USER_RATE, DEFAULT_RATE));
+	}
+	
+	
+	/*
+	 * Gives the maximum rate of the data transfers of a session
+	 * 
+	 * Return:
+	 * See getGlobalRate()
+	 */
+	public static long getSessionRate() {
+		return parseRate(System.getProperty(SESSION_RATE, DEFAULT_RATE));
+	}
+	
+	
+	/*
+	 * Parses a rate
+	 * 
+	 * Arguments:
+	 * rate		0 for no limit, or a number of bytes per second (See parseSize)
+	 * 
+	 * Return:
+	 * the rate in bytes per second, 0 if it is not limited
+	 */
+	private static long parseRate(String rate) {
+		if(DEFAULT_RATE.contentEquals(rate.trim()))
+			return 0;
+		return parseSize(rate);
+	}
+	
+	
+	/*
+	 * Parses a size
+	 * 
+	 * Arguments:
+	 * size		a number of bytes, optionally followed by the unit 
+	 * 			'K' (KiB), 'M' (MiB) or 'G' (GiB)
+	 * 
+	 * Return:
+	 * the size in bytes
+	 * 
+	 * Throws:
+	 * IllegalArgumentException		if the size is not positive or can't be parsed
+	 */
+	private static long parseSize(String size) {
+		String value = size.trim().toUpperCase();
+		long unit = 1;
+		switch(value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+			case 'K': unit = 1L << 10;
+				break;
+			case 'M': unit = 1L << 20;
+				break;
+			case 'G': unit = 1L << 30;
+				break;
+			default:
+				break;
+		}
+		if(unit > 1)
+			value = value.substring(0, value.length() - 1).trim();
+		
+		long bytes = Long.parseLong(value) * unit;
+		if(bytes <= 0)
+			throw new IllegalArgumentException("Invalid Size " + size);
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,312 @@
+import java.lang.management.ManagementFactory;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * FTP Server Metrics Class
+ * Gathers the latencies and the counters of the server,
+ * shared by all the sessions
+ * 
+ * Note:
+ * - Recording is lock-free and allocation-free, so that it can be done
+ *   on the hot path of every request
+ * - The histograms of the commands are created once for the handled commands
+ *   (See FTPCommand), the unrecognized commands are all recorded together 
+ *   so that a client can't make the metrics grow
+ */
+public class FTPServerMetrics implements FTPServerMetricsMXBean {
+	// Constant values
+	public static final String OTHER_COMMANDS = "OTHER";
+	private static final String DOMAIN = "FTPServer";
+	private static final double NANOSECONDS_PER_MICROSECOND = 1000.0;
+	
+	//
+	private LatencyHistogram[] requestLatencies; // Indexed by command ordinal
+	private LatencyHistogram otherRequestLatencies;
+	private LatencyHistogram downloadDurations;
+	private LatencyHistogram uploadDurations;
+	private LatencyHistogram listingDurations;
+	private LatencyHistogram dataConnectionSetups;
+	private LongAdder requestCount;
+	private LongAdder downloadedBytes;
+	private LongAdder uploadedBytes;
+	private LongAdder failedDataConnections;
+	private AtomicInteger activeSessions;
+	private volatile Queue<?> taskQueue; // The queue of the server thread pool, null if there is none
+	private DeduplicatingContentStore deduplicatingStore; // Null if the bodies are not deduplicated
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _contentStore		the content store shared by the sessions
+	 */
+	public FTPServerMetrics(ContentStore _contentStore) {
+		requestLatencies = new LatencyHistogram[FTPCommand.values().length];
+		for(int i = 0; i < requestLatencies.length; i++) {
+			requestLatencies[i] = new LatencyHistogram();
+		}
+		otherRequestLatencies = new LatencyHistogram();
+		
+		downloadDurations = new LatencyHistogram();
+		uploadDurations = new LatencyHistogram();
+		listingDurations = new LatencyHistogram();
+		dataConnectionSetups = new LatencyHistogram();
+		requestCount = new LongAdder();
+		downloadedBytes = new LongAdder();
+		uploadedBytes = new LongAdder();
+		failedDataConnections = new LongAdder();
+		activeSessions = new AtomicInteger(0);
+		if(_contentStore instanceof DeduplicatingContentStore)
+			deduplicatingStore = (DeduplicatingContentStore) _contentStore;
+	}
+	
+	
+	/*
+	 * Registers the metrics and the histograms to the platform MBean server
+	 * (eg: to be read with jconsole under the "FTPServer" domain)
+	 * 
+	 * Throws:
+	 * JMException		if the MBeans can't be registered
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, new ObjectName(DOMAIN + ":type=Metrics"));
+		
+		for(FTPCommand command : FTPCommand.values()) {
+			server.registerMBean(requestLatencies[command.ordinal()], 
+					new ObjectName(DOMAIN + ":type=RequestLatency,name=" + command));
+		}
+		server.registerMBean(otherRequestLatencies, new ObjectName(DOMAIN + ":type=RequestLatency,name=" + OTHER_COMMANDS));
+		server.registerMBean(downloadDurations, new ObjectName(DOMAIN + ":type=TransferDuration,name=Download"));
+		server.registerMBean(uploadDurations, new ObjectName(DOMAIN + ":type=TransferDuration,name=Upload"));
+		server.registerMBean(listingDurations, new ObjectName(DOMAIN + ":type=TransferDuration,name=Listing"));
+		server.registerMBean(dataConnectionSetups, new ObjectName(DOMAIN + ":type=DataConnectionSetup"));
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * _taskQueue		the queue of the tasks waiting for a thread of the server pool
+	 */
+	public void setTaskQueue(Queue<?> _taskQueue) {
+		taskQueue = _taskQueue;
+	}
+	
+	
+	/*
+	 * Records the handling of a request
+	 * 
+	 * Arguments:
+	 * command			the command of the request, null if it is not handled by the server
+	 * nanoseconds		the time taken to handle the request
+	 */
+	public void recordRequest(FTPCommand command, long nanoseconds) {
+		LatencyHistogram latencies = (command != null) ? requestLatencies[command.ordinal()] : otherRequestLatencies;
+		latencies.record(nanoseconds);
+		requestCount.increment();
+	}
+	
+	
+	/*
+	 * Records a file content sent to a client
+	 * 
+	 * Arguments:
+	 * bytes			the number of bytes of the content sent
+	 * nanoseconds		the duration of the transfer
+	 */
+	public void recordDownload(long bytes, long nanoseconds) {
+		downloadDurations.record(nanoseconds);
+		downloadedBytes.add(bytes);
+	}
+	
+	
+	/*
+	 * Records a file content received from a client
+	 * 
+	 * Arguments:
+	 * bytes			the number of bytes of the content received
+	 * nanoseconds		the duration of the transfer
+	 */
+	public void recordUpload(long bytes, long nanoseconds) {
+		uploadDurations.record(nanoseconds);
+		uploadedBytes.add(bytes);
+	}
+	
+	
+	/*
+	 * Records a directory listing sent to a client
+	 * 
+	 * Arguments:
+	 * nanoseconds		the duration of the transfer
+	 */
+	public void recordListing(long nanoseconds) {
+		listingDurations.record(nanoseconds);
+	}
+	
+	
+	/*
+	 * Records the establishment of a data connection
+	 * 
+	 * Arguments:
+	 * nanoseconds		the time taken to establish the connection
+	 * 					(in passive mode, it includes the wait for the client)
+	 */
+	public void recordDataConnection(long nanoseconds) {
+		dataConnectionSetups.record(nanoseconds);
+	}
+	
+	
+	/*
+	 * Records a data connection that could not be established
+	 */
+	public void recordFailedDataConnection() {
+		failedDataConnections.increment();
+	}
+	
+	
+	/*
+	 * Records the opening of a session
+	 */
+	public void openSession() {
+		activeSessions.incrementAndGet();
+	}
+	
+	
+	/*
+	 * Records the closing of a session
+	 */
+	public void closeSession() {
+		activeSessions.decrementAndGet();
+	}
+	
+	
+	@Override
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+	
+	
+	@Override
+	public int getQueuedTasks() {
+		Queue<?> queue = taskQueue;
+		return (queue != null) ? queue.size() : 0;
+	}
+	
+	
+	@Override
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+	
+	
+	@Override
+	public long getDownloadedBytes() {
+		return downloadedBytes.sum();
+	}
+	
+	
+	@Override
+	public long getUploadedBytes() {
+		return uploadedBytes.sum();
+	}
+	
+	
+	@Override
+	public long getFailedDataConnections() {
+		return failedDataConnections.sum();
+	}
+	
+	
+	@Override
+	public long getListingCacheHits() {
+		return VirtualDirectory.getListingCacheHits();
+	}
+	
+	
+	@Override
+	public long getListingCacheMisses() {
+		return VirtualDirectory.getListingCacheMisses();
+	}
+	
+	
+	@Override
+	public double getListingCacheHitRate() {
+		long hits = getListingCacheHits();
+		long total = hits + getListingCacheMisses();
+		return (total > 0) ? (double) hits / total : 0;
+	}
+	
+	
+	@Override
+	public long getDeduplicationSavedBytes() {
+		return (deduplicatingStore != null) ? deduplicatingStore.getSavedBytes() : 0;
+	}
+	
+	
+	@Override
+	public double getDeduplicationRatio() {
+		return (deduplicatingStore != null) ? deduplicatingStore.getDeduplicationRatio() : 1.0;
+	}
+	
+	
+	/*
+	 * Gives the report of the metrics, as sent in reply to "SITE STATS"
+	 * 
+	 * Return:
+	 * the lines of the report, each one starting with a <space> character
+	 * and ending with <CRLF>, the latencies being in microseconds
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(" Sessions: ").append(getActiveSessions()).append(" active, ")
+			  .append(getQueuedTasks()).append(" queued tasks\r\n");
+		report.append(" Requests: ").append(getRequestCount()).append("\r\n");
+		report.append(" Transfers: ").append(getDownloadedBytes()).append(" bytes downloaded, ")
+			  .append(getUploadedBytes()).append(" bytes uploaded\r\n");
+		report.append(" Data connections: ").append(getFailedDataConnections()).append(" failed\r\n");
+		report.append(String.format(" LIST cache: %d hits, %d misses, %.1f%% hit rate\r\n",
+				getListingCacheHits(), getListingCacheMisses(), getListingCacheHitRate() * 100));
+		if(deduplicatingStore != null)
+			report.append(String.format(" Deduplication: %d bytes saved, %.2f ratio\r\n",
+					getDeduplicationSavedBytes(), getDeduplicationRatio()));
+		report.append(String.format(" %-16s %10s %10s %10s %10s %10s %10s\r\n",
+				"Latency (us)", "count", "mean", "p50", "p99", "p99.9", "max"));
+		
+		for(FTPCommand command : FTPCommand.values()) {
+			appendLatencies(report, command.name(), requestLatencies[command.ordinal()]);
+		}
+		appendLatencies(report, OTHER_COMMANDS, otherRequestLatencies);
+		appendLatencies(report, "Download", downloadDurations);
+		appendLatencies(report, "Upload", uploadDurations);
+		appendLatencies(report, "Listing", listingDurations);
+		appendLatencies(report, "Data connection", dataConnectionSetups);
+		return report.toString();
+	}
+	
+	
+	/*
+	 * Appends a line of latencies to the report, if any has been recorded
+	 * 
+	 * Arguments:
+	 * report		the report
+	 * name			the name of the line
+	 * latencies	the histogram of the latencies
+	 */
+	private static void appendLatencies(StringBuilder report, String name, LatencyHistogram latencies) {
+		if(latencies.getCount() == 0)
+			return;
+		
+		report.append(String.format(" %-16s %10d %10.1f %10.1f %10.1f %10.1f %10.1f\r\n", name, latencies.getCount(),
+				latencies.getMean() / NANOSECONDS_PER_MICROSECOND,
+				latencies.getPercentile50() / NANOSECONDS_PER_MICROSECOND,
+				latencies.getPercentile99() / NANOSECONDS_PER_MICROSECOND,
+				latencies.getPercentile999() / NANOSECONDS_PER_MICROSECOND,
+				latencies.getMax() / NANOSECONDS_PER_MICROSECOND));
+	}
+}
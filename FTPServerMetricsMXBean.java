@@ -0,0 +1,87 @@
+/*
+ * FTP Server Metrics MXBean Interface
+ * Exposes the counters of the server through JMX
+ * (the latencies are exposed by one latency histogram MXBean each)
+ */
+public interface FTPServerMetricsMXBean {
+	
+	/*
+	 * Return:
+	 * the number of sessions currently open
+	 */
+	public int getActiveSessions();
+	
+	
+	/*
+	 * Return:
+	 * the number of tasks waiting for a thread of the server pool
+	 * (connections in the "pool" mode, requests in the "nio" mode)
+	 */
+	public int getQueuedTasks();
+	
+	
+	/*
+	 * Return:
+	 * the number of requests handled since the server started
+	 */
+	public long getRequestCount();
+	
+	
+	/*
+	 * Return:
+	 * the number of bytes of file content sent to the clients
+	 */
+	public long getDownloadedBytes();
+	
+	
+	/*
+	 * Return:
+	 * the number of bytes of file content received from the clients
+	 */
+	public long getUploadedBytes();
+	
+	
+	/*
+	 * Return:
+	 * the number of data connections that could not be established
+	 */
+	public long getFailedDataConnections();
+	
+	
+	/*
+	 * Return:
+	 * the number of directory listings taken from the listing cache
+	 */
+	public long getListingCacheHits();
+	
+	
+	/*
+	 * Return:
+	 * the number of directory listings that had to be rendered
+	 */
+	public long getListingCacheMisses();
+	
+	
+	/*
+	 * Return:
+	 * the ratio of the directory listings taken from the listing cache,
+	 * 0 if no listing has been sent
+	 */
+	public double getListingCacheHitRate();
+	
+	
+	/*
+	 * Return:
+	 * the number of bytes saved by sharing identical file bodies,
+	 * 0 if the bodies are not deduplicated
+	 */
+	public long getDeduplicationSavedBytes();
+	
+	
+	/*
+	 * Return:
+	 * the bytes of all the file bodies over the bytes actually stored,
+	 * 1 if the bodies are not deduplicated
+	 */
+	public double getDeduplicationRatio();
+}
@@ -1,6 +1,12 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 
 /*
@@ -12,25 +18,50 @@ public class FTPServerThread extends Thread {
 	
 	// Constant values
 	private static final int TIMEOUT = 60000;
-	private static final int DATA_SERVER_PORT = 2051;
+	private static final PassiveDataListener PASSIVE_LISTENER = newPassiveDataListener();
+	private static final ContentStore BACKING_STORE = newBackingStore();
+	private static final ContentStore CONTENT_STORE = newContentStore(BACKING_STORE);
+	private static final long MAX_FILE_SIZE = FTPServerConfiguration.getMaxFileSize();
+	private static final boolean IS_PIPELINING_ENABLED = FTPServerConfiguration.isPipeliningEnabled();
+	private static final int TRANSFER_BUFFER_SIZE = 0x10000; // 64 KiB
+	private static final int MAX_POOLED_TRANSFER_BUFFERS = 256;
+	private static final BufferPool TRANSFER_BUFFERS = new BufferPool(TRANSFER_BUFFER_SIZE, MAX_POOLED_TRANSFER_BUFFERS);
+	private static final int TRANSFER_CHUNK_SIZE = 0x100000; // 1 MiB, the progress of a download is updated after each chunk
+	private static final int DEFAULT_TRANSFER_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+	private static final BandwidthScheduler BANDWIDTH = new BandwidthScheduler(FTPServerConfiguration.getGlobalRate(), 
+			FTPServerConfiguration.getUserRate(), FTPServerConfiguration.getSessionRate());
+	private static final long MAX_THROTTLE_PAUSE = 50000000; // 50 ms, how long a throttled transfer may not notice "ABOR"
+	private static final CompressedVariantCache COMPRESSED_VARIANTS = new CompressedVariantCache(BACKING_STORE, 
+			FTPServerConfiguration.getCompressedCacheSize());
 	private static final String ANONYMOUS = "anonymous";
 	private static final String USERNAME = "Sam";
 	private static final String PASSWORD = "123456";
+	private static final FTPServerMetrics METRICS = new FTPServerMetrics(CONTENT_STORE);
+	private static final byte[] FEAT_REPLY = ("211-Extension Supported by FTP Server: \r\n"
+			+ " MDTM\r\n"  // Very important -> add a <space> character before each feature
+			+ " MODE Z\r\n"
+			+ " SIZE\r\n"
+			+ " REST STREAM\r\n"
+			+ " RANG STREAM\r\n"
+			+ "211 END\r\n").getBytes(StandardCharsets.US_ASCII); // encoded once
 	
 	// Client variables
 	private Socket clientSocket;
+	private InetAddress ipControlClient; // The address of the control connection, null if unknown
 	private String username;
 	private InetAddress ipClient;
 	private int portClient;
 	private Socket dataClientSocket;
-	private OutputStream outputStreamClient;
+	private ControlChannelWriter replyWriter;
 	
 	// Server variables
+	private static volatile ExecutorService transferExecutor = newTransferExecutor(DEFAULT_TRANSFER_THREADS); // See setTransferExecutor
 	private InetAddress ipServer;
-	private ServerSocket dataServerSocket;
+	private PassiveDataListener.Reservation passiveReservation; // The port reserved by "PASV", if any
 	
 	// Boolean state variables
 	private boolean isBinaryTransferType = false;
+	private boolean isCompressedMode = false;
 	private boolean isActiveMode = false;
 	private boolean isDataChannelOpen = false;
 	private boolean isLoggedIn = false;
@@ -42,6 +73,21 @@ public class FTPServerThread extends Thread {
 	
 	// Miscellaneous
 	private String oldPathnameBuffer;
+	private long restartPosition = 0; // The position set by "REST" or "RANG" for the next transfer
+	private long restartEnd = -1; // The position following the range set by "RANG", -1 if none
+	
+	// Transfer variables (written by the transfer, read by "STAT" and "ABOR")
+	private volatile Future<?> currentTransfer; // The transfer running on the transfer executor, if any
+	private volatile String transferDescription;
+	private volatile long transferredBytes = 0;
+	private volatile long transferSize = -1; // -1 if unknown
+	private volatile boolean isTransferAborted = false;
+	private Object transferLock = new Object(); // Guards the data connection and the "PASV" port against "ABOR"
+	private TokenBucket sessionBucket = new TokenBucket(); // Meters the transfers of the session
+	private volatile TokenBucket userBucket = null; // Meters the transfers of the logged in user, with its other sessions
+	private String bandwidthUser = null; // The identity the user bucket was joined with, guarded by bandwidthLock
+	private boolean isSessionEnded = false; // guarded by bandwidthLock
+	private Object bandwidthLock = new Object();
 	
 	
 	/*
@@ -59,8 +105,33 @@ public class FTPServerThread extends Thread {
 		rootDirectory = _rootDirectory;
 		currentDirectory = _rootDirectory;
 		clientSocket = _clientSocket;
+		ipControlClient = _clientSocket.getInetAddress();
 		ipServer = InetAddress.getLocalHost();
-		outputStreamClient = clientSocket.getOutputStream();
+		replyWriter = new ControlChannelWriter(clientSocket.getOutputStream());
+	}
+	
+	
+	/*
+	 * Constructor
+	 * -> used when the control connection is managed by a control channel event loop
+	 * 
+	 * Arguments:
+	 * _outputStreamClient	the stream on which the replies are sent to the client
+	 * _ipControlClient		the address of the client control connection, 
+	 * 						null to accept passive data connections from any address
+	 * _rootDirectory		the server virtual root directory
+	 * 
+	 * Throws:
+	 * UnknownHostException 	if the host address could not be found 
+	 */
+	public FTPServerThread(OutputStream _outputStreamClient, InetAddress _ipControlClient, 
+			VirtualDirectory _rootDirectory) throws UnknownHostException{
+		rootDirectory = _rootDirectory;
+		currentDirectory = _rootDirectory;
+		clientSocket = null;
+		ipControlClient = _ipControlClient;
+		ipServer = InetAddress.getLocalHost();
+		replyWriter = new ControlChannelWriter(_outputStreamClient);
 	}
 	
 	
@@ -70,20 +141,36 @@ public class FTPServerThread extends Thread {
 	 */
 	@Override
 	public void run() {
+		METRICS.openSession();
 		try {
-			sendReply("220 Enter User Name");
-			InputStream in = clientSocket.getInputStream();
-			BufferedReader br = new BufferedReader(new InputStreamReader(in));
-			String request = br.readLine();
+			sendWelcome();
+			ControlChannelReader reader = new ControlChannelReader(clientSocket.getInputStream());
 			try {
-				while(request != null) {
+				while(true) {
+					String request;
+					try {
+						request = reader.readRequest();
+					}catch(RequestTooLongException e) {
+						sendReply("500 Request Too Long");
+						flushReplies();
+						continue;
+					}catch(SocketTimeoutException e) {
+						if(isTransferActive()) // the control connection stays quiet during a long transfer
+							continue;
+						throw e;
+					}
+					
+					if(request == null)
+						break;
 					if (request.length() > 0) {
 						handleRequest(request);
 					}
-					request = br.readLine();
+					finishRequest(reader.hasBufferedRequest());
 				}
 			}finally {
-				br.close();
+				abortTransfer(); // nobody is left to receive the data
+				awaitTransfer();
+				leaveBandwidthUser();
 				clientSocket.close();
 			}
 			
@@ -91,23 +178,86 @@ public class FTPServerThread extends Thread {
 			System.err.println("FTP Server Thread Died: Client Response Times Out");
 		}catch(Exception e) {
 			System.err.println("FTP Server Thread Died: " + e);
+		}finally {
+			METRICS.closeSession();
 		}
 	}
 	
 	
+	/*
+	 * Greets the client once the control connection is established
+	 */
+	public void sendWelcome() {
+		sendReply("220 Enter User Name");
+		flushReplies();
+	}
+	
+	
 	/*
 	 * Replies to the client request on the control channel
 	 * 
 	 * Arguments:
 	 * reply		the message to send to the client
+	 * 
+	 * Note:
+	 * The reply is only buffered, it is sent by flushReplies()
 	 */
-	public void sendReply(String reply) {
+	public void sendReply(CharSequence reply) {
 		if(reply == null)
 			return;
 		
 		try {
-			outputStreamClient.write((reply + "\r\n").getBytes());
-			outputStreamClient.flush();
+			replyWriter.writeReply(reply);
+		}catch(IOException e) {
+			System.err.println("FTP Server Thread: Could Not Send Reply To Client");
+		}
+	}
+	
+	
+	/*
+	 * Replies to the client request on the control channel
+	 * 
+	 * Arguments:
+	 * reply		the encoded message to send to the client, with its line endings
+	 * 
+	 * Note:
+	 * The reply is only buffered, it is sent by flushReplies()
+	 */
+	public void sendReply(byte[] reply) {
+		try {
+			replyWriter.writeReply(reply);
+		}catch(IOException e) {
+			System.err.println("FTP Server Thread: Could Not Send Reply To Client");
+		}
+	}
+	
+	
+	/*
+	 * Sends the buffered replies once the last request received has been handled,
+	 * so that the replies to pipelined requests are sent together in one write
+	 * (or after each request if pipelining is disabled)
+	 * 
+	 * Arguments:
+	 * hasPendingRequests		true if complete requests are already waiting to be handled
+	 * 
+	 * Note:
+	 * The requests are still handled one at a time and in order, 
+	 * so the replies stay in the order of the requests (See RFC959)
+	 */
+	public void finishRequest(boolean hasPendingRequests) {
+		if(!IS_PIPELINING_ENABLED || !hasPendingRequests)
+			flushReplies();
+	}
+	
+	
+	/*
+	 * Sends the buffered replies to the client
+	 * (Called once no more request is waiting, 
+	 * and before waiting for the client on the data channel)
+	 */
+	public void flushReplies() {
+		try {
+			replyWriter.flush();
 		}catch(IOException e) {
 			System.err.println("FTP Server Thread: Could Not Send Reply To Client");
 		}
@@ -124,74 +274,175 @@ public class FTPServerThread extends Thread {
 	 * - An error message if - there is a syntax error in the arguments ("501")
 	 * 						 - the command is not recognized/handled ("500")
 	 * - Other messages are handled by intermediate methods
+	 * 
+	 * Note:
+	 * - The command is looked up in the command table (See FTPCommand) and the arguments
+	 *   are read in place, so that a request is handled without splitting it
+	 * - The time taken to handle the request is recorded in the server metrics,
+	 *   from the end of the wait for the running transfer, if any (the transfer 
+	 *   itself is recorded as a download or an upload)
+	 * - While a data transfer runs, only "ABOR", "STAT" and "NOOP" are handled right away,
+	 *   the other requests wait for the end of the transfer so that they are replied in order
 	 */
 	public void handleRequest(String request) {
+		long startTime = System.nanoTime();
+		FTPCommand command = null;
 		try {
-			// Split in maximum 2 pieces at the 2 first <space> character
-			String requestPieces[] = request.split(" ", 2); 
-			String command = requestPieces[0];
-			String arguments[] = null;
-			if(requestPieces.length > 1) { //if the request contains arguments
-				arguments = requestPieces[1].split(",");
+			int commandEnd = request.indexOf(' '); // the command ends at the first <space> character
+			if(commandEnd < 0)
+				commandEnd = request.length();
+			
+			command = FTPCommand.lookup(request, commandEnd);
+			if(command == null) {
+				sendReply("500 Unrecognized Command");
+				return;
+			}
+			
+			boolean hasArguments = commandEnd < request.length();
+			if(command.isArgumentRequired() && !hasArguments) {
+				sendReply("501 Syntax Error in Arguments");
+				return;
+			}
+			
+			// Only the first of the comma-separated arguments is used, except by "PORT"
+			String argument = (hasArguments && command != FTPCommand.PORT) ? 
+					getFirstArgument(request, commandEnd + 1) : null;
+			
+			if(!command.isServedDuringTransfer()) {
+				awaitTransfer();
+				startTime = System.nanoTime();
 			}
 			
 			switch(command) {
-				case "USER": requestUSER(arguments[0]);
+				case USER: requestUSER(argument);
 					break;
-				case "PASS": requestPASS(arguments[0]);
+				case PASS: requestPASS(argument);
 					break;
-				case "SYST": requestSYST();
+				case SYST: requestSYST();
 					break;
-				case "PORT": 
-					int[] nums = new int[6];
-					for(int i = 0; i < 6; i++) {
-						nums[i] = Integer.parseInt(arguments[i]);
-					}	
-					requestPORT(nums);
+				case PORT: 
+					int[] nums = parseNumbers(request, commandEnd + 1, 6);
+					if(nums == null)
+						sendReply("501 Invalid Parameters; 6 Numbers In Range [0; 255] Expected");
+					else
+						requestPORT(nums);
 					break;
-				case "PASV": requestPASV();
+				case PASV: requestPASV();
 					break;
-				case "TYPE": 
-					if (arguments[0].length() > 1) { 
+				case TYPE: 
+					if (argument.length() > 1) { 
 						sendReply("501 Syntax Error in Arguments; "
 								+ "A Unique Character Is Expected "
 								+ "- Either 'I' for Binary or 'A' for ASCII Transfer Type");
 					}else
-						requestTYPE(arguments[0].charAt(0));
+						requestTYPE(argument.charAt(0));
+					break;
+				case MODE: 
+					if (argument.length() > 1) { 
+						sendReply("501 Syntax Error in Arguments; "
+								+ "A Unique Character Is Expected "
+								+ "- Either 'S' for Stream or 'Z' for Compressed Transfer Mode");
+					}else
+						requestMODE(argument.charAt(0));
 					break;
-				case "CDUP": requestCDUP();
+				case CDUP: requestCDUP();
 					break;
-				case "CWD": requestCWD(arguments[0]);
+				case CWD: requestCWD(argument);
 					break;
-				case "LIST": 
-					if(arguments != null)
-						requestLIST(arguments[0]);
+				case LIST: 
+					if(argument != null)
+						requestLIST(argument);
 					else
 						requestLIST();
 					break;
-				case "PWD": requestPWD();
+				case PWD: requestPWD();
+					break;
+				case FEAT: requestFEAT();
 					break;
-				case "FEAT": requestFEAT();
+				case RETR: requestRETR(argument);
 					break;
-				case "RETR": requestRETR(arguments[0]);
+				case STOR: requestSTOR(argument);
 					break;
-				case "STOR": requestSTOR(arguments[0]);
+				case DELE: requestDELE(argument);
 					break;
-				case "DELE": requestDELE(arguments[0]);
+				case RNFR: requestRNFR(argument);
 					break;
-				case "RNFR": requestRNFR(arguments[0]);
+				case RNTO: requestRNTO(argument);
 					break;
-				case "RNTO": requestRNTO(arguments[0]);
+				case MDTM: requestMDTM(argument);
 					break;
-				case "MDTM": requestMDTM(arguments[0]);
+				case SIZE: requestSIZE(argument);
+					break;
+				case REST: requestREST(argument);
+					break;
+				case RANG: requestRANG(argument);
+					break;
+				case SITE: requestSITE(argument);
+					break;
+				case ABOR: requestABOR();
+					break;
+				case STAT: requestSTAT(argument);
+					break;
+				case NOOP: requestNOOP();
 					break;
-				default: sendReply("500 Unrecognized Command");
-					break;	
 			}
 			
 		}catch(StringIndexOutOfBoundsException | NullPointerException e) {
 			sendReply("501 Syntax Error in Arguments");
+		}finally {
+			METRICS.recordRequest(command, System.nanoTime() - startTime);
+		}
+	}
+	
+	
+	/*
+	 * Gives the first of the comma-separated arguments of a request
+	 * 
+	 * Arguments:
+	 * request		the request
+	 * start		the position of the arguments in the request
+	 * 
+	 * Return:
+	 * the characters from the start position up to the first ',' character
+	 * (or the end of the request)
+	 */
+	private static String getFirstArgument(String request, int start) {
+		int end = request.indexOf(',', start);
+		return request.substring(start, (end < 0) ? request.length() : end);
+	}
+	
+	
+	/*
+	 * Parses the comma-separated decimal numbers of a request 
+	 * (eg: the arguments of "PORT")
+	 * 
+	 * Arguments:
+	 * request		the request
+	 * start		the position of the arguments in the request
+	 * count		the number of numbers to parse, the following ones are ignored
+	 * 
+	 * Return:
+	 * the numbers, null if there are less of them or if one of them can't be parsed
+	 */
+	private static int[] parseNumbers(String request, int start, int count) {
+		int[] numbers = new int[count];
+		int position = start;
+		for(int i = 0; i < count; i++) {
+			if(position > request.length())
+				return null;
+			
+			int end = request.indexOf(',', position);
+			if(end < 0)
+				end = request.length();
+			
+			try {
+				numbers[i] = Integer.parseInt(request, position, end, 10);
+			}catch(NumberFormatException e) {
+				return null;
+			}
+			position = end + 1;
 		}
+		return numbers;
 	}
 	
 	
@@ -211,6 +462,7 @@ public class FTPServerThread extends Thread {
 		if(ANONYMOUS.contentEquals(username)) {
 			isLoggedIn = true;
 			isAnonymous = true;
+			joinBandwidthUser(ANONYMOUS);
 			sendReply("230 Authentication Successful");
 		}else {
 			sendReply("331 Enter the password");
@@ -237,6 +489,7 @@ public class FTPServerThread extends Thread {
 		else if(USERNAME.contentEquals(username) && PASSWORD.contentEquals(password)) {
 			isLoggedIn = true;
 			isAnonymous = false;
+			joinBandwidthUser(USERNAME);
 			sendReply("230 Authentication Successful");
 			
 		}else
@@ -335,12 +588,20 @@ public class FTPServerThread extends Thread {
 		else {
 			isActiveMode = false;
 			
+			try {
+				reservePassivePort(); // reserve before advertising the port
+			}catch(IOException e) {
+				sendReply("425 Can't Open Data Connection; No Passive Port Available");
+				return;
+			}
+			
 			String answer = "227 Entering Passive Mode (";
 			byte[] ipNums = ipServer.getAddress();
 			for(int i = 0; i < 4; i++) {
 				answer += (ipNums[i] & 0xFF) + ",";
 			}
-			answer += DATA_SERVER_PORT / 256 + "," + DATA_SERVER_PORT % 256 + ")";
+			int port = passiveReservation.getPort();
+			answer += port / 256 + "," + port % 256 + ")";
 			sendReply(answer);
 			
 			try {
@@ -387,6 +648,37 @@ public class FTPServerThread extends Thread {
 	}
 	
 	
+	/*
+	 * Handles "MODE" requests
+	 * -> Sets the transfer mode
+	 * 
+	 * Arguments:
+	 * mode		the transfer mode, either 'S' (Stream) or 'Z' (Compressed: 
+	 * 			the data channel carries a deflate stream)
+	 * 
+	 * Reply:
+	 * - A successful message advertising the transfer mode ("200")
+	 * - Or, an error message if - the client is not logged in ("530")
+	 * 							 - the mode is not recognized ("504")
+	 */
+	public void requestMODE(char mode) {
+		if(isLoggedIn == false)
+			sendReply("530 Not Logged In");
+		
+		else if(mode == 'S' || mode == 's') {
+			isCompressedMode = false;
+			sendReply("200 Stream Transfer Mode");
+			
+		}else if(mode == 'Z' || mode == 'z') {
+			isCompressedMode = true;
+			sendReply("200 Compressed Transfer Mode");
+			
+		}else
+			sendReply("504 Command Not Implemented For the Parameter '" + String.valueOf(mode)
+			+ "' - Either 'S' (Stream) or 'Z' (Compressed) Accepted");
+	}
+	
+	
 	/*
 	 * Handles "CWD" (Change Working Directory) requests
 	 * -> changes the working directory
@@ -404,7 +696,7 @@ public class FTPServerThread extends Thread {
 			sendReply("530 Not Logged In");
 		
 		else {
-			VirtualDirectory buffer = rootDirectory.getDirectory(path, !isAnonymous);
+			VirtualDirectory buffer = currentDirectory.getDirectory(path, !isAnonymous);
 			if(buffer != null) {
 				currentDirectory = buffer;
 				sendReply("250 Move To Directory " + path);
@@ -465,10 +757,10 @@ public class FTPServerThread extends Thread {
 			sendReply("530 Not Logged In");
 		
 		else {
-			VirtualDirectory directory = rootDirectory.getDirectory(pathname, !isAnonymous);
+			VirtualDirectory directory = currentDirectory.getDirectory(pathname, !isAnonymous);
 			if(directory != null) {
 				sendReply("150 Directory Found; About To Open Data Connection");
-				sendOnDataChannel(directory.printDirectoryContent(!isAnonymous));
+				startTransfer("LIST " + pathname, () -> sendOnDataChannel(directory));
 			
 			}else
 				sendReply("451 Path Error; Can't Found the Directory");
@@ -497,7 +789,8 @@ public class FTPServerThread extends Thread {
 		
 		else {
 			sendReply("150 About To Open Data Connection");
-			sendOnDataChannel(currentDirectory.printDirectoryContent(!isAnonymous));
+			VirtualDirectory directory = currentDirectory;
+			startTransfer("LIST", () -> sendOnDataChannel(directory));
 		}
 	}
 	
@@ -528,10 +821,116 @@ public class FTPServerThread extends Thread {
 	 * an additional feature implemented in the server ("211")
 	 */
 	public void requestFEAT() {
+		sendReply(FEAT_REPLY);
+	}
+	
+	
+	/*
+	 * Handles "SITE" requests
+	 * -> Executes a server specific command, "STATS" is the only one implemented:
+	 * it gives the metrics of the server (sessions, requests, transfers and latencies)
+	 * 
+	 * Arguments:
+	 * siteCommand		the server specific command
+	 * 
+	 * Reply:
+	 * - A multi-line reply where on each new line, is given
+	 *   a metric of the server ("211")
+	 * - Or, an error message if - the client is not logged in ("530")
+	 * 							 - the command is not implemented ("504")
+	 */
+	public void requestSITE(String siteCommand) {
+		if(!isLoggedIn)
+			sendReply("530 Not Logged In");
+		else if(!"STATS".equalsIgnoreCase(siteCommand))
+			sendReply("504 Command Not Implemented For That Parameter");
+		else {
+			StringBuilder reply = new StringBuilder("211-Server Statistics: \r\n");
+			reply.append(METRICS.getReport()).append("211 END");
+			sendReply(reply);
+		}
+	}
+	
+	
+	/*
+	 * Handles "ABOR" (ABORt) requests
+	 * -> aborts the running data transfer, if any, and closes its data connection
+	 * 
+	 * Reply:
+	 * - A reply to the aborted transfer ("426"), followed by
+	 *   a successful message advertising that the transfer is aborted ("226")
+	 * - Or, a message advertising that no transfer is running ("226")
+	 * 
+	 * Note:
+	 * The request is handled while the transfer runs, 
+	 * the reply is only sent once the transfer has stopped (See RFC959)
+	 */
+	public void requestABOR() {
+		boolean isAborted = isTransferActive();
+		if(isAborted)
+			abortTransfer();
+		awaitTransfer(); // the transfer replies first
+		isTransferAborted = false; // the next data connection can be established
+		
+		if(isAborted)
+			sendReply("226 Abort Successful; Data Connection Closed");
+		else
+			sendReply("226 No Transfer To Abort");
+	}
+	
+	
+	/*
+	 * Handles "STAT" (STATus) requests without argument
+	 * -> gives the status of the session and the progress of the running data transfer
+	 * 
+	 * Arguments:
+	 * pathname		the pathname to list on the control channel, null if none
+	 * 
+	 * Reply:
+	 * - A multi-line reply where on each new line, is given
+	 *   the transfer progress or the session state ("211")
+	 * - Or, an error message if a pathname is given ("504")
+	 * 
+	 * Note:
+	 * The request is handled while a transfer runs, the progress of 
+	 * a download is counted in bytes of the file, chunk by chunk
+	 */
+	public void requestSTAT(String pathname) {
+		if(pathname != null) {
+			sendReply("504 Command Not Implemented For That Parameter");
+			return;
+		}
 		
-		sendReply("211-Extension Supported by FTP Server: \r\n"
-				+ " MDTM\r\n"  // Very important -> add a <space> character before each feature
-				+ "211 END\r\n");
+		StringBuilder reply = new StringBuilder();
+		if(isTransferActive()) {
+			long size = transferSize;
+			reply.append("211-Transfer Status: \r\n");
+			reply.append(' ').append(transferDescription).append("\r\n");
+			reply.append(' ').append(transferredBytes);
+			if(size >= 0)
+				reply.append(" Of ").append(size);
+			reply.append(" Bytes Transfered\r\n");
+			
+		}else {
+			reply.append("211-Server Status: \r\n");
+			reply.append(isLoggedIn ? " Logged In As " + username : " Not Logged In").append("\r\n");
+			reply.append(" TYPE: ").append(isBinaryTransferType ? "Binary" : "ASCII");
+			reply.append("; MODE: ").append(isCompressedMode ? "Compressed" : "Stream").append("\r\n");
+			reply.append(" No Transfer In Progress\r\n");
+		}
+		sendReply(reply.append("211 END"));
+	}
+	
+	
+	/*
+	 * Handles "NOOP" (NO OPeration) requests
+	 * -> keeps the control connection alive, even while a data transfer runs
+	 * 
+	 * Reply:
+	 * A successful message ("200")
+	 */
+	public void requestNOOP() {
+		sendReply("200 NOOP Command Successful");
 	}
 	
 	
@@ -548,13 +947,27 @@ public class FTPServerThread extends Thread {
 	 * 										   - the data was correctly transfered ("226")
 	 * - Or, an error message if - the client is not logged in ("530")
 	 * 						 	 - the file can't be found ("550")
+	 * 							 - the restart position set by "REST" or "RANG" 
+	 * 							   is beyond the end of the file ("554")
 	 * 							 - the data connection can't be opened ("425")
 	 * 							 - the transfer is aborted because of an error 
 	 * 							   when writing in the data channel	("426")	
 	 * 							 - the transfer is aborted due to either the server 
 	 * 							   or the client data socket that has timed out ("426")
+	 * 
+	 * Note:
+	 * - Only the bytes from the position set by "REST" (up to the end of the range 
+	 *   set by "RANG") are sent, so that an interrupted download can be resumed
+	 *   and separate segments of a file can be downloaded in parallel
+	 * - The file is sent by the transfer executor, "ABOR", "STAT" 
+	 *   and "NOOP" are answered in the meantime
 	 */
 	public void requestRETR(String filename) { 
+		long position = restartPosition;
+		long end = restartEnd;
+		restartPosition = 0; // the restart position only applies to the next transfer
+		restartEnd = -1;
+		
 		if(isLoggedIn == false)
 			sendReply("530 Not Logged In");
 		
@@ -563,9 +976,23 @@ public class FTPServerThread extends Thread {
 			if(file == null)
 				sendReply("550 File Can't Be Found");
 			
+			else if(position > file.getSize())
+				sendReply("554 Requested Action Not Taken; Invalid Restart Position");
+			
 			else {
-				sendReply("150 File Found; About To Open Data Connection");
-				sendOnDataChannel(file);
+				ContentReader reader = openFile(file); // read until the end of the transfer, even if the file is removed
+				if(reader == null)
+					sendReply("550 File Can't Be Found");
+				
+				else {
+					sendReply("150 File Found; About To Open Data Connection");
+					long count = (end < 0) ? Long.MAX_VALUE : end - position;
+					startTransfer("RETR " + filename, () -> {
+						try(reader) {
+							sendOnDataChannel(file, reader, position, count);
+						}
+					});
+				}
 			}
 		}
 	}
@@ -584,6 +1011,8 @@ public class FTPServerThread extends Thread {
 	 * 										   - the data was correctly uploaded ("226")
 	 * - Or, an error message if - the client is not logged in ("530")
 	 * 							 - the filename is not allowed ("553")
+	 * 							 - the restart position set by "REST" is beyond 
+	 * 							   the end of the file to overwrite ("554")
 	 * 							 - the data connection can't be opened ("425")
 	 * 							 - the transfer is aborted because of an error 
 	 * 							   when reading from the data channel ("426")	
@@ -591,33 +1020,71 @@ public class FTPServerThread extends Thread {
 	 * 							   or the client data socket that has timed out ("426")
 	 * 							 - the data to receive has exceeded the maximum transfer size ("452")
 	 * 							 - there was a processing error in the uploading of virtual files ("451")
+	 * 
+	 * Note:
+	 * - After a "REST" request, the received data overwrites the file 
+	 *   from the restart position on, so that an interrupted upload can be resumed
+	 * - The file is received in the background (See startTransfer), 
+	 *   it is only added to the directory once complete
 	 */
 	public void requestSTOR(String filename) {
+		long position = restartPosition;
+		restartPosition = 0; // the restart position only applies to the next transfer
+		restartEnd = -1;
+		VirtualFile<?> restartedFile = (position > 0) ? currentDirectory.downloadFile(filename) : null;
+		
 		if(isLoggedIn == false)
 			sendReply("530 Not Logged In");
 		
+		else if(position > 0 && (restartedFile == null || position > restartedFile.getSize()))
+			sendReply("554 Requested Action Not Taken; Invalid Restart Position");
+		
 		else {
 			sendReply("150 File Status Okay; About To Open Data Connection");
-			VirtualFile<?> virtualFile = null;
-			try {
-				if(isBinaryTransferType) {
-					byte[] data = (byte[])receiveFromDataChannel();
-					virtualFile = new VirtualFile<byte[]>(filename, data, data.length);
-				}else {
-					String data = (String)receiveFromDataChannel();
-					virtualFile = new VirtualFile<String>(filename, data, data.length());
-				}
-				
-				if(currentDirectory.uploadFile(virtualFile))
-					sendReply("226 Data Uploaded");
-				else
-					sendReply("451 Processing Error; Upload Failed");
-			}catch(InvalidStringFormatException e) {
-				sendReply("553 Filename Not Allowed");
-			}catch(TransferSizeExceededException e) {
-				sendReply("452 Upload aborted; Maximum File Size Exceeded");
-			}
+			VirtualDirectory directory = currentDirectory;
+			startTransfer("STOR " + filename, () -> {
+				StoredContent content = receiveFromDataChannel(restartedFile, position);
+				if(content != null) // the failure has already been replied
+					storeFile(directory, filename, content);
+			});
+		}
+	}
+	
+	
+	/*
+	 * Adds an uploaded file to a directory
+	 * 
+	 * Arguments:
+	 * directory	the directory the file is uploaded to
+	 * filename		the relative filename of the file
+	 * content		the content received from the client
+	 * 
+	 * Reply:
+	 * - A successful message advertising that the data was correctly uploaded ("226")
+	 * - Or, an error message if - the filename is not allowed ("553")
+	 * 							 - the data has exceeded the maximum transfer size ("452")
+	 * 							 - there was a processing error in the uploading of virtual files ("451")
+	 * 							 - the upload can't be made durable ("451")
+	 */
+	private void storeFile(VirtualDirectory directory, String filename, StoredContent content) {
+		try {
+			VirtualFile<StoredContent> virtualFile = new VirtualFile<StoredContent>(filename, content, content.getSize());
 			
+			// the file only becomes visible once its whole content has been received
+			if(directory.uploadFile(virtualFile))
+				sendReply("226 Data Uploaded");
+			else {
+				content.delete();
+				sendReply("451 Processing Error; Upload Failed");
+			}
+		}catch(InvalidStringFormatException e) {
+			content.delete();
+			sendReply("553 Filename Not Allowed");
+		}catch(TransferSizeExceededException e) {
+			content.delete();
+			sendReply("452 Upload aborted; Maximum File Size Exceeded");
+		}catch(ChangeNotDurableException e) { // the file is uploaded, but only in memory
+			sendReply("451 Processing Error; Upload Not Logged");
 		}
 	}
 	
@@ -633,16 +1100,22 @@ public class FTPServerThread extends Thread {
 	 * - A successful message advertising that the file is deleted ("250")
 	 * - Or, an error message if - the client is not logged in ("530")
 	 * 							 - the file can't be found ("550")
+	 * 							 - the deletion can't be made durable ("451")
 	 */
 	public void requestDELE(String filename) {
 		if(isLoggedIn == false)
 			sendReply("530 Not Logged In");
 		
-		else if(currentDirectory.removeFile(filename) != null)
-			sendReply("250 File " + "\"" + filename + "\"" + " Deleted");
-		
-		else
-			sendReply("550 File Can't Be Found");
+		else {
+			try {
+				if(currentDirectory.removeFile(filename) != null)
+					sendReply("250 File " + "\"" + filename + "\"" + " Deleted");
+				else
+					sendReply("550 File Can't Be Found");
+			}catch(ChangeNotDurableException e) {
+				sendReply("451 Processing Error; Deletion Not Logged");
+			}
+		}
 	}
 	
 	
@@ -686,6 +1159,7 @@ public class FTPServerThread extends Thread {
 	 * - Or, an error message if - the client is not logged in ("530")
 	 * 							 - the new pathname is not allowed ("553")
 	 * 							 - an "RNFR" request has not been done previously ("503")
+	 * 							 - the rename can't be made durable ("451")
 	 */
 	public void requestRNTO(String newPathname) {
 		if(isLoggedIn == false)
@@ -698,11 +1172,16 @@ public class FTPServerThread extends Thread {
 			if(oldPathnameBuffer.contentEquals(newPathname)) // if no change in pathname
 				sendReply("250 File " + "\"" + oldPathnameBuffer + "\"" + " Renamed \"" + newPathname + "\"");
 						
-			else if(currentDirectory.renameFile(oldPathnameBuffer, newPathname)) // if the buffered file has successfully been renamed
-				sendReply("250 File " + "\"" + oldPathnameBuffer + "\"" + " Renamed \"" + newPathname + "\"");
-			
-			else
-				sendReply("553 New Pathname \"" + newPathname + "\" Not Allowed");	
+			else {
+				try {
+					if(currentDirectory.renameFile(oldPathnameBuffer, newPathname)) // if the buffered file has successfully been renamed
+						sendReply("250 File " + "\"" + oldPathnameBuffer + "\"" + " Renamed \"" + newPathname + "\"");
+					else
+						sendReply("553 New Pathname \"" + newPathname + "\" Not Allowed");
+				}catch(ChangeNotDurableException e) {
+					sendReply("451 Processing Error; Rename Not Logged");
+				}
+			}
 		}
 		
 		oldPathnameBuffer = null;
@@ -726,6 +1205,8 @@ public class FTPServerThread extends Thread {
 			VirtualFile<?> file = currentDirectory.downloadFile(filename);
 			if(file != null)
 				sendReply("213 " + file.getModificationTime()); 
+			else // every request gets its reply, or the pipelined replies would be shifted
+				sendReply("550 File Can't Be Found");
 		}else
 			sendReply("500 File Can't Be Found");
 			
@@ -733,56 +1214,200 @@ public class FTPServerThread extends Thread {
 	
 	
 	/*
-	 * Handles the transmission of data to the client through the data channel
+	 * Handles "SIZE" requests (See RFC3659)
+	 * -> gives the size of a file, so that a client mirroring a directory 
+	 * can compare it without a transfer
 	 * 
 	 * Arguments:
-	 * data		the data to send to the client
+	 * filename		the filename of the file
 	 * 
 	 * Reply:
-	 * - A successful message advertising that the data was correctly transfered ("226")
-	 * - Or, an error message if - the data connection can't be opened ("425")
-	 * 							 - the transfer is aborted because of an error 
-	 * 							   when writing in the data channel	("426")	
-	 * 							 - the transfer is aborted due to either the server 
-	 * 							   or the client data socket that has timed out ("426")
+	 * - A successful message advertising the size of the file in bytes ("213")
+	 * - Or, an error message if - the client is not logged in ("530")
+	 * 							 - the file can't be found ("550")
+	 * 
+	 * Note:
+	 * The size is the size of the stored file, whatever the transfer type
 	 */
-	public void sendOnDataChannel(Object data) {
-		if(!isDataChannelOpen) {
-			try {
-				establishDataConnection();
-			}catch(SocketTimeoutException e) {
-				sendReply("426 Transfer aborted; Data Connection Timed Out");
-			}catch (IOException e) {
-				sendReply("425 Can't Open Data Connection");
-			}
+	public void requestSIZE(String filename) {
+		if(isLoggedIn == false)
+			sendReply("530 Not Logged In");
+		
+		else {
+			VirtualFile<?> file = currentDirectory.downloadFile(filename);
+			if(file != null)
+				sendReply("213 " + file.getSize());
+			else
+				sendReply("550 File Can't Be Found");
 		}
+	}
+	
+	
+	/*
+	 * Handles "REST" (RESTart) requests
+	 * -> sets the position from which the next "RETR" or "STOR" transfers the file
+	 * 
+	 * Arguments:
+	 * position		the restart position, in bytes from the beginning of the file
+	 * 
+	 * Reply:
+	 * - A successful message advertising the restart position ("350")
+	 * - Or, an error message if - the client is not logged in ("530")
+	 * 							 - the position is not a positive number ("501")
+	 */
+	public void requestREST(String position) {
+		if(isLoggedIn == false)
+			sendReply("530 Not Logged In");
 		
-		if(isDataChannelOpen) {
+		else {
 			try {
-				if(data instanceof VirtualFile<?>)
-					transferData((VirtualFile<?>) data);
-				else
-					transferData(data.toString());
+				long _restartPosition = Long.parseLong(position.trim());
+				if(_restartPosition < 0)
+					throw new NumberFormatException();
 				
-				sendReply("226 File/Directory Found; Transfer Completed");
-			}catch (IOException e) {
-				sendReply("426 Transfer aborted");
-			}finally {
-				try {
-					closeDataConnection();
-				}catch(IOException e) {
-					System.err.println("FTP Server Thread: Could Not Close Data Connection");
-				}
+				restartPosition = _restartPosition;
+				restartEnd = -1; // "REST" cancels any range set by "RANG"
+				sendReply("350 Restarting At " + restartPosition + "; Send RETR Or STOR");
+			}catch(NumberFormatException e) {
+				sendReply("501 Syntax Error in Arguments; A Positive Restart Position Is Expected");
 			}
 		}
 	}
 	
 	
 	/*
-	 * Handles the transmission of data from the client through the data channel
+	 * Handles "RANG" (RANGe) requests
+	 * -> sets the range of bytes the next "RETR" transfers, 
+	 * so that a client can download separate segments of a file 
+	 * in parallel on several connections ("RANG 1 0" resets the range)
 	 * 
-	 * Return:
-	 * The data received from the client
+	 * Arguments:
+	 * range		the positions of the first and the last byte 
+	 * 				of the range (both included), separated by a space
+	 * 
+	 * Reply:
+	 * - A successful message advertising the range ("350")
+	 * - Or, an error message if - the client is not logged in ("530")
+	 * 							 - the range can't be parsed or is empty ("501")
+	 */
+	public void requestRANG(String range) {
+		if(isLoggedIn == false)
+			sendReply("530 Not Logged In");
+		
+		else {
+			try {
+				String bounds = range.trim();
+				int separator = bounds.indexOf(' '); // the bounds are parsed in place, as for "PORT"
+				if(separator < 0)
+					throw new NumberFormatException();
+				
+				int endStart = separator + 1;
+				while(endStart < bounds.length() && bounds.charAt(endStart) == ' ')
+					endStart++;
+				long start = Long.parseLong(bounds, 0, separator, 10);
+				long end = Long.parseLong(bounds, endStart, bounds.length(), 10);
+				
+				if(start == 1 && end == 0) { // resets the range
+					restartPosition = 0;
+					restartEnd = -1;
+					sendReply("350 Restarting At 0; Ending At End Of File");
+				}else if(start < 0 || end < start || end == Long.MAX_VALUE)
+					sendReply("501 Syntax Error in Arguments; Invalid Range");
+				else {
+					restartPosition = start;
+					restartEnd = end + 1;
+					sendReply("350 Restarting At " + start + "; Ending At " + end);
+				}
+			}catch(NumberFormatException e) {
+				sendReply("501 Syntax Error in Arguments; Two Positions Are Expected");
+			}
+		}
+	}
+	
+	
+	/*
+	 * Handles the transmission of data to the client through the data channel
+	 * 
+	 * Arguments:
+	 * data		the data to send to the client
+	 * 
+	 * Reply:
+	 * - A successful message advertising that the data was correctly transfered ("226")
+	 * - Or, an error message if - the data connection can't be opened ("425")
+	 * 							 - the transfer is aborted because of an error 
+	 * 							   when writing in the data channel	("426")	
+	 * 							 - the transfer is aborted due to either the server 
+	 * 							   or the client data socket that has timed out ("426")
+	 * 							 - the transfer is aborted by "ABOR" ("426")
+	 * 
+	 * Note:
+	 * Runs on the transfer executor (See startTransfer)
+	 */
+	public void sendOnDataChannel(Object data) {
+		sendOnDataChannel(data, null, 0, Long.MAX_VALUE);
+	}
+	
+	
+	/*
+	 * Handles the transmission of data to the client through the data channel
+	 * 
+	 * Arguments:
+	 * data			the data to send to the client
+	 * reader		the reader of the content, if the data is a file (closed by the caller)
+	 * position		the position of the first byte to send, if the data is a file
+	 * count		the maximum number of bytes to send, if the data is a file
+	 * 
+	 * Reply:
+	 * See sendOnDataChannel(Object)
+	 */
+	public void sendOnDataChannel(Object data, ContentReader reader, long position, long count) {
+		flushReplies(); // the client waits for the preliminary reply
+		if(!isDataChannelOpen) {
+			try {
+				establishDataConnection();
+			}catch(SocketTimeoutException e) {
+				sendReply("426 Transfer aborted; Data Connection Timed Out");
+			}catch (IOException e) {
+				if(isTransferAborted)
+					sendReply("426 Transfer aborted; Aborted By Client");
+				else
+					sendReply("425 Can't Open Data Connection");
+			}
+		}
+		
+		if(isDataChannelOpen) {
+			try {
+				if(data instanceof VirtualFile<?>)
+					transferData((VirtualFile<?>) data, reader, position, count);
+				else if(data instanceof VirtualDirectory)
+					transferData((VirtualDirectory) data);
+				else
+					transferData(data.toString());
+				
+				sendReply("226 File/Directory Found; Transfer Completed");
+			}catch (IOException e) {
+				sendReply(isTransferAborted ? "426 Transfer aborted; Aborted By Client" : "426 Transfer aborted");
+			}finally {
+				try {
+					closeDataConnection();
+				}catch(IOException e) {
+					System.err.println("FTP Server Thread: Could Not Close Data Connection");
+				}
+			}
+		}
+	}
+	
+	
+	/*
+	 * Handles the transmission of data from the client through the data channel
+	 * 
+	 * Arguments:
+	 * restartedFile		the file whose first bytes are kept before the received data,
+	 * 						null if there is none
+	 * restartPosition		the number of bytes of the file to keep
+	 * 
+	 * Return:
+	 * The data received from the client, null if the transfer failed
 	 * 
 	 * Reply:
 	 * - Nothing if the data was correctly transfered
@@ -791,27 +1416,35 @@ public class FTPServerThread extends Thread {
 	 * 							   when reading from the data channel ("426")	
 	 * 							 - the transfer is aborted due to either the server 
 	 * 							   or the client data socket that has timed out ("426")
+	 * 							 - the transfer is aborted by "ABOR" ("426")
 	 * 							 - the data to receive has exceeded the maximum transfer size ("452")
+	 * 
+	 * Note:
+	 * Runs on the transfer executor (See startTransfer)
 	 */
-	public Object receiveFromDataChannel() {
+	public StoredContent receiveFromDataChannel(VirtualFile<?> restartedFile, long restartPosition) {
+		flushReplies(); // the client waits for the preliminary reply
 		if(!isDataChannelOpen) {
 			try {
 				establishDataConnection();
 			}catch(SocketTimeoutException e) {
 				sendReply("426 Transfer aborted; Data Connection Timed Out");
 			}catch (IOException e) {
-				sendReply("425 Can't Open Data Connection");
+				if(isTransferAborted)
+					sendReply("426 Transfer aborted; Aborted By Client");
+				else
+					sendReply("425 Can't Open Data Connection");
 			}
 		}
 		
-		Object data = null;
+		StoredContent data = null;
 		if(isDataChannelOpen){
 			try {
-				data = receiveData();
+				data = receiveData(restartedFile, restartPosition);
 			}catch(TransferSizeExceededException e) {
 				sendReply("452 Transfer aborted; Maximum Transfer Size Exceeded");
 			}catch (IOException e) {
-				sendReply("426 Transfer aborted");
+				sendReply(isTransferAborted ? "426 Transfer aborted; Aborted By Client" : "426 Transfer aborted");
 			}finally {
 				try {
 					closeDataConnection();
@@ -832,19 +1465,47 @@ public class FTPServerThread extends Thread {
 	 * IOException				if the data connection can't be established
 	 */
 	public void establishDataConnection() throws SocketTimeoutException, IOException{
-		if(isActiveMode)
-			dataClientSocket = new Socket(ipClient, portClient);
+		flushReplies(); // the client only connects once it has the reply to "PASV" or "PORT"
+		long startTime = System.nanoTime();
+		try {
+			Socket socket;
+			if(isActiveMode)
+				socket = SocketChannel.open(new InetSocketAddress(ipClient, portClient)).socket();
+				
+			else {
+				PassiveDataListener.Reservation reservation;
+				synchronized(transferLock) {
+					if(isTransferAborted)
+						throw new IOException("Transfer Aborted");
+					if(passiveReservation == null)
+						reservePassivePort();
+					reservation = passiveReservation;
+				}
+				
+				try {
+					socket = reservation.accept(TIMEOUT).socket(); // "ABOR" cancels the reservation
+				}finally {
+					cancelPassivePort(); // one data connection per "PASV"
+				}
+			}
 			
-		else {
-			dataServerSocket = new ServerSocket(DATA_SERVER_PORT);
-			dataServerSocket.setSoTimeout(TIMEOUT);
-			dataClientSocket = dataServerSocket.accept();
+			synchronized(transferLock) {
+				dataClientSocket = socket;
+				if(isTransferAborted) { // aborted while the connection was being established
+					socket.close();
+					throw new IOException("Transfer Aborted");
+				}
+			}
+			
+			dataClientSocket.setSoTimeout(TIMEOUT);
+			dataClientSocket.setTcpNoDelay(true);
+			dataClientSocket.setReuseAddress(true);
+		}catch(IOException e) {
+			METRICS.recordFailedDataConnection();
+			throw e;
 		}
-		
-		dataClientSocket.setSoTimeout(TIMEOUT);
-		dataClientSocket.setTcpNoDelay(true);
-		dataClientSocket.setReuseAddress(true);
 		isDataChannelOpen = true;
+		METRICS.recordDataConnection(System.nanoTime() - startTime);
 	}
 	
 	
@@ -865,79 +1526,369 @@ public class FTPServerThread extends Thread {
 	}
 	
 	
+	/*
+	 * Transfers the listing of a directory through the data channel to the client
+	 * 
+	 * Arguments:
+	 * directory		the directory to list
+	 * 
+	 * Throws:
+	 * IOException		if the data can't be written to the client data socket
+	 */
+	public void transferData(VirtualDirectory directory) throws IOException { 
+		long startTime = System.nanoTime();
+		SocketChannel channel = dataClientSocket.getChannel();
+		WritableByteChannel target = (channel != null) ? channel : Channels.newChannel(dataClientSocket.getOutputStream());
+		ByteBuffer buffer = TRANSFER_BUFFERS.acquire();
+		DeflateModeEncoder deflater = null;
+		ByteBuffer deflateBuffer = null;
+		
+		if(isCompressedMode) {
+			deflateBuffer = TRANSFER_BUFFERS.acquire();
+			deflater = new DeflateModeEncoder(target, deflateBuffer);
+			target = deflater;
+		}
+		
+		try {
+			directory.writeDirectoryListing(!isAnonymous, target, buffer);
+			
+			if(deflater != null)
+				deflater.finish();
+			METRICS.recordListing(System.nanoTime() - startTime);
+		}finally {
+			if(deflater != null)
+				deflater.close();
+			TRANSFER_BUFFERS.release(buffer);
+			TRANSFER_BUFFERS.release(deflateBuffer);
+		}
+	}
+	
+	
 	/*
 	 * Transfers data from a file through the data channel to the client
+	 * (in ASCII transfer type, the LF line endings are sent as CRLF,
+	 * in compressed transfer mode, the data is sent as a deflate stream)
+	 * chunk by chunk, so that "STAT" can report the progress of the transfer
+	 * and so that each chunk is granted by the bandwidth scheduler
+	 * (the encoded bytes actually sent are granted, See MeteredChannel)
 	 * 
 	 * Arguments:
-	 * file		the virtual file whose content must be transfered
+	 * file			the virtual file whose content must be transfered
+	 * reader		the reader of the content of the file, open for the whole transfer
+	 * position		the position of the first byte to transfer
+	 * count		the maximum number of bytes to transfer
 	 * 
 	 * Throws:
 	 * IOException		if the data can't be written to the client data socket
 	 */
-	public void transferData(VirtualFile<?> file) throws IOException { 
-		OutputStream out = dataClientSocket.getOutputStream();
+	public void transferData(VirtualFile<?> file, ContentReader reader, long position, long count) throws IOException { 
+		long startTime = System.nanoTime();
+		long contentBytes = Math.max(0, Math.min(count, file.getSize() - position));
+		SocketChannel channel = dataClientSocket.getChannel(); // zero-copy when the content is on disk
+		WritableByteChannel target = (channel != null) ? channel : Channels.newChannel(dataClientSocket.getOutputStream());
+		CompressedVariantCache.VariantBuilder variantBuilder = null;
+		boolean isWholeFile = position == 0 && count == Long.MAX_VALUE;
+		boolean isEncoded = isCompressedMode || !isBinaryTransferType;
 		
-		if(isBinaryTransferType) { // if Binary Transfer Type	
-			out.write((byte[])file.getContent());
-			out.flush();
+		if(isCompressedMode && isWholeFile) { // a popular file is compressed once
+			StoredContent variant = COMPRESSED_VARIANTS.getVariant(file, !isBinaryTransferType);
+			ContentReader variantReader = (variant != null) ? openVariant(variant) : null;
+			if(variantReader != null) {
+				try(variantReader) {
+					transferSize = variant.getSize();
+					for(long current = 0; current < variant.getSize(); ) {
+						long length = getChunkLength(variant.getSize() - current);
+						throttle(length);
+						variantReader.transferTo(current, length, target);
+						current += length;
+						transferredBytes = current;
+					}
+				}
+				METRICS.recordDownload(contentBytes, System.nanoTime() - startTime);
+				return;
+			}
+		}
+		
+		if(isEncoded) // the encoded bytes sent are metered, not the bytes of the content
+			target = new MeteredChannel(target);
+		
+		if(isCompressedMode && isWholeFile) { // the deflate stream sent is kept as the variant of the file, if it is popular enough
+			variantBuilder = COMPRESSED_VARIANTS.startVariant(file, !isBinaryTransferType, target);
+			if(variantBuilder != null)
+				target = variantBuilder;
+		}
+		
+		DeflateModeEncoder deflater = null;
+		ByteBuffer deflateBuffer = null;
+		AsciiModeEncoder encoder = null;
+		ByteBuffer buffer = null;
+		
+		if(isCompressedMode) {
+			deflateBuffer = TRANSFER_BUFFERS.acquire();
+			deflater = new DeflateModeEncoder(target, deflateBuffer);
+			target = deflater;
+		}
+		
+		if(!isBinaryTransferType) { // if ASCII Transfer Type
+			buffer = TRANSFER_BUFFERS.acquire();
+			encoder = new AsciiModeEncoder(target, buffer);
+			target = encoder;
+		}
+		
+		try {
+			transferSize = contentBytes;
+			for(long current = 0; current < contentBytes; ) {
+				long length = getChunkLength(contentBytes - current);
+				if(!isEncoded)
+					throttle(length);
+				reader.transferTo(position + current, length, target);
+				current += length;
+				transferredBytes = current;
+			}
 			
-		}else {					   // if ASCII Transfer Type
-			OutputStreamWriter outputStreamWriter = new OutputStreamWriter(out, StandardCharsets.UTF_8);
-			String content = file.getContent().toString();
-			outputStreamWriter.write(content, 0, content.length());
-		    outputStreamWriter.flush();			
+			if(encoder != null)
+				encoder.flush();
+			if(deflater != null)
+				deflater.finish();
+			if(variantBuilder != null)
+				variantBuilder.commit();
+			METRICS.recordDownload(contentBytes, System.nanoTime() - startTime);
+		}finally {
+			if(deflater != null)
+				deflater.close();
+			if(variantBuilder != null) // gives the variant up if the download failed
+				variantBuilder.close();
+			TRANSFER_BUFFERS.release(buffer);
+			TRANSFER_BUFFERS.release(deflateBuffer);
 		}
 	}
 	
 	
 	/*
 	 * Receives data through the data channel from the client
+	 * and streams it, chunk by chunk, into the content store
+	 * through a single pooled transfer buffer
+	 * (in ASCII transfer type, the CRLF line endings are stored as LF,
+	 * in compressed transfer mode, the received deflate stream is decompressed)
+	 * 
+	 * Arguments:
+	 * restartedFile		the file whose first bytes are kept before the received data,
+	 * 						null if there is none
+	 * restartPosition		the number of bytes of the file to keep
 	 * 
 	 * Return:
-	 * the data received from the client
+	 * the content received from the client
 	 * 
 	 * Throws:
 	 * IOException						if the data can't be read from the client data socket
+	 * 									or can't be stored
 	 * TransferSizeExceededException	if the data to receive has exceed the maximum transfer size 
+	 * 
+	 * Note:
+	 * A restarted upload copies the kept bytes of the file into the new content before 
+	 * reading the received data, the file itself is never modified: its running downloads, 
+	 * the files sharing its body and the namespace journal still see it whole.
+	 * The copy goes from file to file in the kernel for disk content, but it still
+	 * grows with the restart position, and the kept bytes are hashed again with deduplication
 	 */
-	public Object receiveData() throws IOException, TransferSizeExceededException {
+	public StoredContent receiveData(VirtualFile<?> restartedFile, long restartPosition) 
+			throws IOException, TransferSizeExceededException {
+		long startTime = System.nanoTime();
 		InputStream in = dataClientSocket.getInputStream();
+		ContentWriter writer = CONTENT_STORE.newWriter();
 		
-		if(isBinaryTransferType) { // if Binary Transfer Type
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			int readLength = 0;
-			byte[] data = new byte[VirtualDirectoryContent.MAX_FILE_SIZE + 1];
-			while ((readLength = in.read(data, 0, data.length)) != -1) {
-				buffer.write(data, 0, readLength);
-			}
+		ByteBuffer buffer = TRANSFER_BUFFERS.acquire();
+		AsciiModeDecoder decoder = isBinaryTransferType ? null : new AsciiModeDecoder();
+		DeflateModeDecoder inflater = isCompressedMode ? new DeflateModeDecoder() : null;
+		ByteBuffer inflateBuffer = isCompressedMode ? TRANSFER_BUFFERS.acquire() : null;
+		
+		try {
+			if(restartedFile != null && restartPosition > 0) // the bytes before the restart position are kept
+				restartedFile.appendTo(writer, restartPosition);
 			
-			if(buffer.size() > VirtualDirectoryContent.MAX_FILE_SIZE) {
-				throw new TransferSizeExceededException("Maximum Transfer Size (" 
-						+ VirtualDirectoryContent.MAX_FILE_SIZE 
-						+ " bytes) Exceeded");
+			int readLength = 0;
+			while ((readLength = in.read(buffer.array(), 0, buffer.capacity())) != -1) {
+				transferredBytes += readLength; // only written by the transfer, read by "STAT"
+				throttle(readLength); // the client is only read again once the bytes are granted
+				buffer.limit(readLength);
+				if(inflater == null)
+					storeData(buffer, decoder, writer);
+				else {
+					inflater.setInput(buffer);
+					while(inflater.inflate(inflateBuffer)) {
+						storeData(inflateBuffer, decoder, writer);
+						checkTransferSize(writer.getSize());
+					}
+				}
+				buffer.clear();
+				checkTransferSize(writer.getSize());
 			}
 			
-			data = buffer.toByteArray();
-			return (Object)data;
+			if(inflater != null)
+				inflater.finish();
+			if(decoder != null)
+				decoder.finish(writer);
 			
-		}else {				 	   // if ASCII Transfer Type
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(in));
-			String data = null;
-			String line = bufferedReader.readLine();
-			if(line != null)
-				data = "";
-			
-			while(line != null && data.length() < VirtualDirectoryContent.MAX_FILE_SIZE) {
-				data += line;
-				line = bufferedReader.readLine();
-			}
+			long receivedBytes = writer.getSize() - ((restartedFile != null) ? Math.min(restartPosition, restartedFile.getSize()) : 0);
+			StoredContent content = writer.commit();
+			METRICS.recordUpload(receivedBytes, System.nanoTime() - startTime);
+			return content;
+		}catch(IOException | TransferSizeExceededException e) {
+			writer.abort(); // nothing of a failed upload is kept
+			throw e;
+		}finally {
+			if(inflater != null)
+				inflater.end();
+			TRANSFER_BUFFERS.release(buffer);
+			TRANSFER_BUFFERS.release(inflateBuffer);
+		}
+	}
+	
+	
+	/*
+	 * Opens the content of a file for a download
+	 * 
+	 * Arguments:
+	 * file		the file
+	 * 
+	 * Return:
+	 * the reader of the content, null if the file has been removed since it was found
+	 */
+	private static ContentReader openFile(VirtualFile<?> file) {
+		try {
+			return file.open();
+		}catch(IOException e) {
+			return null;
+		}
+	}
+	
+	
+	/*
+	 * Opens a compressed variant for a download
+	 * 
+	 * Arguments:
+	 * variant		the compressed variant
+	 * 
+	 * Return:
+	 * the reader of the variant, null if it has been evicted from the cache 
+	 * since it was found (the file is then compressed on the fly)
+	 */
+	private static ContentReader openVariant(StoredContent variant) {
+		try {
+			return variant.open();
+		}catch(IOException e) {
+			return null;
+		}
+	}
+	
+	
+	/*
+	 * Gives the number of bytes to send in the next chunk of a download
+	 * 
+	 * Arguments:
+	 * remaining		the number of bytes left to send
+	 * 
+	 * Return:
+	 * a quantum of the bandwidth scheduler if the bandwidth is limited 
+	 * (so that the active transfers take turns), a larger chunk otherwise
+	 */
+	private static long getChunkLength(long remaining) {
+		return Math.min(BANDWIDTH.isLimited() ? BandwidthScheduler.QUANTUM : TRANSFER_CHUNK_SIZE, remaining);
+	}
+	
+	
+	/*
+	 * Shares the bucket of the authenticated user with its other sessions,
+	 * leaving the bucket of the user the session was logged in as, if any
+	 * (the bucket is not taken from the argument of "USER", which can change at any time)
+	 * 
+	 * Arguments:
+	 * user		the authenticated identity
+	 */
+	private void joinBandwidthUser(String user) {
+		synchronized(bandwidthLock) {
+			if(isSessionEnded || user.equals(bandwidthUser))
+				return;
 			
-			if(line != null) {
-				throw new TransferSizeExceededException("Maximum Transfer Size (" 
-														+ VirtualDirectoryContent.MAX_FILE_SIZE 
-														+ " bytes) Exceeded");
-			}
-			return (Object)data;
+			if(bandwidthUser != null)
+				BANDWIDTH.leaveUser(bandwidthUser);
+			bandwidthUser = user;
+			userBucket = BANDWIDTH.joinUser(user);
+		}
+	}
+	
+	
+	/*
+	 * Leaves the bucket of the user once the session has ended,
+	 * so that the bucket is dropped with the last session of the user
+	 */
+	public void leaveBandwidthUser() {
+		synchronized(bandwidthLock) {
+			isSessionEnded = true;
+			if(bandwidthUser != null)
+				BANDWIDTH.leaveUser(bandwidthUser);
+			bandwidthUser = null;
+		}
+	}
+	
+	
+	/*
+	 * Waits until the bandwidth scheduler grants bytes to the transfer
+	 * (See BandwidthScheduler)
+	 * 
+	 * Arguments:
+	 * bytes		the number of bytes about to be sent, or just received
+	 * 
+	 * Throws:
+	 * IOException		if the transfer is aborted while waiting
+	 */
+	private void throttle(long bytes) throws IOException {
+		if(!BANDWIDTH.isLimited())
+			return;
+		
+		long grantTime = BANDWIDTH.reserve(sessionBucket, userBucket, bytes);
+		long wait;
+		while((wait = grantTime - System.nanoTime()) > 0) {
+			if(isTransferAborted)
+				throw new IOException("Transfer Aborted");
+			LockSupport.parkNanos(Math.min(wait, MAX_THROTTLE_PAUSE));
+		}
+	}
+	
+	
+	/*
+	 * Stores received data
+	 * 
+	 * Arguments:
+	 * buffer		the buffer whose remaining bytes are the received data
+	 * decoder		the decoder of the ASCII transfer type, null in binary transfer type
+	 * writer		the writer of the new content
+	 * 
+	 * Throws:
+	 * IOException		if the data can't be stored
+	 */
+	private static void storeData(ByteBuffer buffer, AsciiModeDecoder decoder, ContentWriter writer) throws IOException {
+		if(decoder == null) // if Binary Transfer Type
+			writer.write(buffer);
+		else				// if ASCII Transfer Type
+			decoder.decode(buffer, writer);
+	}
+	
+	
+	/*
+	 * Checks the size of the data received so far
+	 * 
+	 * Arguments:
+	 * size		the number of bytes received
+	 * 
+	 * Throws:
+	 * TransferSizeExceededException	if the size exceeds the maximum file size
+	 */
+	private void checkTransferSize(long size) throws TransferSizeExceededException {
+		if(size > MAX_FILE_SIZE) {
+			throw new TransferSizeExceededException("Maximum Transfer Size (" 
+													+ MAX_FILE_SIZE 
+													+ " bytes) Exceeded");
 		}
 	}
 	
@@ -950,9 +1901,295 @@ public class FTPServerThread extends Thread {
 	 */
 	public void closeDataConnection() throws IOException{
 		isDataChannelOpen = false;
-		dataClientSocket.close();
-		if(!isActiveMode)
-			dataServerSocket.close();
+		try {
+			dataClientSocket.close();
+		}finally {
+			cancelPassivePort();
+		}
+	}
+	
+	
+	/*
+	 * Reserves a port of the passive data listener
+	 * for the next data connection of the client
+	 * 
+	 * Throws:
+	 * IOException		if no port of the range can be reserved
+	 */
+	private void reservePassivePort() throws IOException {
+		synchronized(transferLock) {
+			cancelPassivePort(); // a previous "PASV" may not have been used
+			passiveReservation = PASSIVE_LISTENER.reserve(ipControlClient);
+		}
+	}
+	
+	
+	/*
+	 * Gives the port reserved by "PASV", if any, 
+	 * back to the passive data listener
+	 */
+	private void cancelPassivePort() {
+		synchronized(transferLock) {
+			if(passiveReservation == null)
+				return;
+			
+			passiveReservation.cancel();
+			passiveReservation = null;
+		}
+	}
+	
+	
+	/*
+	 * Runs a data transfer on the transfer executor, so that the control 
+	 * connection is still served while the data is moving
+	 * 
+	 * Arguments:
+	 * description		the request of the transfer, given by "STAT"
+	 * transfer			the transfer, which replies once the data connection is closed
+	 * 
+	 * Note:
+	 * The replies of the transfer are sent as soon as it has finished,
+	 * the requests that can't be handled during the transfer wait for it (See awaitTransfer)
+	 */
+	private void startTransfer(String description, Runnable transfer) {
+		transferDescription = description;
+		transferredBytes = 0;
+		transferSize = -1;
+		isTransferAborted = false;
+		currentTransfer = transferExecutor.submit(() -> {
+			try {
+				transfer.run();
+			}finally {
+				flushReplies(); // the client waits for the completion reply
+			}
+		});
+	}
+	
+	
+	/*
+	 * Waits for the end of the running data transfer, if any
+	 */
+	private void awaitTransfer() {
+		Future<?> transfer = currentTransfer;
+		if(transfer == null)
+			return;
+		
+		try {
+			transfer.get();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}catch(ExecutionException e) {
+			System.err.println("FTP Server Thread: Data Transfer Failed: " + e.getCause());
+		}
+		currentTransfer = null;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if a data transfer is running, false otherwise
+	 */
+	public boolean isTransferActive() {
+		Future<?> transfer = currentTransfer;
+		return transfer != null && !transfer.isDone();
+	}
+	
+	
+	/*
+	 * Stops the running data transfer, if any, by closing its data connection
+	 * (or by cancelling the "PASV" port it is waiting on)
+	 * 
+	 * Note:
+	 * The transfer replies "426" once it has stopped
+	 */
+	public void abortTransfer() {
+		synchronized(transferLock) {
+			isTransferAborted = true;
+			if(passiveReservation != null)
+				passiveReservation.cancel();
+			
+			try {
+				if(dataClientSocket != null)
+					dataClientSocket.close(); // the blocked read or write of the transfer fails
+			}catch(IOException e) {
+				System.err.println("FTP Server Thread: Could Not Close Data Connection");
+			}
+		}
+	}
+	
+	
+	/*
+	 * Creates the passive data listener shared by all the sessions
+	 * 
+	 * Return:
+	 * a listener for the configured passive port range
+	 */
+	private static PassiveDataListener newPassiveDataListener() {
+		int[] range = FTPServerConfiguration.getPassivePortRange();
+		return new PassiveDataListener(range[0], range[1]);
+	}
+	
+	
+	/*
+	 * Creates a bounded transfer executor
+	 * 
+	 * Arguments:
+	 * maxThreads		the maximum number of data transfers running at the same time,
+	 * 					the other transfers wait for a thread
+	 * 
+	 * Return:
+	 * an executor running the data transfers on a fixed pool of daemon threads
+	 */
+	public static ExecutorService newTransferExecutor(int maxThreads) {
+		AtomicInteger threadCount = new AtomicInteger(0);
+		return Executors.newFixedThreadPool(maxThreads, task -> {
+			Thread thread = new Thread(task, "data-transfer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	
+	/*
+	 * Sets the executor running the data transfers of all the sessions
+	 * (by default, a bounded pool of a few threads per core)
+	 * 
+	 * Arguments:
+	 * executor		the transfer executor, eg: the virtual thread per task executor 
+	 * 				in the virtual mode, a bounded pool otherwise
+	 */
+	public static void setTransferExecutor(ExecutorService executor) {
+		transferExecutor = executor;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the metrics shared by all the sessions
+	 */
+	public static FTPServerMetrics getMetrics() {
+		return METRICS;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the bandwidth scheduler shared by all the sessions
+	 */
+	public static BandwidthScheduler getBandwidthScheduler() {
+		return BANDWIDTH;
+	}
+	
+	
+	/*
+	 * Creates the virtual root directory shared by all the sessions
+	 * 
+	 * Return:
+	 * the virtual tree restored from the journal directory, if configured,
+	 * the hard-coded initial tree otherwise
+	 * 
+	 * Throws:
+	 * IOException		if the journal can't be read or written
+	 */
+	public static VirtualDirectory openRootDirectory() throws IOException {
+		Path journalDirectory = FTPServerConfiguration.getJournalDirectory();
+		if(journalDirectory == null)
+			return new VirtualDirectory();
+		
+		if(!FTPServerConfiguration.DISK_STORAGE.contentEquals(FTPServerConfiguration.getStorage())) {
+			System.err.println("FTP Server Thread: The Virtual Tree Is Only Kept Across Restarts "
+							   + "With The Disk Storage; Journal Not Used");
+			return new VirtualDirectory();
+		}
+		
+		NamespaceJournal journal = NamespaceJournal.open(journalDirectory, CONTENT_STORE, 
+				FTPServerConfiguration.getSnapshotInterval());
+		return journal.getRootDirectory();
+	}
+	
+	
+	/*
+	 * Creates the store keeping the bytes, under the deduplication if enabled
+	 * (the compressed variants are kept there directly, so that they are 
+	 * neither hashed nor counted in the deduplication statistics)
+	 * 
+	 * Return:
+	 * a store for the configured storage backend, 
+	 * the memory store if the storage directory can't be used
+	 */
+	private static ContentStore newBackingStore() {
+		ContentStore store = null;
+		if(FTPServerConfiguration.DISK_STORAGE.contentEquals(FTPServerConfiguration.getStorage())) {
+			try {
+				store = new DiskContentStore(FTPServerConfiguration.getStorageDirectory());
+			}catch(IOException e) {
+				System.err.println("FTP Server Thread: Could Not Use Storage Directory; "
+								   + "Files Are Kept In Memory: " + e);
+			}
+		}
+		if(store == null)
+			store = new MemoryContentStore();
+		return store;
+	}
+	
+	
+	/*
+	 * Creates the content store shared by all the sessions
+	 * 
+	 * Arguments:
+	 * backingStore		the store keeping the bytes (See newBackingStore)
+	 * 
+	 * Return:
+	 * the backing store, sharing the identical bodies if deduplication is enabled
+	 */
+	private static ContentStore newContentStore(ContentStore backingStore) {
+		if(FTPServerConfiguration.isDeduplicationEnabled())
+			return new DeduplicatingContentStore(backingStore);
+		return backingStore;
+	}
+	
+	
+	/*
+	 * Metered Channel Class
+	 * Channel writing to the data channel once the bytes written
+	 * are granted by the bandwidth scheduler, so that the encoded
+	 * bytes of a transfer are metered as they are sent
+	 */
+	private class MeteredChannel implements WritableByteChannel {
+		private WritableByteChannel channel;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _channel		the channel to the client
+		 */
+		public MeteredChannel(WritableByteChannel _channel) {
+			channel = _channel;
+		}
+		
+		
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			throttle(source.remaining());
+			return channel.write(source);
+		}
+		
+		
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+		
+		
+		/*
+		 * Does nothing: the data channel is closed by the session
+		 */
+		@Override
+		public void close() {
+		}
 	}
 	
 }
@@ -0,0 +1,187 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latency Histogram Class
+ * Counts durations (in nanoseconds) in log-linear buckets, so that
+ * percentiles can be given with a bounded relative error (below 1%)
+ * whatever the range of the durations
+ * 
+ * Note:
+ * - The durations below 256 ns have a bucket each; above, each power of 2
+ *   is split into 128 buckets of equal width
+ * - Recording is lock-free and allocation-free: a histogram can be shared by
+ *   all the threads; a percentile read while durations are recorded is only
+ *   approximate
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+	// Constant values
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+	
+	//
+	private AtomicLongArray counts;
+	private AtomicLong count;
+	private AtomicLong sum;
+	private AtomicLong max;
+	
+	
+	/*
+	 * Constructor
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong(0);
+		sum = new AtomicLong(0);
+		max = new AtomicLong(0);
+	}
+	
+	
+	/*
+	 * Records a duration
+	 * 
+	 * Arguments:
+	 * nanoseconds		the duration (a negative duration is recorded as 0)
+	 */
+	public void record(long nanoseconds) {
+		long value = Math.max(0, nanoseconds);
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value))
+			currentMax = max.get();
+	}
+	
+	
+	/*
+	 * Adds the durations recorded by another histogram to this one
+	 * 
+	 * Arguments:
+	 * other		the other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			long bucketCount = other.counts.get(i);
+			if(bucketCount > 0)
+				counts.addAndGet(i, bucketCount);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		
+		long otherMax = other.max.get();
+		long currentMax = max.get();
+		while(otherMax > currentMax && !max.compareAndSet(currentMax, otherMax))
+			currentMax = max.get();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of durations recorded
+	 */
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the mean duration (in ns), 0 if none has been recorded
+	 */
+	@Override
+	public double getMean() {
+		long currentCount = count.get();
+		return (currentCount > 0) ? (double) sum.get() / currentCount : 0;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the longest duration (in ns)
+	 */
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+	
+	
+	/*
+	 * Gives a percentile of the durations
+	 * 
+	 * Arguments:
+	 * percentile		the percentile, in [0; 100] (eg: 99.9)
+	 * 
+	 * Return:
+	 * the duration (in ns) under which the percentile of the durations falls,
+	 * 0 if none has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long currentCount = count.get();
+		if(currentCount == 0)
+			return 0;
+		
+		long rank = Math.max(1, (long) Math.ceil(currentCount * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(getHighestValue(i), max.get());
+		}
+		return max.get();
+	}
+	
+	
+	@Override
+	public long getPercentile50() {
+		return getPercentile(50);
+	}
+	
+	
+	@Override
+	public long getPercentile99() {
+		return getPercentile(99);
+	}
+	
+	
+	@Override
+	public long getPercentile999() {
+		return getPercentile(99.9);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * value		a duration (in ns), positive
+	 * 
+	 * Return:
+	 * the index of the bucket counting the duration
+	 */
+	private static int getIndex(long value) {
+		if(value < 2 * SUB_BUCKET_COUNT)
+			return (int) value;
+		
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // value >>> shift is in [128; 256)
+		return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * index		the index of a bucket
+	 * 
+	 * Return:
+	 * the highest duration (in ns) counted by the bucket
+	 */
+	private static long getHighestValue(int index) {
+		if(index < 2 * SUB_BUCKET_COUNT)
+			return index;
+		
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Latency Histogram MXBean Interface
+ * Exposes a latency histogram through JMX
+ * (all the durations are in nanoseconds)
+ */
+public interface LatencyHistogramMXBean {
+	
+	/*
+	 * Return:
+	 * the number of durations recorded
+	 */
+	public long getCount();
+	
+	
+	/*
+	 * Return:
+	 * the mean duration, 0 if none has been recorded
+	 */
+	public double getMean();
+	
+	
+	/*
+	 * Return:
+	 * the longest duration
+	 */
+	public long getMax();
+	
+	
+	/*
+	 * Return:
+	 * the median duration
+	 */
+	public long getPercentile50();
+	
+	
+	/*
+	 * Return:
+	 * the duration under which 99% of the durations fall
+	 */
+	public long getPercentile99();
+	
+	
+	/*
+	 * Return:
+	 * the duration under which 99.9% of the durations fall
+	 */
+	public long getPercentile999();
+}
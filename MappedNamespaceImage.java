@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/*
+ * Mapped Namespace Image Class
+ * Snapshot of the namespace read in place through a memory mapping:
+ * each directory is a record found at its offset in the snapshot,
+ * so that a directory can be read without reading the whole snapshot
+ * 
+ * Note:
+ * - The virtual tree restored from the image is built lazily: a directory
+ *   only reads its record the first time its content is needed, so that
+ *   the startup time does not depend on the size of the tree
+ * - The mapping stays valid after the snapshot has been replaced by a newer
+ *   one (the old file is only freed once it is unmapped), and is shared by
+ *   all the threads: the image is only read with absolute gets
+ * - Format (see NamespaceImage.write):
+ *   header:		magic, last sequence number, length of the snapshot, offset of the root
+ *   directory:		file count, files, sub-directory count, sub-directories
+ *   file:			name, size, modification time, kind, length and bytes of the locator or of the content
+ *   sub-directory:	name, protected flag, offset of its own record (written before its parent)
+ */
+public class MappedNamespaceImage {
+	// Constant values
+	public static final long MAGIC = 0x4654504E53494D32L; // "FTPNSIM2"
+	public static final int HEADER_LENGTH = 28;
+	public static final byte STORED_CONTENT = 0;
+	public static final byte INLINE_CONTENT = 1;
+	
+	//
+	private ByteBuffer image;
+	private ContentStore store;
+	private long lastSequence; // The sequence number of the last log record included in the image
+	private int rootOffset;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _image			the mapped snapshot
+	 * _store			the content store holding the content of the files
+	 * _lastSequence	the sequence number of the last log record included in the image
+	 * _rootOffset		the offset of the record of the root directory
+	 */
+	private MappedNamespaceImage(ByteBuffer _image, ContentStore _store, long _lastSequence, int _rootOffset) {
+		image = _image;
+		store = _store;
+		lastSequence = _lastSequence;
+		rootOffset = _rootOffset;
+	}
+	
+	
+	/*
+	 * Maps a snapshot
+	 * 
+	 * Arguments:
+	 * path		the snapshot file
+	 * store	the content store holding the content of the files
+	 * 
+	 * Return:
+	 * the image written in the snapshot
+	 * 
+	 * Throws:
+	 * IOException		if the file can't be mapped or is not a valid snapshot
+	 */
+	public static MappedNamespaceImage open(Path path, ContentStore store) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if(length > Integer.MAX_VALUE)
+				throw new IOException("Namespace Snapshot Too Large To Be Mapped: " + path);
+			if(length < HEADER_LENGTH)
+				throw new IOException("Not A Namespace Snapshot: " + path);
+			
+			ByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); // stays valid once closed
+			if(image.getLong(0) != MAGIC)
+				throw new IOException("Not A Namespace Snapshot: " + path);
+			if(image.getLong(16) != length)
+				throw new IOException("Corrupted Namespace Snapshot: " + path);
+			
+			int rootOffset = image.getInt(24);
+			if(rootOffset < HEADER_LENGTH || rootOffset >= length)
+				throw new IOException("Corrupted Namespace Snapshot: " + path);
+			
+			return new MappedNamespaceImage(image, store, image.getLong(8), rootOffset);
+		}
+	}
+	
+	
+	/*
+	 * Return:
+	 * the sequence number of the last log record included in the image
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the offset of the record of the root directory
+	 */
+	public int getRootOffset() {
+		return rootOffset;
+	}
+	
+	
+	/*
+	 * Gives the root directory of the virtual tree described by the image,
+	 * whose directories are read from the image when first needed
+	 * 
+	 * Return:
+	 * the root directory of the tree
+	 */
+	public VirtualDirectory newRootDirectory() {
+		return new VirtualDirectory("/", null, false, this, rootOffset);
+	}
+	
+	
+	/*
+	 * Reads the record of a directory
+	 * 
+	 * Arguments:
+	 * offset		the offset of the record
+	 * visitor		the visitor receiving the entries of the directory
+	 * 
+	 * Throws:
+	 * IOException		if the record is not valid
+	 */
+	public void readDirectory(int offset, EntryVisitor visitor) throws IOException {
+		try {
+			int position = offset;
+			int fileCount = image.getInt(position);
+			position += 4;
+			for(int i = 0; i < fileCount; i++) {
+				int nameLength = image.getShort(position) & 0xFFFF;
+				String filename = readString(position + 2, nameLength);
+				position += 2 + nameLength;
+				long size = image.getLong(position);
+				long modificationTime = image.getLong(position + 8);
+				byte kind = image.get(position + 16);
+				int length = image.getInt(position + 17);
+				position += 21;
+				
+				if(kind == STORED_CONTENT)
+					visitor.visitFile(filename, size, modificationTime, readString(position, length), null);
+				else {
+					byte[] bytes = new byte[length];
+					image.get(position, bytes);
+					visitor.visitFile(filename, size, modificationTime, null, bytes);
+				}
+				position += length;
+			}
+			
+			int directoryCount = image.getInt(position);
+			position += 4;
+			for(int i = 0; i < directoryCount; i++) {
+				int nameLength = image.getShort(position) & 0xFFFF;
+				String directoryName = readString(position + 2, nameLength);
+				position += 2 + nameLength;
+				boolean isProtected = image.get(position) != 0;
+				int directoryOffset = image.getInt(position + 1);
+				position += 5;
+				if(directoryOffset < HEADER_LENGTH || directoryOffset >= offset)
+					throw new IOException("Invalid Directory Offset " + directoryOffset); // children come first
+				
+				visitor.visitDirectory(directoryName, isProtected, directoryOffset);
+			}
+		}catch(IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IOException("Corrupted Namespace Snapshot At Offset " + offset);
+		}
+	}
+	
+	
+	/*
+	 * Restores a file of the image
+	 * 
+	 * Arguments:
+	 * filename				the name of the file
+	 * size					the size (in bytes) of the file
+	 * modificationTime		the modification time of the file
+	 * locator				the location of the content in the content store, null if inline
+	 * bytes				the content, null if in the content store
+	 * 
+	 * Return:
+	 * the file, null if its content can't be found in the store anymore
+	 */
+	public VirtualFile<?> restoreFile(String filename, long size, long modificationTime, String locator, byte[] bytes) {
+		try {
+			Object content = (locator != null) ? store.restore(locator, size) : bytes;
+			return new VirtualFile<Object>(filename, content, size, modificationTime);
+		}catch(IOException | InvalidStringFormatException | TransferSizeExceededException e) {
+			System.err.println("Namespace Image: Could Not Restore " + filename + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	
+	/*
+	 * Gathers the locators of all the contents referenced by the image
+	 * (reads the whole image, meant to be run in the background)
+	 * 
+	 * Arguments:
+	 * locators		the set receiving the locators
+	 * 
+	 * Throws:
+	 * IOException		if the image is not valid
+	 */
+	public void collectLocators(Set<String> locators) throws IOException {
+		collectLocators(rootOffset, locators);
+	}
+	
+	
+	/*
+	 * Gathers the locators of the contents referenced by a directory
+	 * and, recursively, by its sub-directories
+	 * 
+	 * Arguments:
+	 * offset		the offset of the record of the directory
+	 * locators		the set receiving the locators
+	 * 
+	 * Throws:
+	 * IOException		if the image is not valid
+	 */
+	private void collectLocators(int offset, Set<String> locators) throws IOException {
+		readDirectory(offset, new EntryVisitor() {
+			@Override
+			public void visitFile(String filename, long size, long modificationTime, String locator, byte[] bytes) {
+				if(locator != null)
+					locators.add(locator);
+			}
+			
+			
+			@Override
+			public void visitDirectory(String directoryName, boolean isProtected, int directoryOffset)
+					throws IOException {
+				collectLocators(directoryOffset, locators);
+			}
+		});
+	}
+	
+	
+	/*
+	 * Decodes a string of the image
+	 * 
+	 * Arguments:
+	 * position		the offset of the first byte of the string
+	 * length		the length (in bytes) of the string
+	 * 
+	 * Return:
+	 * the string
+	 */
+	private String readString(int position, int length) {
+		byte[] bytes = new byte[length];
+		image.get(position, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	
+	/*
+	 * Entry Visitor Interface
+	 * Receives the entries of a directory record, in the order of the record
+	 */
+	public interface EntryVisitor {
+		
+		/*
+		 * Arguments:
+		 * filename				the name of the file
+		 * size					the size (in bytes) of the file
+		 * modificationTime		the modification time of the file
+		 * locator				the location of the content in the content store, null if inline
+		 * bytes				the content, null if in the content store
+		 */
+		public void visitFile(String filename, long size, long modificationTime, String locator, byte[] bytes);
+		
+		
+		/*
+		 * Arguments:
+		 * directoryName		the name of the sub-directory
+		 * isProtected			true if the sub-directory is protected, false otherwise
+		 * offset				the offset of the record of the sub-directory
+		 * 
+		 * Throws:
+		 * IOException		if the sub-directory is read at once and is not valid
+		 */
+		public void visitDirectory(String directoryName, boolean isProtected, int offset) throws IOException;
+	}
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/*
+ * Memory Content Class
+ * Content of a virtual file kept on the heap 
+ * as a sequence of fixed-size chunks
+ * 
+ * Note:
+ * Chunks let a file grow beyond the size of a single array 
+ * and be written and read piece by piece without ever being 
+ * copied into one contiguous buffer; the content is its own reader,
+ * its chunks staying on the heap as long as a transfer references them
+ */
+public class MemoryContent implements StoredContent, ContentReader {
+	// Constant values
+	public static final int CHUNK_SIZE = 0x10000; // 64 KiB
+	
+	//
+	private List<byte[]> chunks;
+	private long size;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _chunks		the chunks of the content, all full but the last one
+	 * _size		the size (in bytes) of the content
+	 */
+	public MemoryContent(List<byte[]> _chunks, long _size) {
+		chunks = _chunks;
+		size = _size;
+	}
+	
+	
+	@Override
+	public long getSize() {
+		return size;
+	}
+	
+	
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		long end = position + Math.max(0, Math.min(count, size - position)); // count may be Long.MAX_VALUE
+		long current = position;
+		
+		while(current < end) {
+			int chunkIndex = (int) (current / CHUNK_SIZE);
+			int chunkOffset = (int) (current % CHUNK_SIZE);
+			int length = (int) Math.min(CHUNK_SIZE - chunkOffset, end - current);
+			
+			ByteBuffer buffer = ByteBuffer.wrap(chunks.get(chunkIndex), chunkOffset, length);
+			while(buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			current += length;
+		}
+		return Math.max(0, current - position);
+	}
+	
+	
+	@Override
+	public ContentReader open() {
+		return this;
+	}
+	
+	
+	/*
+	 * Does nothing: the content has nothing to release
+	 */
+	@Override
+	public void close() {
+	}
+	
+	
+	@Override
+	public String getLocator() {
+		return null; // the heap does not survive a restart
+	}
+	
+	
+	@Override
+	public void delete() {
+		// the heap space is reclaimed by the garbage collector
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Memory Content Store Class
+ * Keeps the bodies of the virtual files on the heap
+ */
+public class MemoryContentStore implements ContentStore {
+	
+	@Override
+	public ContentWriter newWriter() {
+		return new MemoryContentWriter();
+	}
+	
+	
+	@Override
+	public StoredContent restore(String locator, long size) throws IOException {
+		throw new IOException("Memory Content Can't Be Restored");
+	}
+	
+	
+	@Override
+	public void deleteUnreferenced(Set<String> locators) {
+		// nothing is kept in memory across restarts
+	}
+	
+	
+	/*
+	 * Memory Content Writer Class
+	 * Fills the chunks of a new memory content one after the other
+	 */
+	private static class MemoryContentWriter implements ContentWriter {
+		private List<byte[]> chunks = new ArrayList<byte[]>();
+		private long size = 0;
+		
+		
+		@Override
+		public void write(ByteBuffer buffer) {
+			while(buffer.hasRemaining()) {
+				int chunkOffset = (int) (size % MemoryContent.CHUNK_SIZE);
+				if(chunkOffset == 0)
+					chunks.add(new byte[MemoryContent.CHUNK_SIZE]);
+				
+				int copyLength = Math.min(buffer.remaining(), MemoryContent.CHUNK_SIZE - chunkOffset);
+				buffer.get(chunks.get(chunks.size() - 1), chunkOffset, copyLength);
+				size += copyLength;
+			}
+		}
+		
+		
+		@Override
+		public void append(StoredContent content, long count) throws IOException {
+			content.transferTo(0, count, new ContentWriterChannel(this));
+		}
+		
+		
+		@Override
+		public long getSize() {
+			return size;
+		}
+		
+		
+		@Override
+		public StoredContent commit() {
+			return new MemoryContent(chunks, size);
+		}
+		
+		
+		@Override
+		public void abort() {
+			chunks = null;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Namespace Changes Interface
+ * Receives the changes of the virtual tree replayed from the namespace journal,
+ * either to build a new snapshot or to restore the tree itself
+ * 
+ * Note:
+ * The changes name their directory by its absolute path;
+ * a change whose directory can't be found is ignored
+ */
+public interface NamespaceChanges {
+	
+	/*
+	 * Adds a file, replacing the file of the same name
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * filename				the name of the file
+	 * locator				the location of the content in the content store
+	 * size					the size (in bytes) of the file
+	 * modificationTime		the modification time of the file
+	 */
+	public void putFile(String directoryPath, String filename, String locator, long size, long modificationTime);
+	
+	
+	/*
+	 * Removes a file
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * filename				the name of the file
+	 */
+	public void removeFile(String directoryPath, String filename);
+	
+	
+	/*
+	 * Renames a file
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * oldFilename			the old name of the file
+	 * newFilename			the new name of the file
+	 * modificationTime		the modification time of the renamed file
+	 */
+	public void renameFile(String directoryPath, String oldFilename, String newFilename, long modificationTime);
+	
+	
+	/*
+	 * Adds an empty directory
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the parent directory
+	 * directoryName		the name of the directory
+	 * isProtected			true if the directory is protected, false otherwise
+	 */
+	public void addDirectory(String directoryPath, String directoryName, boolean isProtected);
+	
+	
+	/*
+	 * Removes a directory
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the parent directory
+	 * directoryName		the name of the directory
+	 */
+	public void removeDirectory(String directoryPath, String directoryName);
+}
@@ -0,0 +1,430 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Namespace Image Class
+ * Compact description of the virtual tree (its directories and the
+ * location of the content of its files), written as the snapshots
+ * of the namespace journal
+ * 
+ * Note:
+ * The image is detached from the virtual tree: it is built from the
+ * previous snapshot and the log records, so that a new snapshot never
+ * has to stop the changes of the virtual tree. The snapshots are written
+ * in the format of MappedNamespaceImage, which restores the tree from them
+ */
+public class NamespaceImage implements NamespaceChanges {
+	private long lastSequence; // The sequence number of the last log record included in the image
+	private DirectoryEntry root;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _lastSequence	the sequence number of the last log record included in the image
+	 * _root			the root directory of the image
+	 */
+	private NamespaceImage(long _lastSequence, DirectoryEntry _root) {
+		lastSequence = _lastSequence;
+		root = _root;
+	}
+	
+	
+	/*
+	 * Describes a virtual tree
+	 * 
+	 * Arguments:
+	 * rootDirectory	the root directory of the virtual tree (which must not change meanwhile)
+	 * lastSequence		the sequence number of the last log record applied to the tree
+	 * 
+	 * Return:
+	 * the image of the tree
+	 */
+	public static NamespaceImage of(VirtualDirectory rootDirectory, long lastSequence) {
+		return new NamespaceImage(lastSequence, describe(rootDirectory));
+	}
+	
+	
+	/*
+	 * Reads a snapshot
+	 * 
+	 * Arguments:
+	 * path		the snapshot file
+	 * 
+	 * Return:
+	 * the image written in the snapshot
+	 * 
+	 * Throws:
+	 * IOException		if the file can't be read or is not a valid snapshot
+	 */
+	public static NamespaceImage read(Path path) throws IOException {
+		MappedNamespaceImage image = MappedNamespaceImage.open(path, null);
+		DirectoryEntry root = new DirectoryEntry(false);
+		readDirectory(image, image.getRootOffset(), root);
+		return new NamespaceImage(image.getLastSequence(), root);
+	}
+	
+	
+	/*
+	 * Writes the image as a snapshot, atomically and durably
+	 * (the snapshot replaces any previous snapshot at once)
+	 * 
+	 * Arguments:
+	 * path		the snapshot file
+	 * 
+	 * Throws:
+	 * IOException		if the file can't be written
+	 * 
+	 * Note:
+	 * The directories are written after their sub-directories, so that 
+	 * the offsets of the sub-directories are known when their parent is written;
+	 * the header, holding the offset of the root, is written last.
+	 * As the snapshot only replaces the previous one once complete and synced,
+	 * it is not checksummed as a whole: it is read in place, never at once
+	 */
+	public void write(Path path) throws IOException {
+		Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try(FileChannel file = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file)));
+			out.write(new byte[MappedNamespaceImage.HEADER_LENGTH]); // written once the offset of the root is known
+			int rootOffset = writeDirectory(out, root);
+			out.flush();
+			
+			ByteBuffer header = ByteBuffer.allocate(MappedNamespaceImage.HEADER_LENGTH);
+			header.putLong(MappedNamespaceImage.MAGIC);
+			header.putLong(lastSequence);
+			header.putLong(out.size());
+			header.putInt(rootOffset);
+			header.flip();
+			while(header.hasRemaining()) {
+				file.write(header, header.position());
+			}
+			file.force(true);
+		}
+		Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	/*
+	 * Return:
+	 * the sequence number of the last log record included in the image
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * _lastSequence	the sequence number of the last log record applied to the image
+	 */
+	public void setLastSequence(long _lastSequence) {
+		lastSequence = _lastSequence;
+	}
+	
+	
+	/*
+	 * Adds a file to the image, replacing the file of the same name
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * filename				the name of the file
+	 * locator				the location of the content in the content store
+	 * size					the size (in bytes) of the file
+	 * modificationTime		the modification time of the file
+	 */
+	@Override
+	public void putFile(String directoryPath, String filename, String locator, long size, long modificationTime) {
+		DirectoryEntry directory = getDirectory(directoryPath);
+		if(directory != null)
+			directory.files.put(filename, new FileEntry(locator, null, size, modificationTime));
+	}
+	
+	
+	/*
+	 * Removes a file from the image
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * filename				the name of the file
+	 */
+	@Override
+	public void removeFile(String directoryPath, String filename) {
+		DirectoryEntry directory = getDirectory(directoryPath);
+		if(directory != null)
+			directory.files.remove(filename);
+	}
+	
+	
+	/*
+	 * Renames a file of the image
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * oldFilename			the old name of the file
+	 * newFilename			the new name of the file
+	 * modificationTime		the modification time of the renamed file
+	 */
+	@Override
+	public void renameFile(String directoryPath, String oldFilename, String newFilename, long modificationTime) {
+		DirectoryEntry directory = getDirectory(directoryPath);
+		if(directory == null)
+			return;
+		
+		FileEntry file = directory.files.remove(oldFilename);
+		if(file != null)
+			directory.files.put(newFilename, new FileEntry(file.locator, file.bytes, file.size, modificationTime));
+	}
+	
+	
+	/*
+	 * Adds an empty directory to the image
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the parent directory
+	 * directoryName		the name of the directory
+	 * isProtected			true if the directory is protected, false otherwise
+	 */
+	@Override
+	public void addDirectory(String directoryPath, String directoryName, boolean isProtected) {
+		DirectoryEntry directory = getDirectory(directoryPath);
+		if(directory != null)
+			directory.directories.putIfAbsent(directoryName, new DirectoryEntry(isProtected));
+	}
+	
+	
+	/*
+	 * Removes a directory from the image
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the parent directory
+	 * directoryName		the name of the directory
+	 */
+	@Override
+	public void removeDirectory(String directoryPath, String directoryName) {
+		DirectoryEntry directory = getDirectory(directoryPath);
+		if(directory != null)
+			directory.directories.remove(directoryName);
+	}
+	
+	
+	/*
+	 * Gives a directory of the image
+	 * 
+	 * Arguments:
+	 * directoryPath		the absolute path of the directory
+	 * 
+	 * Return:
+	 * the directory, null if it can't be found
+	 */
+	private DirectoryEntry getDirectory(String directoryPath) {
+		DirectoryEntry directory = root;
+		for(String name : directoryPath.split("/")) {
+			if(name.isEmpty())
+				continue;
+			directory = directory.directories.get(name);
+			if(directory == null)
+				return null;
+		}
+		return directory;
+	}
+	
+	
+	/*
+	 * Describes a directory of a virtual tree and, recursively, its sub-directories
+	 * 
+	 * Arguments:
+	 * virtualDirectory		the directory
+	 * 
+	 * Return:
+	 * the description of the directory
+	 */
+	private static DirectoryEntry describe(VirtualDirectory virtualDirectory) {
+		DirectoryEntry directory = new DirectoryEntry(virtualDirectory.isProtected());
+		for(VirtualFile<?> file : virtualDirectory.getFiles()) {
+			Object content = file.getContent();
+			if(content instanceof StoredContent) {
+				String locator = ((StoredContent) content).getLocator();
+				if(locator == null) { // only the content kept on the local disk can be restored
+					System.err.println("Namespace Image: Could Not Locate " + file.getFilename());
+					continue;
+				}
+				directory.files.put(file.getFilename(), new FileEntry(locator, null, file.getSize(), 
+						file.getModificationTime()));
+			}else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try {
+					file.transferTo(0, Long.MAX_VALUE, Channels.newChannel(bytes));
+				}catch(IOException e) {
+					System.err.println("Namespace Image: Could Not Read " + file.getFilename());
+					continue;
+				}
+				directory.files.put(file.getFilename(), new FileEntry(null, bytes.toByteArray(),
+						file.getSize(), file.getModificationTime()));
+			}
+		}
+		for(VirtualDirectory subDirectory : virtualDirectory.getSubDirectories())
+			directory.directories.put(subDirectory.getDirectoryName(), describe(subDirectory));
+		return directory;
+	}
+	
+	
+	/*
+	 * Writes a directory, after its sub-directories
+	 * 
+	 * Arguments:
+	 * out			the snapshot stream
+	 * directory	the directory
+	 * 
+	 * Return:
+	 * the offset of the record of the directory
+	 * 
+	 * Throws:
+	 * IOException		if the snapshot can't be written
+	 */
+	private static int writeDirectory(DataOutputStream out, DirectoryEntry directory) throws IOException {
+		int[] offsets = new int[directory.directories.size()];
+		int index = 0;
+		for(DirectoryEntry subDirectory : directory.directories.values()) // same order as below, the map is unchanged
+			offsets[index++] = writeDirectory(out, subDirectory);
+		
+		int offset = out.size();
+		if(offset == Integer.MAX_VALUE) // the size of the stream stops there
+			throw new IOException("Namespace Snapshot Too Large To Be Mapped");
+		
+		out.writeInt(directory.files.size());
+		for(Map.Entry<String, FileEntry> entry : directory.files.entrySet()) {
+			FileEntry file = entry.getValue();
+			writeString(out, entry.getKey());
+			out.writeLong(file.size);
+			out.writeLong(file.modificationTime);
+			byte[] bytes = (file.locator != null) ? file.locator.getBytes(StandardCharsets.UTF_8) : file.bytes;
+			out.writeByte((file.locator != null) ? MappedNamespaceImage.STORED_CONTENT : MappedNamespaceImage.INLINE_CONTENT);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		out.writeInt(directory.directories.size());
+		index = 0;
+		for(Map.Entry<String, DirectoryEntry> entry : directory.directories.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeBoolean(entry.getValue().isProtected);
+			out.writeInt(offsets[index++]);
+		}
+		return offset;
+	}
+	
+	
+	/*
+	 * Writes a name
+	 * 
+	 * Arguments:
+	 * out			the snapshot stream
+	 * name			the name
+	 * 
+	 * Throws:
+	 * IOException		if the snapshot can't be written or the name is too long
+	 */
+	private static void writeString(DataOutputStream out, String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > 0xFFFF)
+			throw new IOException("Name Too Long: " + name.substring(0, 64) + "...");
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	/*
+	 * Reads a directory and, recursively, its sub-directories
+	 * 
+	 * Arguments:
+	 * image		the mapped snapshot
+	 * offset		the offset of the record of the directory
+	 * directory	the empty directory to fill
+	 * 
+	 * Throws:
+	 * IOException		if the snapshot is not valid
+	 */
+	private static void readDirectory(MappedNamespaceImage image, int offset, DirectoryEntry directory) 
+			throws IOException {
+		image.readDirectory(offset, new MappedNamespaceImage.EntryVisitor() {
+			@Override
+			public void visitFile(String filename, long size, long modificationTime, String locator, byte[] bytes) {
+				directory.files.put(filename, new FileEntry(locator, bytes, size, modificationTime));
+			}
+			
+			
+			@Override
+			public void visitDirectory(String directoryName, boolean isProtected, int directoryOffset) 
+					throws IOException {
+				DirectoryEntry subDirectory = new DirectoryEntry(isProtected);
+				directory.directories.put(directoryName, subDirectory);
+				readDirectory(image, directoryOffset, subDirectory);
+			}
+		});
+	}
+	
+	
+	/*
+	 * Directory Entry Class
+	 * Description of a directory of the image
+	 */
+	private static class DirectoryEntry {
+		private final boolean isProtected;
+		private final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+		private final Map<String, DirectoryEntry> directories = new HashMap<String, DirectoryEntry>();
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _isProtected		true if the directory is protected, false otherwise
+		 */
+		public DirectoryEntry(boolean _isProtected) {
+			isProtected = _isProtected;
+		}
+	}
+	
+	
+	/*
+	 * File Entry Class
+	 * Description of a file of the image: either the location of its
+	 * content in the content store, or its content itself for the
+	 * files that are not uploaded (eg: the initial files of the server)
+	 */
+	private static class FileEntry {
+		private final String locator;
+		private final byte[] bytes;
+		private final long size;
+		private final long modificationTime;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _locator				the location of the content in the content store, null if inline
+		 * _bytes				the content, null if in the content store
+		 * _size				the size (in bytes) of the file
+		 * _modificationTime	the modification time of the file
+		 */
+		public FileEntry(String _locator, byte[] _bytes, long _size, long _modificationTime) {
+			locator = _locator;
+			bytes = _bytes;
+			size = _size;
+			modificationTime = _modificationTime;
+		}
+	}
+}
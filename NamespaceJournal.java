@@ -0,0 +1,697 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/*
+ * Namespace Journal Class
+ * Keeps the virtual tree across restarts: every change of the tree is
+ * appended to a write-ahead log before it is acknowledged, and the log
+ * is regularly compacted into a snapshot of the whole tree
+ * 
+ * Note:
+ * - Group commit: a change waiting for its record to be durable either
+ *   writes and syncs all the pending records at once, or waits for the
+ *   change doing so; concurrent uploads thus share a single fsync
+ * - The log is split in segments named after their first sequence number;
+ *   a snapshot is built in the background from the previous snapshot and
+ *   the closed segments, which are deleted once the snapshot is written
+ * - At startup, the latest snapshot is mapped and only the log tail is replayed:
+ *   the directories are read from the snapshot the first time they are needed
+ *   (see MappedNamespaceImage), so that the server starts at once whatever the
+ *   size of the tree; the contents left unreferenced by a crash are then deleted
+ *   in the background
+ */
+public class NamespaceJournal {
+	// Constant values
+	private static final String SNAPSHOT_FILE = "namespace.snapshot";
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int RECORD_HEADER_LENGTH = 8; // Length and checksum of the record
+	private static final byte UPLOAD_FILE = 1;
+	private static final byte REMOVE_FILE = 2;
+	private static final byte RENAME_FILE = 3;
+	private static final byte ADD_DIRECTORY = 4;
+	private static final byte REMOVE_DIRECTORY = 5;
+	
+	//
+	private Path directory;
+	private ContentStore store;
+	private VirtualDirectory rootDirectory;
+	private long snapshotInterval;
+	
+	// Log variables (guarded by this journal)
+	private long lastSequence; // The sequence number of the last appended record
+	private long durableSequence; // The sequence number of the last record written and synced
+	private ByteArrayOutputStream pendingRecords; // The records appended but not written yet
+	private FileChannel segment; // The segment the records are written to, only used by the flushing change
+	private long segmentFirstSequence;
+	private boolean isFlushing = false;
+	private boolean isSnapshotting = false;
+	private boolean isFailed = false;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _directory			the directory holding the snapshot and the log
+	 * _store				the content store holding the content of the files
+	 * _snapshotInterval	the number of records after which a new snapshot is built
+	 */
+	private NamespaceJournal(Path _directory, ContentStore _store, long _snapshotInterval) {
+		directory = _directory;
+		store = _store;
+		snapshotInterval = _snapshotInterval;
+		pendingRecords = new ByteArrayOutputStream();
+	}
+	
+	
+	/*
+	 * Opens the journal of a directory and restores the virtual tree it keeps
+	 * (the hard-coded initial tree the first time)
+	 * 
+	 * Arguments:
+	 * directory			the directory holding the snapshot and the log
+	 * store				the content store holding the content of the files
+	 * snapshotInterval		the number of records after which a new snapshot is built
+	 * 
+	 * Return:
+	 * the journal, attached to the restored tree
+	 * 
+	 * Throws:
+	 * IOException		if the journal can't be read or written
+	 */
+	public static NamespaceJournal open(Path directory, ContentStore store, long snapshotInterval) throws IOException {
+		NamespaceJournal journal = new NamespaceJournal(Files.createDirectories(directory), store, snapshotInterval);
+		Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+		
+		if(Files.exists(snapshotPath)) {
+			MappedNamespaceImage image = MappedNamespaceImage.open(snapshotPath, store);
+			Set<String> referencedLocators = ConcurrentHashMap.newKeySet();
+			journal.rootDirectory = image.newRootDirectory();
+			TreeChanges changes = new TreeChanges(journal.rootDirectory, store, referencedLocators);
+			journal.lastSequence = journal.replay(changes, image.getLastSequence(), journal.listSegments(), true);
+			changes.reportLostFiles();
+			startContentSweep(image, store, referencedLocators);
+		}else {
+			journal.rootDirectory = new VirtualDirectory();
+			journal.lastSequence = 0;
+			NamespaceImage.of(journal.rootDirectory, 0).write(snapshotPath);
+		}
+		
+		journal.durableSequence = journal.lastSequence;
+		journal.openSegment(journal.lastSequence + 1);
+		journal.rootDirectory.setJournal(journal);
+		return journal;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the root directory of the virtual tree kept by the journal
+	 */
+	public VirtualDirectory getRootDirectory() {
+		return rootDirectory;
+	}
+	
+	
+	/*
+	 * Appends the upload of a file
+	 * (must be called while the filename is locked, so that the records
+	 * of a name are in the same order as its changes)
+	 * 
+	 * Arguments:
+	 * directory		the directory of the file
+	 * file				the uploaded file
+	 * filename			the name of the file
+	 * 
+	 * Return:
+	 * the sequence number of the record, 0 if the file can't be restored
+	 */
+	public long logUpload(VirtualDirectory directory, VirtualFile<?> file, String filename) {
+		Object content = file.getContent();
+		String locator = (content instanceof StoredContent) ? ((StoredContent) content).getLocator() : null;
+		if(locator == null)
+			return 0;
+		
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(UPLOAD_FILE);
+			out.writeUTF(directory.getDirectoryPath());
+			out.writeUTF(filename);
+			out.writeUTF(locator);
+			out.writeLong(file.getSize());
+			out.writeLong(file.getModificationTime());
+			return append(record.toByteArray());
+		}catch(IOException e) {
+			return 0; // can't happen in memory
+		}
+	}
+	
+	
+	/*
+	 * Appends the removal of a file
+	 * (see logUpload)
+	 * 
+	 * Arguments:
+	 * directory		the directory of the file
+	 * filename			the name of the file
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	public long logRemove(VirtualDirectory directory, String filename) {
+		return append(REMOVE_FILE, directory, filename, null, 0);
+	}
+	
+	
+	/*
+	 * Appends the renaming of a file
+	 * (see logUpload)
+	 * 
+	 * Arguments:
+	 * directory			the directory of the file
+	 * oldFilename			the old name of the file
+	 * newFilename			the new name of the file
+	 * modificationTime		the modification time of the renamed file
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	public long logRename(VirtualDirectory directory, String oldFilename, String newFilename, long modificationTime) {
+		return append(RENAME_FILE, directory, oldFilename, newFilename, modificationTime);
+	}
+	
+	
+	/*
+	 * Appends the addition of a sub-directory
+	 * (see logUpload)
+	 * 
+	 * Arguments:
+	 * directory		the parent directory
+	 * directoryName	the name of the sub-directory
+	 * isProtected		true if the sub-directory is protected, false otherwise
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	public long logAddDirectory(VirtualDirectory directory, String directoryName, boolean isProtected) {
+		return append(ADD_DIRECTORY, directory, directoryName, null, isProtected ? 1 : 0);
+	}
+	
+	
+	/*
+	 * Appends the removal of a sub-directory
+	 * (see logUpload)
+	 * 
+	 * Arguments:
+	 * directory		the parent directory
+	 * directoryName	the name of the sub-directory
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	public long logRemoveDirectory(VirtualDirectory directory, String directoryName) {
+		return append(REMOVE_DIRECTORY, directory, directoryName, null, 0);
+	}
+	
+	
+	/*
+	 * Waits for a record to be durable, writing and syncing
+	 * all the pending records if no other change is doing so
+	 * 
+	 * Arguments:
+	 * sequence		the sequence number of the record (0 for no record)
+	 * 
+	 * Return:
+	 * true if the record is durable, false if the log can no longer be written 
+	 * or if the wait has been interrupted (the change is then only kept in memory)
+	 */
+	public boolean awaitDurable(long sequence) {
+		while(true) {
+			byte[] batch;
+			long batchSequence;
+			boolean isRotating;
+			synchronized(this) {
+				while(isFlushing && durableSequence < sequence && !isFailed) {
+					try {
+						wait();
+					}catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if(durableSequence >= sequence)
+					return true;
+				if(isFailed)
+					return false;
+				
+				isFlushing = true; // this change writes the records of all the waiting changes
+				batch = pendingRecords.toByteArray();
+				pendingRecords.reset();
+				batchSequence = lastSequence;
+				isRotating = !isSnapshotting && batchSequence - segmentFirstSequence + 1 >= snapshotInterval;
+				if(isRotating)
+					isSnapshotting = true;
+			}
+			
+			boolean isWritten = false;
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while(buffer.hasRemaining()) {
+					segment.write(buffer);
+				}
+				segment.force(false);
+				
+				if(isRotating) { // the next records go to a new segment, the closed ones are compacted
+					segment.close();
+					openSegment(batchSequence + 1);
+				}
+				isWritten = true;
+			}catch(IOException e) {
+				System.err.println("Namespace Journal: Could Not Write Log; Changes Are No Longer Kept: " + e);
+			}
+			
+			synchronized(this) {
+				isFlushing = false;
+				isFailed |= !isWritten;
+				if(isWritten)
+					durableSequence = batchSequence;
+				else
+					isSnapshotting = false;
+				notifyAll();
+			}
+			
+			if(isRotating && isWritten)
+				startSnapshot(batchSequence);
+		}
+	}
+	
+	
+	/*
+	 * Builds a new snapshot from the previous one and the closed segments,
+	 * in the background, then deletes the closed segments
+	 * 
+	 * Arguments:
+	 * lastClosedSequence		the sequence number of the last record of the closed segments
+	 */
+	private void startSnapshot(long lastClosedSequence) {
+		Thread snapshotThread = new Thread(() -> {
+			try {
+				Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+				NamespaceImage image = NamespaceImage.read(snapshotPath);
+				List<Path> closedSegments = new ArrayList<Path>();
+				for(Path path : listSegments()) {
+					if(getFirstSequence(path) <= lastClosedSequence)
+						closedSegments.add(path);
+				}
+				
+				image.setLastSequence(replay(image, image.getLastSequence(), closedSegments, false));
+				image.write(snapshotPath);
+				
+				for(Path path : closedSegments)
+					Files.deleteIfExists(path);
+			}catch(IOException e) {
+				System.err.println("Namespace Journal: Could Not Write Snapshot: " + e);
+			}finally {
+				synchronized(NamespaceJournal.this) {
+					isSnapshotting = false;
+				}
+			}
+		}, "namespace-snapshot");
+		snapshotThread.setDaemon(true);
+		snapshotThread.start();
+	}
+	
+	
+	/*
+	 * Deletes, in the background, the contents stored before the restart
+	 * that neither the snapshot nor the log tail reference anymore
+	 * 
+	 * Arguments:
+	 * image				the snapshot the tree is restored from
+	 * store				the content store holding the content of the files
+	 * referencedLocators	the locators of the contents uploaded by the log tail
+	 */
+	private static void startContentSweep(MappedNamespaceImage image, ContentStore store, 
+			Set<String> referencedLocators) {
+		Thread sweepThread = new Thread(() -> {
+			try {
+				image.collectLocators(referencedLocators);
+				store.deleteUnreferenced(referencedLocators);
+			}catch(IOException e) {
+				System.err.println("Namespace Journal: Could Not Delete Unused Contents: " + e);
+			}
+		}, "content-sweep");
+		sweepThread.setDaemon(true);
+		sweepThread.start();
+	}
+	
+	
+	/*
+	 * Appends a record naming a directory entry
+	 * 
+	 * Arguments:
+	 * type			the type of the record
+	 * directory	the directory of the entry
+	 * name			the name of the entry
+	 * newName		the new name of the entry, null if none
+	 * value		the value attached to the record
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	private long append(byte type, VirtualDirectory directory, String name, String newName, long value) {
+		try {
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(type);
+			out.writeUTF(directory.getDirectoryPath());
+			out.writeUTF(name);
+			if(newName != null)
+				out.writeUTF(newName);
+			out.writeLong(value);
+			return append(record.toByteArray());
+		}catch(IOException e) {
+			return 0; // can't happen in memory
+		}
+	}
+	
+	
+	/*
+	 * Appends a record to the pending records
+	 * 
+	 * Arguments:
+	 * payload		the content of the record
+	 * 
+	 * Return:
+	 * the sequence number of the record
+	 */
+	private synchronized long append(byte[] payload) {
+		long sequence = ++lastSequence;
+		CRC32 checksum = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 8);
+		header.putInt(payload.length + 8);
+		header.putInt(0); // checksum, set below
+		header.putLong(sequence);
+		checksum.update(header.array(), RECORD_HEADER_LENGTH, 8);
+		checksum.update(payload);
+		header.putInt(4, (int) checksum.getValue());
+		
+		pendingRecords.write(header.array(), 0, header.capacity());
+		pendingRecords.write(payload, 0, payload.length);
+		return sequence;
+	}
+	
+	
+	/*
+	 * Applies the records of log segments following a sequence number
+	 * 
+	 * Arguments:
+	 * changes			the image or the tree receiving the changes
+	 * lastSequence		the sequence number of the last record already applied
+	 * segments			the segments, in order
+	 * isTruncating		true to cut a segment at its first incomplete
+	 * 					or corrupted record (left by a crash), false otherwise
+	 * 
+	 * Return:
+	 * the sequence number of the last record applied
+	 * 
+	 * Throws:
+	 * IOException		if a segment can't be read
+	 */
+	private long replay(NamespaceChanges changes, long lastSequence, List<Path> segments, boolean isTruncating) 
+			throws IOException {
+		for(Path path : segments) {
+			byte[] bytes = Files.readAllBytes(path);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			
+			while(buffer.remaining() >= RECORD_HEADER_LENGTH) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int expectedChecksum = buffer.getInt();
+				if(length < 8 || length > buffer.remaining()) {
+					buffer.position(start);
+					break;
+				}
+				
+				CRC32 checksum = new CRC32();
+				checksum.update(bytes, buffer.position(), length);
+				if((int) checksum.getValue() != expectedChecksum) {
+					buffer.position(start);
+					break;
+				}
+				
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+				buffer.position(buffer.position() + length);
+				long sequence = in.readLong();
+				if(sequence > lastSequence) {
+					apply(changes, in);
+					lastSequence = sequence;
+				}
+			}
+			
+			if(buffer.hasRemaining() && isTruncating) { // the tail of the log has not been synced before a crash
+				System.err.println("Namespace Journal: Incomplete Log Record In " + path.getFileName() + "; Tail Dropped");
+				try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+					channel.truncate(buffer.position());
+				}
+			}
+		}
+		return lastSequence;
+	}
+	
+	
+	/*
+	 * Applies a record
+	 * 
+	 * Arguments:
+	 * changes		the image or the tree receiving the change
+	 * in			the record, after its sequence number
+	 * 
+	 * Throws:
+	 * IOException		if the record can't be read
+	 */
+	private static void apply(NamespaceChanges changes, DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		String directoryPath = in.readUTF();
+		String name = in.readUTF();
+		
+		switch(type) {
+			case UPLOAD_FILE:
+				String locator = in.readUTF();
+				long size = in.readLong();
+				changes.putFile(directoryPath, name, locator, size, in.readLong());
+				break;
+			case REMOVE_FILE: changes.removeFile(directoryPath, name);
+				break;
+			case RENAME_FILE:
+				String newName = in.readUTF();
+				changes.renameFile(directoryPath, name, newName, in.readLong());
+				break;
+			case ADD_DIRECTORY: changes.addDirectory(directoryPath, name, in.readLong() != 0);
+				break;
+			case REMOVE_DIRECTORY: changes.removeDirectory(directoryPath, name);
+				break;
+			default: throw new IOException("Unknown Log Record Type " + type);
+		}
+	}
+	
+	
+	/*
+	 * Opens a new segment
+	 * 
+	 * Arguments:
+	 * firstSequence	the sequence number of the first record of the segment
+	 * 
+	 * Throws:
+	 * IOException		if the segment can't be created
+	 */
+	private void openSegment(long firstSequence) throws IOException {
+		Path path = directory.resolve(SEGMENT_PREFIX + String.format("%019d", firstSequence) + SEGMENT_SUFFIX);
+		segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segmentFirstSequence = firstSequence;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the segments of the log, in order
+	 * 
+	 * Throws:
+	 * IOException		if the directory can't be read
+	 */
+	private List<Path> listSegments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try(DirectoryStream<Path> paths = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for(Path path : paths)
+				segments.add(path);
+		}
+		Collections.sort(segments); // the sequence numbers are padded with zeros
+		return segments;
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * path		a segment
+	 * 
+	 * Return:
+	 * the sequence number of the first record of the segment
+	 */
+	private static long getFirstSequence(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	
+	/*
+	 * Tree Changes Class
+	 * Applies the replayed changes to the restored virtual tree itself
+	 * (before the journal is attached to it, so that they are not logged again)
+	 * 
+	 * Note:
+	 * The content of an upload replaced or removed afterwards has been deleted
+	 * with it, so its record can't be restored: a file whose content can't be
+	 * found is only reported once the replay is over, if no later record
+	 * has replaced, removed or renamed it in the meantime
+	 */
+	private static class TreeChanges implements NamespaceChanges {
+		private VirtualDirectory rootDirectory;
+		private ContentStore store;
+		private Set<String> referencedLocators; // The locators of the uploaded contents
+		private Map<String, String> lostFiles; // The reason each file can't be restored, by path
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _rootDirectory			the root directory of the restored tree
+		 * _store					the content store holding the content of the files
+		 * _referencedLocators		the set receiving the locators of the uploaded contents
+		 */
+		public TreeChanges(VirtualDirectory _rootDirectory, ContentStore _store, Set<String> _referencedLocators) {
+			rootDirectory = _rootDirectory;
+			store = _store;
+			referencedLocators = _referencedLocators;
+			lostFiles = new LinkedHashMap<String, String>();
+		}
+		
+		
+		/*
+		 * Reports the files whose content can't be found,
+		 * once all the records have been replayed
+		 */
+		public void reportLostFiles() {
+			for(Map.Entry<String, String> lostFile : lostFiles.entrySet())
+				System.err.println("Namespace Journal: Could Not Restore " + lostFile.getKey() + ": " + lostFile.getValue());
+			lostFiles.clear();
+		}
+		
+		
+		@Override
+		public void putFile(String directoryPath, String filename, String locator, long size, long modificationTime) {
+			referencedLocators.add(locator);
+			String path = getPath(directoryPath, filename);
+			lostFiles.remove(path); // replaced by this upload
+			VirtualDirectory directory = rootDirectory.getDirectory(directoryPath, true);
+			if(directory == null)
+				return;
+			
+			StoredContent content;
+			try {
+				content = store.restore(locator, size);
+			}catch(IOException e) { // reported unless a later record replaces the file
+				lostFiles.put(path, e.getMessage());
+				return;
+			}
+			
+			try {
+				directory.uploadFile(new VirtualFile<StoredContent>(filename, content, size, modificationTime));
+			}catch(InvalidStringFormatException | TransferSizeExceededException | ChangeNotDurableException e) {
+				System.err.println("Namespace Journal: Could Not Restore " + path + ": " + e.getMessage());
+			}
+		}
+		
+		
+		@Override
+		public void removeFile(String directoryPath, String filename) {
+			lostFiles.remove(getPath(directoryPath, filename));
+			VirtualDirectory directory = rootDirectory.getDirectory(directoryPath, true);
+			try {
+				if(directory != null)
+					directory.removeFile(filename);
+			}catch(ChangeNotDurableException e) { // the tree being restored is not logged
+				System.err.println("Namespace Journal: Could Not Restore Removal Of " + filename + ": " + e.getMessage());
+			}
+		}
+		
+		
+		@Override
+		public void renameFile(String directoryPath, String oldFilename, String newFilename, long modificationTime) {
+			String lostReason = lostFiles.remove(getPath(directoryPath, oldFilename));
+			lostFiles.remove(getPath(directoryPath, newFilename)); // replaced by the renamed file
+			if(lostReason != null)
+				lostFiles.put(getPath(directoryPath, newFilename), lostReason);
+			
+			VirtualDirectory directory = rootDirectory.getDirectory(directoryPath, true);
+			try {
+				if(directory != null)
+					directory.renameFile(oldFilename, newFilename, modificationTime);
+			}catch(ChangeNotDurableException e) { // the tree being restored is not logged
+				System.err.println("Namespace Journal: Could Not Restore Rename Of " + oldFilename + ": " + e.getMessage());
+			}
+		}
+		
+		
+		@Override
+		public void addDirectory(String directoryPath, String directoryName, boolean isProtected) {
+			VirtualDirectory directory = rootDirectory.getDirectory(directoryPath, true);
+			if(directory != null)
+				directory.addSubDirectory(directoryName, isProtected);
+		}
+		
+		
+		@Override
+		public void removeDirectory(String directoryPath, String directoryName) {
+			String pathPrefix = getPath(directoryPath, directoryName) + "/";
+			Iterator<String> lostPaths = lostFiles.keySet().iterator();
+			while(lostPaths.hasNext()) {
+				if(lostPaths.next().startsWith(pathPrefix)) // removed with the directory
+					lostPaths.remove();
+			}
+			
+			VirtualDirectory directory = rootDirectory.getDirectory(directoryPath, true);
+			if(directory != null)
+				directory.removeSubDirectory(directoryName);
+		}
+		
+		
+		/*
+		 * Arguments:
+		 * directoryPath		the absolute path of a directory
+		 * name					the name of a file or a sub-directory of the directory
+		 * 
+		 * Return:
+		 * the absolute path of the file or the sub-directory
+		 */
+		private static String getPath(String directoryPath, String name) {
+			return directoryPath.endsWith("/") ? directoryPath + name : directoryPath + "/" + name;
+		}
+	}
+}
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Passive Data Listener Class
+ * Listens once and for all on the ports of the passive port range,
+ * and hands each accepted data connection to the session waiting for it
+ * 
+ * Note:
+ * - A "PASV" reserves a port for the address of the client: a data connection
+ *   is matched to the session by the port it arrives on and the address it comes from,
+ *   a connection no session is waiting for is closed
+ * - Two pending "PASV" of the same client address never share a port, so that
+ *   a client can have as many pending "PASV" as there are ports in the range
+ * - The ports are only listened on from the first "PASV", all of them are
+ *   accepted by a single thread with a selector, so that a data connection
+ *   costs one accept instead of a bind, a listen and a close
+ */
+public class PassiveDataListener implements Runnable {
+	private int firstPort;
+	private int lastPort;
+	private Selector selector;
+	private List<Integer> listenedPorts; // Null until the ports are listened on
+	private AtomicInteger nextIndex;
+	private ConcurrentHashMap<ReservationKey, Reservation> reservations;
+	
+	
+	/*
+	 * Constructor
+	 * 
+	 * Arguments:
+	 * _firstPort		the first port of the range
+	 * _lastPort		the last port of the range (included)
+	 */
+	public PassiveDataListener(int _firstPort, int _lastPort) {
+		firstPort = _firstPort;
+		lastPort = _lastPort;
+		nextIndex = new AtomicInteger(0);
+		reservations = new ConcurrentHashMap<ReservationKey, Reservation>();
+	}
+	
+	
+	/*
+	 * Reserves a port for the next data connection of a client
+	 * 
+	 * Arguments:
+	 * clientAddress		the address the data connection will come from,
+	 * 						null if it can come from any address
+	 * 
+	 * Return:
+	 * the reservation the data connection is accepted through
+	 * 
+	 * Throws:
+	 * IOException		if no port of the range can be listened on,
+	 * 					or if every port is already reserved for the client
+	 */
+	public Reservation reserve(InetAddress clientAddress) throws IOException {
+		List<Integer> ports = open();
+		int portCount = ports.size();
+		int start = Math.floorMod(nextIndex.getAndIncrement(), portCount); // spreads the clients over the ports
+		
+		for(int i = 0; i < portCount; i++) {
+			ReservationKey key = new ReservationKey(ports.get((start + i) % portCount), clientAddress);
+			Reservation reservation = new Reservation(key);
+			if(reservations.putIfAbsent(key, reservation) == null)
+				return reservation;
+		}
+		
+		throw new IOException("No Passive Port Available");
+	}
+	
+	
+	/*
+	 * Accepts the data connections until the thread is interrupted
+	 */
+	@Override
+	public void run() {
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				selector.select();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.isValid() && key.isAcceptable())
+						dispatch((ServerSocketChannel) key.channel(), (Integer) key.attachment());
+				}
+			}
+		}catch(IOException e) {
+			System.err.println("Passive Data Listener Died: " + e);
+		}
+	}
+	
+	
+	/*
+	 * Listens on the ports of the range, the first time only
+	 * 
+	 * Return:
+	 * the ports listened on
+	 * 
+	 * Throws:
+	 * IOException		if no port of the range can be listened on
+	 */
+	private synchronized List<Integer> open() throws IOException {
+		if(listenedPorts != null)
+			return listenedPorts;
+		
+		Selector newSelector = Selector.open();
+		List<Integer> ports = new ArrayList<Integer>();
+		for(int port = firstPort; port <= lastPort; port++) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			try {
+				serverChannel.socket().setReuseAddress(true);
+				serverChannel.bind(new InetSocketAddress(port));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(newSelector, SelectionKey.OP_ACCEPT, port);
+				ports.add(port);
+			}catch(IOException e) { // port used by another process, the others are used
+				serverChannel.close();
+			}
+		}
+		
+		if(ports.isEmpty()) {
+			newSelector.close();
+			throw new IOException("No Passive Port Available");
+		}
+		
+		selector = newSelector;
+		Thread acceptorThread = new Thread(this, "passive-data-listener");
+		acceptorThread.setDaemon(true);
+		acceptorThread.start();
+		listenedPorts = ports;
+		return ports;
+	}
+	
+	
+	/*
+	 * Accepts a data connection and hands it to the session waiting for it
+	 * 
+	 * Arguments:
+	 * serverChannel	the channel listening on the port
+	 * port				the port
+	 */
+	private void dispatch(ServerSocketChannel serverChannel, int port) {
+		SocketChannel channel = null;
+		try {
+			channel = serverChannel.accept();
+			if(channel == null)
+				return;
+			
+			InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+			Reservation reservation = reservations.get(new ReservationKey(port, address));
+			if(reservation == null)
+				reservation = reservations.get(new ReservationKey(port, null));
+			
+			if(reservation != null && reservation.complete(channel))
+				return;
+			
+			channel.close(); // no session is waiting for this connection
+		}catch(IOException e) {
+			System.err.println("Passive Data Listener: Could Not Accept Data Connection: " + e);
+			try {
+				if(channel != null)
+					channel.close();
+			}catch(IOException e2) {
+				System.err.println("Passive Data Listener: Could Not Close Data Connection");
+			}
+		}
+	}
+	
+	
+	/*
+	 * Reservation Class
+	 * A port reserved for the next data connection of a client
+	 */
+	public class Reservation {
+		private ReservationKey key;
+		private ReentrantLock lock; // Not a monitor, so that a waiting virtual thread is not pinned
+		private Condition isCompleted;
+		private SocketChannel channel;
+		private boolean isCancelled = false;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _key		the port and the client address of the reservation
+		 */
+		private Reservation(ReservationKey _key) {
+			key = _key;
+			lock = new ReentrantLock();
+			isCompleted = lock.newCondition();
+		}
+		
+		
+		/*
+		 * Return:
+		 * the reserved port
+		 */
+		public int getPort() {
+			return key.port;
+		}
+		
+		
+		/*
+		 * Waits for the data connection of the client
+		 * (the reservation is then cancelled)
+		 * 
+		 * Arguments:
+		 * timeout		the maximum time to wait (in milliseconds)
+		 * 
+		 * Return:
+		 * the data connection
+		 * 
+		 * Throws:
+		 * SocketTimeoutException	if the client has not connected in time
+		 * IOException				if the wait is interrupted
+		 */
+		public SocketChannel accept(long timeout) throws SocketTimeoutException, IOException {
+			lock.lock();
+			try {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while(channel == null && !isCancelled && remaining > 0) {
+					remaining = isCompleted.awaitNanos(remaining);
+				}
+				
+				SocketChannel acceptedChannel = channel;
+				channel = null;
+				if(acceptedChannel == null && !isCancelled)
+					throw new SocketTimeoutException("Passive Data Connection Timed Out");
+				if(acceptedChannel == null)
+					throw new IOException("Passive Data Connection Cancelled");
+				return acceptedChannel;
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Passive Data Connection Interrupted");
+			}finally {
+				isCancelled = true;
+				lock.unlock();
+				reservations.remove(key, this);
+			}
+		}
+		
+		
+		/*
+		 * Gives the port back, closing the data connection if it has not been taken
+		 */
+		public void cancel() {
+			reservations.remove(key, this);
+			lock.lock();
+			try {
+				isCancelled = true;
+				isCompleted.signalAll();
+				if(channel != null) {
+					channel.close();
+					channel = null;
+				}
+			}catch(IOException e) {
+				System.err.println("Passive Data Listener: Could Not Close Data Connection");
+			}finally {
+				lock.unlock();
+			}
+		}
+		
+		
+		/*
+		 * Hands the data connection to the waiting session
+		 * 
+		 * Arguments:
+		 * acceptedChannel		the data connection
+		 * 
+		 * Return:
+		 * true if the connection has been handed over,
+		 * false if the reservation is already completed or cancelled
+		 * 
+		 * Throws:
+		 * IOException		if the connection can't be switched to blocking mode
+		 */
+		private boolean complete(SocketChannel acceptedChannel) throws IOException {
+			lock.lock();
+			try {
+				if(isCancelled || channel != null)
+					return false;
+				
+				acceptedChannel.configureBlocking(true);
+				channel = acceptedChannel;
+				reservations.remove(key, this); // one data connection per "PASV"
+				isCompleted.signalAll();
+				return true;
+			}finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	
+	/*
+	 * Reservation Key Class
+	 * The port a data connection arrives on and the address it comes from
+	 */
+	private static class ReservationKey {
+		private final int port;
+		private final InetAddress address; // Null for any address
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _port		the port
+		 * _address		the client address, null for any address
+		 */
+		public ReservationKey(int _port, InetAddress _address) {
+			port = _port;
+			address = _address;
+		}
+		
+		
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof ReservationKey))
+				return false;
+			
+			ReservationKey key = (ReservationKey) other;
+			return port == key.port && Objects.equals(address, key.address);
+		}
+		
+		
+		@Override
+		public int hashCode() {
+			return 31 * port + Objects.hashCode(address);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+/*
+ * Request Too Long Exception Class
+ * Manages exception when a request doesn't fit in the control channel buffer
+ */
+public class RequestTooLongException extends IOException {
+	private static final long serialVersionUID = 4188250915733520427L;
+
+	public RequestTooLongException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Stored Content Interface
+ * Body of a virtual file, kept by a content store
+ * (in memory or on the local disk)
+ */
+public interface StoredContent {
+	
+	/*
+	 * Return:
+	 * the size (in bytes) of the content
+	 */
+	public long getSize();
+	
+	
+	/*
+	 * Transfers a part of the content to a channel
+	 * 
+	 * Arguments:
+	 * position		the position of the first byte to transfer
+	 * count		the number of bytes to transfer
+	 * target		the channel receiving the bytes
+	 * 
+	 * Return:
+	 * the number of bytes transfered
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read or the channel can't be written
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+	
+	
+	/*
+	 * Opens the content for a transfer, so that it is not read again 
+	 * from its store for each part of the transfer
+	 * 
+	 * Return:
+	 * the reader of the content, to close once the transfer has ended
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read (eg: it has been deleted)
+	 */
+	public ContentReader open() throws IOException;
+	
+	
+	/*
+	 * Return:
+	 * the location of the content in its store, to restore the content 
+	 * after a restart, null if the content can't be restored
+	 */
+	public String getLocator();
+	
+	
+	/*
+	 * Frees the storage used by the content
+	 * (the content can't be opened afterwards, the running readers still read it)
+	 */
+	public void delete();
+}
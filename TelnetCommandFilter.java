@@ -0,0 +1,44 @@
+/*
+ * Telnet Command Filter Class
+ * Removes the Telnet commands from the requests received on the control connection
+ * (RFC 959: eg: "ABOR" is preceded by the Telnet "Interrupt Process" and "Synch"
+ * signals, <IAC><IP><IAC><DM>, which arrive inline with the urgent data)
+ * 
+ * Note:
+ * The requests are filtered in place, an escaped <IAC><IAC> is kept as one 0xFF byte
+ */
+public class TelnetCommandFilter {
+	// Constant values
+	private static final byte IAC = (byte) 0xFF; // Interpret As Command
+	private static final byte WILL = (byte) 0xFB;
+	private static final byte DONT = (byte) 0xFE;
+	
+	
+	/*
+	 * Removes the Telnet commands from a request
+	 * 
+	 * Arguments:
+	 * buffer		the buffer holding the request (its content is overwritten)
+	 * start		the position of the first byte of the request
+	 * end			the position following the last byte of the request
+	 * 
+	 * Return:
+	 * the position following the last byte of the filtered request
+	 */
+	public static int filter(byte[] buffer, int start, int end) {
+		int write = start;
+		for(int read = start; read < end; read++) {
+			if(buffer[read] != IAC) {
+				buffer[write++] = buffer[read];
+				continue;
+			}
+			
+			if(read + 1 < end && buffer[read + 1] == IAC) // an escaped 0xFF data byte
+				buffer[write++] = IAC;
+			else if(read + 1 < end && buffer[read + 1] >= WILL && buffer[read + 1] <= DONT) // option negotiation
+				read++; // the option byte is skipped too
+			read++; // the command byte is skipped
+		}
+		return write;
+	}
+}
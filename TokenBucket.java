@@ -0,0 +1,61 @@
+/*
+ * Token Bucket Class
+ * Meters a flow of bytes at a rate, letting through at once 
+ * a burst of up to a quarter of a second of that rate
+ * 
+ * Note:
+ * - The bytes are reserved ahead: a reservation exceeding the tokens left puts 
+ *   the bucket in debt, the following reservations are only granted once the debt 
+ *   is repaid, so that the reservations are granted in the order they are made
+ * - The rate is given with each reservation, so that it can be changed at any time
+ */
+public class TokenBucket {
+	// Constant values
+	private static final double NANOSECONDS_PER_SECOND = 1e9;
+	private static final long BURST_DIVISOR = 4; // A burst lasts up to a quarter of a second
+	
+	//
+	private double tokens; // Negative when the bucket is in debt
+	private long lastTime; // The time up to which the tokens have been added
+	
+	
+	/*
+	 * Constructor
+	 * -> the bucket starts full
+	 */
+	public TokenBucket() {
+		tokens = 0;
+		lastTime = System.nanoTime() - (long) NANOSECONDS_PER_SECOND; // a full burst has been earned
+	}
+	
+	
+	/*
+	 * Reserves bytes
+	 * 
+	 * Arguments:
+	 * bytes		the number of bytes to transfer
+	 * rate			the rate of the bucket (in bytes per second), 0 if it is not limited
+	 * time			the time (See System.nanoTime) from which the bytes are to be transfered
+	 * 
+	 * Return:
+	 * the time from which the bytes can be transfered without exceeding the rate
+	 */
+	public synchronized long reserve(long bytes, long rate, long time) {
+		if(rate <= 0) { // nothing is owed to an unlimited bucket
+			tokens = 0;
+			lastTime = time;
+			return time;
+		}
+		
+		if(time > lastTime) {
+			double earnedTokens = (time - lastTime) * rate / NANOSECONDS_PER_SECOND;
+			tokens = Math.min(tokens + earnedTokens, (double) rate / BURST_DIVISOR);
+			lastTime = time;
+		}
+		
+		tokens -= bytes;
+		if(tokens >= 0)
+			return time;
+		return lastTime + (long) (-tokens * NANOSECONDS_PER_SECOND / rate); // once the debt is repaid
+	}
+}
@@ -1,5 +1,15 @@
-import java.text.SimpleDateFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * Virtual Directory Class
@@ -10,14 +20,29 @@ public class VirtualDirectory {
 	// Constant values
 	private static final String ACCESS_RIGHTS = "drwxr-xr-x 1";
 	private static final String OWNER = "FTPServerBastienAlexandre";
-	private static final String SIZE_FORMAT = "            "; // 12 spaces
+	private static final int MAX_CACHED_LISTING_ENTRIES = 10000;
+	private static final int RENDERING_BUFFER_SIZE = 0x2000; // 8 KiB
+	private static final Object[] LOCK_STRIPES = newLockStripes(64); // must be a power of 2
+	private static final int MAX_CACHED_PATHS = 1024;
+	private static final int MAX_SCANNED_SUB_DIRECTORIES = 8;
+	private static final LongAdder LISTING_CACHE_HITS = new LongAdder();
+	private static final LongAdder LISTING_CACHE_MISSES = new LongAdder(); // including the listings too large to be cached
 	
 	//
 	private String directoryName;
 	private VirtualDirectory parentDirectory;
-	private Dictionary<String, VirtualFile<?>> files;
-	private Dictionary<String, VirtualDirectory> subDirectories;
-	private long modificationTime; // The last time the directory was modified
+	private ConcurrentMap<String, VirtualFile<?>> files;
+	private ConcurrentMap<String, VirtualDirectory> subDirectories;
+	private volatile long modificationTime; // The last time the directory was modified
+	private AtomicLong version = new AtomicLong(); // Bumped each time the listing of the directory changes
+	private volatile CachedListing cachedListing; // The listing with the unprotected directories only
+	private volatile CachedListing cachedProtectedListing; // The listing with the protected directories
+	private AtomicLong structureVersion; // Shared by the whole tree, bumped when a directory is added or removed
+	private volatile ResolutionCache resolutionCache; // The pathnames resolved from this directory
+	private String directoryPath; // The absolute path, computed once
+	private AtomicReference<NamespaceJournal> journal; // Shared by the whole tree, logs its changes if set
+	private volatile MappedNamespaceImage image; // The image the content is still to be read from, null once read
+	private int imageOffset; // The offset of the record of the directory in the image
 	private boolean isProtected; // Whether the directory is protected or not
 	/*
 	 * Note:
@@ -38,8 +63,10 @@ public class VirtualDirectory {
 			directoryName = "/";
 			parentDirectory = null;
 			isProtected = false;
+			structureVersion = new AtomicLong();
+			journal = new AtomicReference<NamespaceJournal>();
 			
-			files = new Hashtable<String, VirtualFile<?>>();
+			files = new ConcurrentHashMap<String, VirtualFile<?>>();
 			VirtualFile<String> myText = new VirtualFile<String>("mytext.txt", VirtualDirectoryContent.MYTEXT,
 					VirtualDirectoryContent.MYTEXT.length());
 			files.put("mytext.txt", myText);
@@ -47,7 +74,7 @@ public class VirtualDirectory {
 					VirtualDirectoryContent.MYIMAGE.length);
 			files.put("myimage.bmp", myImage);
 			
-			subDirectories = new Hashtable<String, VirtualDirectory>();
+			subDirectories = new ConcurrentHashMap<String, VirtualDirectory>();
 			ArrayList<VirtualFile<?>> _files = new ArrayList<VirtualFile<?>>();
 			VirtualFile<String> secret = new VirtualFile<String>("secret.txt", VirtualDirectoryContent.SECRET,
 					VirtualDirectoryContent.SECRET.length());
@@ -84,8 +111,10 @@ public class VirtualDirectory {
 		directoryName = _directoryName;
 		parentDirectory = _parentDirectory;
 		isProtected = _isProtected;
+		structureVersion = (_parentDirectory != null) ? _parentDirectory.structureVersion : new AtomicLong();
+		journal = (_parentDirectory != null) ? _parentDirectory.journal : new AtomicReference<NamespaceJournal>();
 		
-		files = new Hashtable<String, VirtualFile<?>>();
+		files = new ConcurrentHashMap<String, VirtualFile<?>>();
 		if(_files != null) {
 			for(int i = 0; i < _files.size(); i++) {
 				VirtualFile<?> currentFile = _files.get(i);
@@ -94,7 +123,7 @@ public class VirtualDirectory {
 			}
 		}
 		
-		subDirectories = new Hashtable<String, VirtualDirectory>();
+		subDirectories = new ConcurrentHashMap<String, VirtualDirectory>();
 		if(_subDirectories != null) {
 			for(int i = 0; i < _subDirectories.size(); i++) {
 				subDirectories.put(_subDirectories.get(i).directoryName, _subDirectories.get(i));
@@ -105,6 +134,73 @@ public class VirtualDirectory {
 	}
 	
 	
+	/*
+	 * Constructor
+	 * Initializes a directory restored from a namespace image, 
+	 * whose content is only read from the image the first time it is needed
+	 * 
+	 * Arguments:
+	 * _directoryName		the name of the directory
+	 * _parentDirectory		the parent directory
+	 * _isProtected			true if the connection is protected, false otherwise
+	 * _image				the image
+	 * _imageOffset			the offset of the record of the directory in the image
+	 */
+	public VirtualDirectory(String _directoryName, VirtualDirectory _parentDirectory, boolean _isProtected, 
+			MappedNamespaceImage _image, int _imageOffset) {
+		this(_directoryName, _parentDirectory, null, null, _isProtected);
+		imageOffset = _imageOffset;
+		image = _image;
+	}
+	
+	
+	/*
+	 * Reads the content of the directory from its image, 
+	 * if not done yet (must be called before any use of the content)
+	 */
+	private void ensureLoaded() {
+		if(image != null)
+			load();
+	}
+	
+	
+	/*
+	 * Reads the content of the directory from its image: its files and 
+	 * its sub-directories, whose own content is read when they are first used
+	 * 
+	 * Note:
+	 * The content is published by clearing the image, so that the threads 
+	 * finding the image cleared see the whole content; a directory whose 
+	 * record can't be read is left empty
+	 */
+	private synchronized void load() {
+		MappedNamespaceImage _image = image;
+		if(_image == null) // read meanwhile by another thread
+			return;
+		
+		try {
+			_image.readDirectory(imageOffset, new MappedNamespaceImage.EntryVisitor() {
+				@Override
+				public void visitFile(String filename, long size, long _modificationTime, String locator, byte[] bytes) {
+					VirtualFile<?> file = _image.restoreFile(filename, size, _modificationTime, locator, bytes);
+					if(file != null)
+						files.put(filename, file);
+				}
+				
+				
+				@Override
+				public void visitDirectory(String directoryName, boolean _isProtected, int offset) {
+					subDirectories.put(directoryName, new VirtualDirectory(directoryName, VirtualDirectory.this, 
+							_isProtected, _image, offset));
+				}
+			});
+		}catch(IOException e) {
+			System.err.println("Virtual Directory: Could Not Read " + getDirectoryPath() + ": " + e.getMessage());
+		}
+		image = null;
+	}
+	
+	
 	/*
 	 * Gives the directory absolute path
 	 * 
@@ -112,13 +208,158 @@ public class VirtualDirectory {
 	 * the directory absolute path
 	 */
 	public String getDirectoryPath() {
-		if(parentDirectory != null)
-			return parentDirectory.getDirectoryPath() + directoryName;
-		
+		if(directoryPath == null) { // a directory is never moved, its path never changes
+			if(parentDirectory == null)
+				directoryPath = directoryName;
+			else if(parentDirectory.parentDirectory == null)
+				directoryPath = parentDirectory.getDirectoryPath() + directoryName;
+			else
+				directoryPath = parentDirectory.getDirectoryPath() + "/" + directoryName;
+		}
+		return directoryPath;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the name of the directory
+	 */
+	public String getDirectoryName() {
 		return directoryName;
 	}
 	
 	
+	/*
+	 * Return:
+	 * true if the directory is protected, false otherwise
+	 */
+	public boolean isProtected() {
+		return isProtected;
+	}
+	
+	
+	/*
+	 * Return:
+	 * a view of the files of the directory
+	 */
+	public Collection<VirtualFile<?>> getFiles() {
+		ensureLoaded();
+		return Collections.unmodifiableCollection(files.values());
+	}
+	
+	
+	/*
+	 * Return:
+	 * a view of the direct sub-directories of the directory
+	 */
+	public Collection<VirtualDirectory> getSubDirectories() {
+		ensureLoaded();
+		return Collections.unmodifiableCollection(subDirectories.values());
+	}
+	
+	
+	/*
+	 * Logs the changes of the whole tree from now on
+	 * 
+	 * Arguments:
+	 * _journal		the journal receiving the changes
+	 */
+	public void setJournal(NamespaceJournal _journal) {
+		journal.set(_journal);
+	}
+	
+	
+	/*
+	 * Writes the directory listing to a channel
+	 * 
+	 * Arguments:
+	 * canAccessProtectedData 	true if protected directories 
+	 * 							can be accessed, false otherwise
+	 * target					the channel receiving the listing
+	 * buffer					a buffer the listing can be encoded in
+	 * 
+	 * Throws:
+	 * IOException		if the target channel can't be written
+	 * 
+	 * Note:
+	 * The listing of a small directory is taken from the listing cache,
+	 * the listing of a larger one is encoded and written entry by entry 
+	 * through the buffer so that it is never held in memory as a whole
+	 */
+	public void writeDirectoryListing(boolean canAccessProtectedDirectories, WritableByteChannel target, 
+			ByteBuffer buffer) throws IOException {
+		ensureLoaded();
+		if(files.size() + subDirectories.size() <= MAX_CACHED_LISTING_ENTRIES) {
+			ByteBuffer listing = ByteBuffer.wrap(getDirectoryListing(canAccessProtectedDirectories));
+			while(listing.hasRemaining()) {
+				target.write(listing);
+			}
+			
+		}else {
+			LISTING_CACHE_MISSES.increment();
+			DirectoryListingWriter writer = new DirectoryListingWriter(target, buffer);
+			writeDirectoryContent(canAccessProtectedDirectories, writer);
+			writer.flush();
+		}
+	}
+	
+	
+	/*
+	 * Gives the directory listing, ready to be sent on the data channel
+	 * 
+	 * Arguments:
+	 * canAccessProtectedData 	true if protected directories 
+	 * 							can be accessed, false otherwise
+	 * 
+	 * Return:
+	 * the bytes of printDirectoryContent(canAccessProtectedData)
+	 * 
+	 * Note:
+	 * The listing is only rendered again when the directory version has
+	 * changed since the last rendering, so that repeated "LIST" requests
+	 * on an unchanged directory cost no more than writing these bytes
+	 */
+	public byte[] getDirectoryListing(boolean canAccessProtectedDirectories) {
+		ensureLoaded();
+		long currentVersion = version.get(); // read before rendering, so that a change 
+											 // during the rendering leaves the cache stale
+		CachedListing listing = canAccessProtectedDirectories ? cachedProtectedListing : cachedListing;
+		if(listing != null && listing.version == currentVersion) {
+			LISTING_CACHE_HITS.increment();
+			return listing.bytes;
+		}
+		
+		LISTING_CACHE_MISSES.increment();
+		byte[] bytes = renderDirectoryContent(canAccessProtectedDirectories);
+		listing = new CachedListing(currentVersion, bytes);
+		if(canAccessProtectedDirectories)
+			cachedProtectedListing = listing;
+		else
+			cachedListing = listing;
+		return bytes;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of directory listings taken from the listing cache, 
+	 * in the whole server
+	 */
+	public static long getListingCacheHits() {
+		return LISTING_CACHE_HITS.sum();
+	}
+	
+	
+	/*
+	 * Return:
+	 * the number of directory listings rendered because they were not in 
+	 * the listing cache or too large to be cached, in the whole server
+	 */
+	public static long getListingCacheMisses() {
+		return LISTING_CACHE_MISSES.sum();
+	}
+	
+	
 	/*
 	 * Prints/Lists the directory content
 	 * 
@@ -135,38 +376,66 @@ public class VirtualDirectory {
 	 * 				   and with a "d" for a directory
 	 */
 	public String printDirectoryContent(boolean canAccessProtectedDirectories) {
-		String directoryContent = "";
-			
-		for(Enumeration<String> e = files.keys(); e.hasMoreElements();) {
-			String filename = e.nextElement();
-			VirtualFile<?> file = files.get(filename);
-			String size = String.valueOf(file.getSize());
-			String padding = SIZE_FORMAT.substring(0, SIZE_FORMAT.length() - size.length());
-			SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm");
-			String date = sdf.format(file.getModificationTime()); // last modified file date
+		return new String(renderDirectoryContent(canAccessProtectedDirectories), StandardCharsets.US_ASCII);
+	}
+	
+	
+	/*
+	 * Renders the directory content in memory
+	 * 
+	 * Arguments:
+	 * canAccessProtectedData 	true if protected directories 
+	 * 							can be accessed, false otherwise
+	 * 
+	 * Return:
+	 * the encoded directory content
+	 */
+	private byte[] renderDirectoryContent(boolean canAccessProtectedDirectories) {
+		ByteArrayOutputStream directoryContent = new ByteArrayOutputStream();
+		DirectoryListingWriter writer = new DirectoryListingWriter(Channels.newChannel(directoryContent), 
+				ByteBuffer.allocate(RENDERING_BUFFER_SIZE));
+		try {
+			writeDirectoryContent(canAccessProtectedDirectories, writer);
+			writer.flush();
+		}catch(IOException e) { // can't happen when writing in memory
+			System.err.println("Virtual Directory: Could Not Render Directory Content: " + e);
+		}
+		return directoryContent.toByteArray();
+	}
+	
+	
+	/*
+	 * Writes an entry for each file and each accessible sub-directory of the directory
+	 * 
+	 * Arguments:
+	 * canAccessProtectedData 	true if protected directories 
+	 * 							can be accessed, false otherwise
+	 * writer					the writer encoding the entries
+	 * 
+	 * Throws:
+	 * IOException		if the entries can't be written
+	 */
+	private void writeDirectoryContent(boolean canAccessProtectedDirectories, DirectoryListingWriter writer) 
+			throws IOException {
+		ensureLoaded();
+		for(Map.Entry<String, VirtualFile<?>> entry : files.entrySet()) { // weakly consistent, never locked
+			String filename = entry.getKey();
+			VirtualFile<?> file = entry.getValue();
 			
 			//File Format: "-rw-r--r-- 1 owner group           213 Aug 26 16:31 README\r\n"
-			directoryContent += file.getAccessRights() + " " + file.getOwner() + " " 
-								+ padding + size + " " + date + " " + filename + "\r\n";
+			writer.writeEntry(file.getAccessRights(), file.getOwner(), file.getSize(), 
+					file.getModificationTime(), filename);
 		}
 		
-		for(Enumeration<String> e = subDirectories.keys(); e.hasMoreElements();) {
-			String dirName = e.nextElement();
-			VirtualDirectory dir = subDirectories.get(dirName);
+		for(Map.Entry<String, VirtualDirectory> entry : subDirectories.entrySet()) {
+			String dirName = entry.getKey();
+			VirtualDirectory dir = entry.getValue();
 			
-			if(!dir.isProtected || canAccessProtectedDirectories) {
-				String size = String.valueOf(dirName.length());
-				String padding = SIZE_FORMAT.substring(0, SIZE_FORMAT.length() - size.length());
-				SimpleDateFormat sdf = new SimpleDateFormat("MMM dd HH:mm");
-				String date = sdf.format(dir.modificationTime); // last modified directory date
-				
+			if((!dir.isProtected || canAccessProtectedDirectories)) {
 				//Directory Format: "drwxr-xr-x 1 owner group           213 Aug 26 16:31 README\r\n"
-				directoryContent += ACCESS_RIGHTS + " " + OWNER + " " + padding 
-									+ size + " " + date + " " + dirName + "\r\n";
+				writer.writeEntry(ACCESS_RIGHTS, OWNER, dirName.length(), dir.modificationTime, dirName);
 			}
 		}
-		
-		return directoryContent;
 	}
 	
 	
@@ -179,17 +448,64 @@ public class VirtualDirectory {
 	 * 
 	 * Return:
 	 * True if the file was correctly renamed, false otherwise
+	 * 
+	 * Throws:
+	 * ChangeNotDurableException		if the file is renamed but the rename can't be logged
+	 * 
+	 * Note:
+	 * The rename is atomic with respect to the other changes of both 
+	 * filenames, and a concurrent reader always finds the file under 
+	 * one name or the other
+	 */
+	public boolean renameFile(String oldFilename, String newFilename) throws ChangeNotDurableException {
+		return renameFile(oldFilename, newFilename, System.currentTimeMillis());
+	}
+	
+	
+	/*
+	 * Renames a file of the directory with a given modification time
+	 * (eg: the time of a rename replayed from the journal)
+	 * 
+	 * Arguments:
+	 * oldFilename			the old filename
+	 * newFilename			the new filename
+	 * modificationTime		the modification time of the renamed file
+	 * 
+	 * Return:
+	 * See renameFile(String, String)
+	 * 
+	 * Throws:
+	 * See renameFile(String, String)
 	 */
-	public synchronized boolean renameFile(String oldFilename, String newFilename) {
+	public boolean renameFile(String oldFilename, String newFilename, long modificationTime) 
+			throws ChangeNotDurableException {
 		if(oldFilename == null || newFilename == null)
 			return false;
 		
-		VirtualFile<?> file = downloadFile(oldFilename);
-		if(file == null || !file.renameTo(newFilename) || !uploadFile(file))
-			return false;
+		ensureLoaded();
+		int oldIndex = getLockIndex(oldFilename);
+		int newIndex = getLockIndex(newFilename);
+		NamespaceJournal _journal = journal.get();
+		long sequence = 0;
 		
-		removeFile(oldFilename);
-		modificationTime = System.currentTimeMillis();
+		// the stripes are always locked in increasing order, so that two renames can't deadlock
+		synchronized(LOCK_STRIPES[Math.min(oldIndex, newIndex)]) {
+			synchronized(LOCK_STRIPES[Math.max(oldIndex, newIndex)]) {
+				VirtualFile<?> file = files.get(oldFilename);
+				if(file == null || !file.renameTo(newFilename, modificationTime))
+					return false;
+				
+				VirtualFile<?> replacedFile = files.put(newFilename, file); // added under the new name first
+				files.remove(oldFilename, file);							   // then removed from the old one
+				if(replacedFile != null && replacedFile != file)
+					replacedFile.delete();
+				if(_journal != null)
+					sequence = _journal.logRename(this, oldFilename, newFilename, file.getModificationTime());
+			}
+		}
+		
+		markModified();
+		checkDurable(_journal, sequence);
 		return true;
 	}
 	
@@ -202,11 +518,15 @@ public class VirtualDirectory {
 	 * 
 	 * Return:
 	 * the downloaded file or null if the requested file can't be found in the directory
+	 * 
+	 * Note:
+	 * Lock-free, so that concurrent downloads from the same directory never contend
 	 */
-	public synchronized VirtualFile<?> downloadFile(String filename){
+	public VirtualFile<?> downloadFile(String filename){
 		if(filename == null)
 			return null;
 	
+		ensureLoaded();
 		return files.get(filename);
 	}
 
@@ -219,8 +539,11 @@ public class VirtualDirectory {
 	 * 
 	 * Return:
 	 * true if the upload succeeded, false otherwise
+	 * 
+	 * Throws:
+	 * ChangeNotDurableException		if the file is uploaded but the upload can't be logged
 	 */
-	public synchronized boolean uploadFile(VirtualFile<?> file){
+	public boolean uploadFile(VirtualFile<?> file) throws ChangeNotDurableException {
 		if(file == null)
 			return false;
 		
@@ -230,7 +553,8 @@ public class VirtualDirectory {
 	
 	
 	/*
-	 * Uploads a file to the directory
+	 * Uploads a file to the directory, replacing the file 
+	 * of the same name, if any, in a single step
 	 * 
 	 * Arguments:
 	 * file			the file to upload
@@ -238,14 +562,27 @@ public class VirtualDirectory {
 	 * 
 	 * Return:
 	 * true if the upload succeeded, false otherwise
+	 * 
+	 * Throws:
+	 * ChangeNotDurableException		if the file is uploaded but the upload can't be logged
 	 */
-	private synchronized boolean uploadFile(VirtualFile<?> file, String filename) {
+	private boolean uploadFile(VirtualFile<?> file, String filename) throws ChangeNotDurableException {
 		if(file == null || filename == null)
 			return false;
 		
-		files.put(filename, file);
+		ensureLoaded();
+		NamespaceJournal _journal = journal.get();
+		long sequence = 0;
+		synchronized(LOCK_STRIPES[getLockIndex(filename)]) {
+			VirtualFile<?> replacedFile = files.put(filename, file);
+			if(replacedFile != null && replacedFile != file)
+				replacedFile.delete();
+			if(_journal != null)
+				sequence = _journal.logUpload(this, file, filename);
+		}
 	
-		modificationTime = System.currentTimeMillis();
+		markModified();
+		checkDurable(_journal, sequence); // the upload is only acknowledged once it is durable
 		return true;
 	}
 	
@@ -258,13 +595,82 @@ public class VirtualDirectory {
 	 * 
 	 * Return:
 	 * the file if it has been deleted from the server, null otherwise
+	 * 
+	 * Throws:
+	 * ChangeNotDurableException		if the file is deleted but the deletion can't be logged
 	 */
-	public VirtualFile<?> removeFile(String filename){
+	public VirtualFile<?> removeFile(String filename) throws ChangeNotDurableException {
 		if(filename == null)
 			return null;
 		
+		ensureLoaded();
+		NamespaceJournal _journal = journal.get();
+		long sequence = 0;
+		VirtualFile<?> file;
+		synchronized(LOCK_STRIPES[getLockIndex(filename)]) {
+			file = files.remove(filename);
+			if(file != null) {
+				file.delete();
+				if(_journal != null)
+					sequence = _journal.logRemove(this, filename);
+			}
+		}
+		
+		if(file != null) {
+			markModified();
+			checkDurable(_journal, sequence);
+		}
+		return file;
+	}
+	
+	
+	/*
+	 * Waits for a change of the tree to be durable
+	 * 
+	 * Arguments:
+	 * _journal		the journal of the tree, null if the tree is not logged
+	 * sequence		the sequence number of the record of the change
+	 * 
+	 * Throws:
+	 * ChangeNotDurableException		if the record can't be made durable
+	 */
+	private static void checkDurable(NamespaceJournal _journal, long sequence) throws ChangeNotDurableException {
+		if(_journal != null && !_journal.awaitDurable(sequence))
+			throw new ChangeNotDurableException("Change Not Logged; It Won't Be Kept Across Restarts");
+	}
+	
+	
+	/*
+	 * Gives the lock guarding the changes of a filename in this directory
+	 * 
+	 * Arguments:
+	 * filename		the filename
+	 * 
+	 * Return:
+	 * the index of one of the lock stripes shared by all the directories
+	 * 
+	 * Note:
+	 * Only the changes of a filename are locked, and only against the 
+	 * changes of the filenames of the same stripe; reads never lock
+	 */
+	private int getLockIndex(String filename) {
+		int hash = 31 * System.identityHashCode(this) + filename.hashCode();
+		hash ^= (hash >>> 16);
+		return hash & (LOCK_STRIPES.length - 1);
+	}
+	
+	
+	/*
+	 * Records a change of the directory content: updates its modification 
+	 * time and bumps its version, as well as the version of its parent 
+	 * whose listing shows this modification time
+	 * (must be called after the change, never before)
+	 */
+	private void markModified() {
 		modificationTime = System.currentTimeMillis();
-		return files.remove(filename);
+		version.incrementAndGet();
+		if(parentDirectory != null)
+			parentDirectory.version.incrementAndGet();
 	}
 	
 	
@@ -295,56 +701,282 @@ public class VirtualDirectory {
 		if(directoryName == null)
 			return null;
 		
+		ensureLoaded();
 		VirtualDirectory directory = subDirectories.get(directoryName);
-		if(!directory.isProtected || canAccessProtectedDirectories)
+		if(directory != null && (!directory.isProtected || canAccessProtectedDirectories))
 			return directory;
 		
 		return null;
 	}
 	
 	
+	/*
+	 * Adds a new empty sub-directory
+	 * 
+	 * Arguments:
+	 * directoryName		the name of the sub-directory
+	 * _isProtected			true if the sub-directory is protected, false otherwise
+	 * 
+	 * Return:
+	 * the new sub-directory, null if the name is invalid or already used
+	 */
+	public VirtualDirectory addSubDirectory(String directoryName, boolean _isProtected) {
+		if(directoryName == null || directoryName.isEmpty() || directoryName.indexOf('/') >= 0 
+				|| directoryName.contentEquals(".") || directoryName.contentEquals(".."))
+			return null;
+		
+		ensureLoaded();
+		VirtualDirectory directory = new VirtualDirectory(directoryName, this, null, null, _isProtected);
+		NamespaceJournal _journal = journal.get();
+		long sequence = 0;
+		synchronized(LOCK_STRIPES[getLockIndex(directoryName)]) {
+			if(subDirectories.putIfAbsent(directoryName, directory) != null)
+				return null;
+			if(_journal != null)
+				sequence = _journal.logAddDirectory(this, directoryName, _isProtected);
+		}
+		
+		markModified();
+		structureVersion.incrementAndGet();
+		if(_journal != null)
+			_journal.awaitDurable(sequence);
+		return directory;
+	}
+	
+	
+	/*
+	 * Removes a sub-directory
+	 * 
+	 * Arguments:
+	 * directoryName		the name of the sub-directory
+	 * 
+	 * Return:
+	 * the removed sub-directory, null if it can't be found
+	 */
+	public VirtualDirectory removeSubDirectory(String directoryName) {
+		if(directoryName == null)
+			return null;
+		
+		ensureLoaded();
+		NamespaceJournal _journal = journal.get();
+		long sequence = 0;
+		VirtualDirectory directory;
+		synchronized(LOCK_STRIPES[getLockIndex(directoryName)]) {
+			directory = subDirectories.remove(directoryName);
+			if(directory != null && _journal != null)
+				sequence = _journal.logRemoveDirectory(this, directoryName);
+		}
+		
+		if(directory != null) {
+			markModified();
+			structureVersion.incrementAndGet();
+			if(_journal != null)
+				_journal.awaitDurable(sequence);
+		}
+		return directory;
+	}
+	
+	
 	/*
 	 * Gives a directory identified by its pathname
 	 * 
 	 * Arguments:
-	 * pathname							the pathname of the directory
+	 * pathname							the pathname of the directory, either absolute 
+	 * 									or relative to this directory, and possibly 
+	 * 									containing "." and ".." components
 	 * canAccessProtectedDirectories	true if protected directories 
 	 * 									can be accessed, false otherwise
 	 * 
 	 * Return:
 	 * the directory asked, null if the directory can't be found
+	 * 
+	 * Note:
+	 * The pathnames already resolved from a directory are kept in a cache, 
+	 * so that resolving a hot path costs a single lookup whatever its depth;
+	 * the cache is dropped as soon as a directory is added or removed in the tree
 	 */
 	public VirtualDirectory getDirectory(String pathname, boolean canAccessProtectedDirectories){
-		if(pathname == null)
+		if(pathname == null || pathname.isEmpty())
 			return null;
-					
-		if(pathname.contentEquals("/"))
-			return this;
 		
-		if(pathname.charAt(pathname.length() - 1) == '/')
-			pathname = pathname.substring(0, pathname.length() - 1);
+		VirtualDirectory start = (pathname.charAt(0) == '/') ? getRootDirectory() : this;
+		ResolutionCache cache = start.getResolutionCache();
+		Map<String, VirtualDirectory> resolvedPaths = canAccessProtectedDirectories 
+				? cache.protectedPaths : cache.unprotectedPaths;
 		
-		String firstDirectoryName;
-		String endPath;
-		int index = pathname.indexOf('/');
+		VirtualDirectory directory = resolvedPaths.get(pathname);
+		if(directory == null) {
+			directory = start.resolve(pathname, canAccessProtectedDirectories);
+			if(directory != null && resolvedPaths.size() < MAX_CACHED_PATHS)
+				resolvedPaths.put(pathname, directory);
+		}
+		return directory;
+	}
+	
+	
+	/*
+	 * Resolves a pathname component by component, in a single pass 
+	 * over the pathname and without splitting it
+	 * 
+	 * Arguments:
+	 * pathname							the pathname of the directory, relative 
+	 * 									to this directory (a leading '/' is ignored)
+	 * canAccessProtectedDirectories	true if protected directories 
+	 * 									can be accessed, false otherwise
+	 * 
+	 * Return:
+	 * the directory asked, null if the directory can't be found
+	 */
+	private VirtualDirectory resolve(String pathname, boolean canAccessProtectedDirectories) {
+		VirtualDirectory directory = this;
+		int length = pathname.length();
+		int start = 0;
 		
-		if(index >= 0) { // if absolute path
+		while(start < length && directory != null) {
+			int end = pathname.indexOf('/', start);
+			if(end < 0)
+				end = length;
 			
-			endPath = pathname.substring(index + 1);
-			if(index > 0) {
-				firstDirectoryName = pathname.substring(0, index - 1);
-				VirtualDirectory subDirectory = getSubDirectory(firstDirectoryName, canAccessProtectedDirectories);
-				if(subDirectory != null)
-					return subDirectory.getDirectory(endPath, canAccessProtectedDirectories);
-				else
-					return null;
+			int componentLength = end - start;
+			if(componentLength == 0 || (componentLength == 1 && pathname.charAt(start) == '.')) {
+				// "//" or "." stay in the same directory
+			}else if(componentLength == 2 && pathname.startsWith("..", start)) {
+				if(directory.parentDirectory != null) // the parent of the root is the root
+					directory = directory.parentDirectory;
 			}else
-				return getDirectory(endPath, canAccessProtectedDirectories);
+				directory = directory.getSubDirectory(pathname, start, end, canAccessProtectedDirectories);
 			
-		}else if(pathname.length() > 0) // if relative path
-			return getSubDirectory(pathname, canAccessProtectedDirectories);
-		else // if invalid path
-			return null;
+			start = end + 1;
+		}
+		return directory;
+	}
+	
+	
+	/*
+	 * Gives a specific direct sub-directory from its name, 
+	 * given as a component of a pathname
+	 * 
+	 * Arguments:
+	 * pathname							the pathname
+	 * start							the index of the first character of the name
+	 * end								the index following the last character of the name
+	 * canAccessProtectedDirectories	true if protected directories 
+	 * 									can be accessed, false otherwise
+	 * 
+	 * Return:
+	 * the direct sub-directory asked, 
+	 * null if the direct sub-directory can't be found in the directory
+	 */
+	private VirtualDirectory getSubDirectory(String pathname, int start, int end, boolean canAccessProtectedDirectories) {
+		int length = end - start;
+		
+		ensureLoaded();
+		if(subDirectories.size() > MAX_SCANNED_SUB_DIRECTORIES)
+			return getSubDirectory(pathname.substring(start, end), canAccessProtectedDirectories);
+		
+		for(VirtualDirectory directory : subDirectories.values()) { // few sub-directories: compared in place
+			String name = directory.directoryName;
+			if(name.length() == length && pathname.regionMatches(start, name, 0, length)) {
+				if(!directory.isProtected || canAccessProtectedDirectories)
+					return directory;
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the root directory of the tree this directory belongs to
+	 */
+	private VirtualDirectory getRootDirectory() {
+		VirtualDirectory directory = this;
+		while(directory.parentDirectory != null) {
+			directory = directory.parentDirectory;
+		}
+		return directory;
+	}
+	
+	
+	/*
+	 * Return:
+	 * the pathname resolution cache of this directory, 
+	 * emptied if the tree structure has changed since it was filled
+	 */
+	private ResolutionCache getResolutionCache() {
+		long currentVersion = structureVersion.get();
+		ResolutionCache cache = resolutionCache;
+		if(cache == null || cache.structureVersion != currentVersion) {
+			cache = new ResolutionCache(currentVersion);
+			resolutionCache = cache;
+		}
+		return cache;
+	}
+	
+	
+	/*
+	 * Creates the lock stripes shared by all the directories
+	 * 
+	 * Arguments:
+	 * count		the number of stripes
+	 * 
+	 * Return:
+	 * the lock stripes
+	 */
+	private static Object[] newLockStripes(int count) {
+		Object[] locks = new Object[count];
+		for(int i = 0; i < count; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+	
+	
+	/*
+	 * Resolution Cache Class
+	 * The pathnames resolved from a directory, valid for a single version of the tree structure
+	 */
+	private static class ResolutionCache {
+		private final long structureVersion;
+		private final Map<String, VirtualDirectory> unprotectedPaths;
+		private final Map<String, VirtualDirectory> protectedPaths;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _structureVersion		the version of the tree structure the pathnames are resolved in
+		 */
+		public ResolutionCache(long _structureVersion) {
+			structureVersion = _structureVersion;
+			unprotectedPaths = new ConcurrentHashMap<String, VirtualDirectory>();
+			protectedPaths = new ConcurrentHashMap<String, VirtualDirectory>();
+		}
+	}
+	
+	
+	/*
+	 * Cached Listing Class
+	 * A rendered directory listing and the directory version it was rendered from
+	 */
+	private static class CachedListing {
+		private final long version;
+		private final byte[] bytes;
+		
+		
+		/*
+		 * Constructor
+		 * 
+		 * Arguments:
+		 * _version		the directory version the listing was rendered from
+		 * _bytes		the rendered listing
+		 */
+		public CachedListing(long _version, byte[] _bytes) {
+			version = _version;
+			bytes = _bytes;
+		}
 	}
 	
 }
@@ -29,6 +29,4 @@ public class VirtualDirectoryContent {
 	public static final String SECRET = "UPUPDOWNDOWNLEFTRIGHTLEFTRIGHTBASTART";
 	
 	public static final String MYTEXT = "Irasshaimase";
-	
-	public static final int MAX_FILE_SIZE = 0xFFFF;
 }
@@ -1,17 +1,35 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /*
  * Virtual File Class
  * Manages a virtual file and the operations that it can undergo
+ * 
+ * Note:
+ * The getters do not lock, so that the downloads of a popular 
+ * file never contend; only the changes of the file are synchronized
  */
 public class VirtualFile<T> {
 	// Constant values
 	private static final String ACCESS_RIGHTS = "-rw-r--r-- 1";
 	private static final String OWNER = "FTPServerBastienAlexandre";
+	private static final long MAX_FILE_SIZE = FTPServerConfiguration.getMaxFileSize();
 	
 	//
-	private String filename;
-	private T content;
-	private long modificationTime;
-	private int size;
+	private volatile String filename;
+	private final T content;
+	private volatile long modificationTime;
+	private final long size;
+	private final AtomicInteger compressedDownloadCount = new AtomicInteger(0);
+	private final AtomicReferenceArray<StoredContent> compressedVariants = new AtomicReferenceArray<StoredContent>(2); // Binary, ASCII
+	private final AtomicIntegerArray compressedVariantBuilds = new AtomicIntegerArray(2); // 1 while a variant is being built
+	private volatile boolean isCompressedVariantRejected = false; // Whether the variants can't fit in the cache
+	private boolean isDeleted = false;
 	
 	
 	/*
@@ -21,30 +39,51 @@ public class VirtualFile<T> {
 	 * Arguments:
 	 * filename			the name of the virtual file
 	 * content			the content of the file (either of type byte[] 
-	 * 					for binary files or String for text files)
+	 * 					for binary files, String for text files 
+	 * 					or StoredContent for uploaded files)
 	 * size				the size of the file (in bytes)
 	 * 
 	 * Throws:
 	 * InvalidStringFormatException if the filename is null, empty 
 	 * or contains non ASCII characters or '/'
+	 * TransferSizeExceededException if the size exceeds the configured maximum file size
 	 */
-	public VirtualFile(String _filename, T _content, int _size) 
+	public VirtualFile(String _filename, T _content, long _size) 
 			throws InvalidStringFormatException, TransferSizeExceededException{
-		if(_filename != null && !_filename.matches("^[\\p{ASCII}&&[^/]]+$")) {
+		this(_filename, _content, _size, System.currentTimeMillis());
+	}
+	
+	
+	/*
+	 * Constructor 
+	 * -> Initializes a virtual file restored with its modification time
+	 * 
+	 * Arguments:
+	 * filename				the name of the virtual file
+	 * content				the content of the file
+	 * size					the size of the file (in bytes)
+	 * modificationTime		the modification time of the file in milliseconds since 1st January 1970
+	 * 
+	 * Throws:
+	 * See VirtualFile(String, T, long)
+	 */
+	public VirtualFile(String _filename, T _content, long _size, long _modificationTime) 
+			throws InvalidStringFormatException, TransferSizeExceededException{
+		if(_filename != null && !isValidFilename(_filename)) {
 			throw new InvalidStringFormatException("Empty Filename Or "
 					+ "Non ASCII And '/' Characters In Filename Not Allowed");
 		}
 		
-		if(_size > VirtualDirectoryContent.MAX_FILE_SIZE) {
+		if(_size > MAX_FILE_SIZE) {
 			throw new TransferSizeExceededException("Maximum File Size (" 
-					+ VirtualDirectoryContent.MAX_FILE_SIZE 
+					+ MAX_FILE_SIZE 
 					+ " bytes) Exceeded");
 		}
 		
 		filename = _filename;
 		content = _content;
 		size = _size;
-		modificationTime = System.currentTimeMillis();
+		modificationTime = _modificationTime;
 	}
 	
 	
@@ -52,7 +91,7 @@ public class VirtualFile<T> {
 	 * Return:
 	 * the content of the file
 	 */
-	public synchronized T getContent() {
+	public T getContent() {
 		return content;
 	}
 	
@@ -61,7 +100,7 @@ public class VirtualFile<T> {
 	 * Return:
 	 * the size (in bytes) of the file
 	 */
-	public synchronized long getSize() {
+	public long getSize() {
 		return size;
 	}
 	
@@ -70,7 +109,7 @@ public class VirtualFile<T> {
 	 * Return:
 	 * the filename
 	 */
-	public synchronized String getFilename() {
+	public String getFilename() {
 		return filename;
 	}
 	
@@ -80,7 +119,7 @@ public class VirtualFile<T> {
 	 * the modification time of the file, i.e. the last time 
 	 * it was modified in milliseconds since 1st January 1970
 	 */
-	public synchronized long getModificationTime() {
+	public long getModificationTime() {
 		return modificationTime;
 	}
 	
@@ -89,7 +128,7 @@ public class VirtualFile<T> {
 	 * Return:
 	 * the access rights of the file
 	 */
-	public synchronized String getAccessRights() {
+	public String getAccessRights() {
 		return ACCESS_RIGHTS;
 	}
 	
@@ -98,11 +137,194 @@ public class VirtualFile<T> {
 	 * Return:
 	 * the owner of the file
 	 */
-	public synchronized String getOwner() {
+	public String getOwner() {
 		return OWNER;
 	}
 	
 	
+	/*
+	 * Transfers a part of the content of the file to a channel, 
+	 * straight from where the content is kept
+	 * 
+	 * Arguments:
+	 * position		the position of the first byte to transfer
+	 * count		the maximum number of bytes to transfer
+	 * target		the channel receiving the bytes
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read or the channel can't be written
+	 */
+	public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		if(content instanceof StoredContent) {
+			((StoredContent) content).transferTo(position, count, target);
+			return;
+		}
+		
+		byte[] bytes;
+		if(content instanceof String)
+			bytes = ((String)content).getBytes(StandardCharsets.UTF_8);
+		else
+			bytes = (byte[])content;
+		
+		int start = (int) Math.min(position, bytes.length);
+		int length = (int) Math.min(count, bytes.length - start);
+		ByteBuffer data = ByteBuffer.wrap(bytes, start, length);
+		while(data.hasRemaining()) {
+			target.write(data);
+		}
+	}
+	
+	
+	/*
+	 * Opens the content of the file for a transfer
+	 * (See StoredContent.open)
+	 * 
+	 * Return:
+	 * the reader of the content, to close once the transfer has ended
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read (eg: its storage has been freed)
+	 */
+	public ContentReader open() throws IOException {
+		if(content instanceof StoredContent)
+			return ((StoredContent) content).open();
+		
+		return new ContentReader() { // the content is held by the file itself
+			@Override
+			public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+				VirtualFile.this.transferTo(position, count, target);
+				return Math.max(0, Math.min(count, size - position));
+			}
+			
+			@Override
+			public void close() {
+			}
+		};
+	}
+	
+	
+	/*
+	 * Appends the first bytes of the content of the file to new content
+	 * (eg: the bytes kept before the restart position of an upload)
+	 * 
+	 * Arguments:
+	 * writer		the writer of the new content
+	 * count		the maximum number of bytes to append
+	 * 
+	 * Throws:
+	 * IOException		if the content can't be read or the bytes can't be stored
+	 */
+	public void appendTo(ContentWriter writer, long count) throws IOException {
+		if(content instanceof StoredContent) // eg: from file to file for disk content
+			writer.append((StoredContent) content, Math.min(count, getSize()));
+		else
+			transferTo(0, count, new ContentWriterChannel(writer));
+	}
+	
+	
+	/*
+	 * Counts a compressed download of the file
+	 * 
+	 * Return:
+	 * the number of compressed downloads of the file so far
+	 */
+	public int countCompressedDownload() {
+		return compressedDownloadCount.incrementAndGet();
+	}
+	
+	
+	/*
+	 * Arguments:
+	 * isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+	 * 
+	 * Return:
+	 * the compressed form of the whole file, null if it has not been built
+	 */
+	public StoredContent getCompressedVariant(boolean isAsciiType) {
+		return compressedVariants.get(isAsciiType ? 1 : 0);
+	}
+	
+	
+	/*
+	 * Claims the building of a compressed form of the whole file
+	 * 
+	 * Arguments:
+	 * isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+	 * 
+	 * Return:
+	 * true if the variant has to be built by the caller, false if it 
+	 * is already built or being built by another download
+	 */
+	public boolean startCompressedVariant(boolean isAsciiType) {
+		int index = isAsciiType ? 1 : 0;
+		return compressedVariants.get(index) == null && compressedVariantBuilds.compareAndSet(index, 0, 1);
+	}
+	
+	
+	/*
+	 * Ends the building of a compressed form of the whole file, 
+	 * whether it has been attached or given up
+	 * 
+	 * Arguments:
+	 * isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+	 */
+	public void endCompressedVariant(boolean isAsciiType) {
+		compressedVariantBuilds.set(isAsciiType ? 1 : 0, 0);
+	}
+	
+	
+	/*
+	 * Remembers that the compressed forms of the file can't fit in the cache
+	 */
+	public void rejectCompressedVariant() {
+		isCompressedVariantRejected = true;
+	}
+	
+	
+	/*
+	 * Return:
+	 * true if the compressed forms of the file can't fit in the cache, false otherwise
+	 */
+	public boolean isCompressedVariantRejected() {
+		return isCompressedVariantRejected;
+	}
+	
+	
+	/*
+	 * Attaches a compressed form of the whole file
+	 * 
+	 * Arguments:
+	 * isAsciiType		true for the ASCII transfer type, false for the binary transfer type
+	 * variant			the compressed form
+	 * 
+	 * Return:
+	 * true if the variant is attached, false if the file already 
+	 * has such a variant or has been deleted
+	 */
+	public synchronized boolean setCompressedVariant(boolean isAsciiType, StoredContent variant) {
+		if(isDeleted)
+			return false;
+		return compressedVariants.compareAndSet(isAsciiType ? 1 : 0, null, variant);
+	}
+	
+	
+	/*
+	 * Frees the storage used by the content of the file and its compressed forms
+	 * (called when the file is deleted or replaced)
+	 */
+	public synchronized void delete() {
+		isDeleted = true;
+		if(content instanceof StoredContent)
+			((StoredContent) content).delete();
+		
+		for(int i = 0; i < compressedVariants.length(); i++) {
+			StoredContent variant = compressedVariants.getAndSet(i, null);
+			if(variant != null)
+				variant.delete();
+		}
+	}
+	
+	
 	/*
 	 * Renames a file
 	 * 
@@ -112,16 +334,56 @@ public class VirtualFile<T> {
 	 * Return:
 	 * true if the file was correctly renamed, false otherwise
 	 */
-	public synchronized boolean renameTo(String newFilename) {
-		if(newFilename != null && newFilename.matches("^[\\p{ASCII}&&[^/]]+$")) { 
-			// A filename can not contain the character '/' 
-			// or non ASCII characters and can not be empty
-			
+	public boolean renameTo(String newFilename) {
+		return renameTo(newFilename, System.currentTimeMillis());
+	}
+	
+	
+	/*
+	 * Renames a file with a given modification time
+	 * (eg: the time of a rename replayed from the journal)
+	 * 
+	 * Arguments:
+	 * newFilename			the new filename
+	 * _modificationTime	the new modification time in milliseconds since 1st January 1970
+	 * 
+	 * Return:
+	 * true if the file was correctly renamed, false otherwise
+	 */
+	public synchronized boolean renameTo(String newFilename, long _modificationTime) {
+		if(newFilename != null && isValidFilename(newFilename)) { 
 			filename = newFilename;
-			modificationTime = System.currentTimeMillis();
+			modificationTime = _modificationTime;
 			return true;
 		}
 		
 		return false;
 	}
+	
+	
+	/*
+	 * Checks a filename
+	 * 
+	 * Arguments:
+	 * filename		the filename
+	 * 
+	 * Return:
+	 * true if the filename is not empty and only contains 
+	 * ASCII characters other than '/', false otherwise
+	 * 
+	 * Note:
+	 * Checked character by character rather than with a regular expression,
+	 * so that no pattern is compiled for each new file
+	 */
+	public static boolean isValidFilename(String filename) {
+		if(filename.isEmpty())
+			return false;
+		
+		for(int i = 0; i < filename.length(); i++) {
+			char c = filename.charAt(i);
+			if(c > 0x7F || c == '/')
+				return false;
+		}
+		return true;
+	}
 }
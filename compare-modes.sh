@@ -0,0 +1,67 @@
+#!/bin/bash
+#
+# Compares the throughput of the session modes of the FTP server
+# ("pool", "nio", and "virtual" when the JDK is 21 or later): the server
+# is started in each mode on its own, then driven by FTPLoadGenerator
+# with each number of concurrent sessions
+#
+# Usage:
+# ./compare-modes.sh [maxThreads [sessions...]]
+#
+# where - maxThreads (8): the maximum number of threads given to the server
+#		- sessions (16 256): the numbers of concurrent sessions to run
+#		- DURATION (20), WARMUP (5): the measured and the warm-up times
+#		  of each run, in seconds (environment variables)
+#		- JAVA_OPTS: the options of the server JVM (eg: -Dftp.storage=disk)
+#
+# Note:
+# - The server listens on port 2151, which must be free
+# - In "pool" mode, a session holds a thread of the pool: the sessions
+#   beyond maxThreads wait for the greeting, and are counted as waiting
+#
+
+THREADS=${1:-8}
+shift
+SESSIONS=${*:-16 256}
+DURATION=${DURATION:-20}
+WARMUP=${WARMUP:-5}
+PORT=2151
+
+cd "$(dirname "$0")" || exit 1
+CLASSES=$(mktemp -d)
+SERVER=
+trap '[ -n "$SERVER" ] && kill $SERVER 2>/dev/null; rm -rf "$CLASSES"' EXIT
+
+javac -nowarn -d "$CLASSES" *.java || exit 1
+
+MODES="pool nio"
+JAVA_VERSION=$(java -XshowSettings:properties -version 2>&1 | sed -n 's/.*java.specification.version = \([0-9]*\).*/\1/p')
+if [ "${JAVA_VERSION:-0}" -ge 21 ]; then
+	MODES="$MODES virtual"
+else
+	echo "Java $JAVA_VERSION: the \"virtual\" mode needs Java 21 or later and is skipped"
+fi
+
+printf "%-8s %9s %12s %9s %12s %9s\n" "Mode" "sessions" "commands/s" "MB/s" "RETR p99 ms" "waiting"
+for mode in $MODES; do
+	for sessions in $SESSIONS; do
+		java $JAVA_OPTS -cp "$CLASSES" FTPServer "$THREADS" "$mode" > /dev/null 2>&1 &
+		SERVER=$!
+		for i in $(seq 100); do # waits for the server to listen
+			(echo > /dev/tcp/localhost/$PORT) 2> /dev/null && break
+			sleep 0.1
+		done
+
+		java -cp "$CLASSES" FTPLoadGenerator port=$PORT sessions="$sessions" \
+				duration="$DURATION" warmup="$WARMUP" 2>&1 \
+			| awk -v mode="$mode" -v sessions="$sessions" '
+				/^RETR \(transfer\)/ { p99 = $8 }
+				/^Total:/ { commands = $2; bytes = $4 }
+				/Waiting For The Greeting/ { waiting = $1 }
+				END { printf "%-8s %9s %12s %9s %12s %9d\n", mode, sessions, commands, bytes, p99, waiting }'
+
+		kill $SERVER 2> /dev/null
+		wait $SERVER 2> /dev/null
+		SERVER=
+	done
+done